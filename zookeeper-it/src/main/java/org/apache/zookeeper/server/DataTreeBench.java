@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a DataTree keeping the data of its nodes on the heap with one
+ * keeping it in an OffHeapDataArena: the cost of a read, which copies the
+ * data out of the arena, against the cost of a full collection of a heap
+ * holding the tree.
+ */
+@Fork(3)
+public class DataTreeBench {
+
+    @State(Scope.Benchmark)
+    public static class TreeState {
+
+        @Param({"false", "true"})
+        public boolean offHeapData;
+
+        @Param({"200000"})
+        public int nodeCount;
+
+        @Param({"1024"})
+        public int dataSize;
+
+        DataTree tree;
+        String[] paths;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            DataTree.setOffHeapDataEnabled(offHeapData);
+            tree = new DataTree();
+            paths = new String[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                paths[i] = "/node-" + i;
+                tree.createNode(paths[i], new byte[dataSize], Ids.OPEN_ACL_UNSAFE, 0, i, i + 1, 0);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            DataTree.setOffHeapDataEnabled(false);
+        }
+    }
+
+    /**
+     * The output of this test is the time to read the data of a node.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testGetData(TreeState state, Blackhole bh) throws Exception {
+        String path = state.paths[state.next];
+        state.next = (state.next + 1) % state.nodeCount;
+        bh.consume(state.tree.getData(path, new Stat(), null));
+    }
+
+    /**
+     * The output of this test is the time of a full collection of a heap
+     * holding the tree.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testFullGc(TreeState state) {
+        System.gc();
+    }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZooDefs.OpCode;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes requests from several connection threads through a pipeline of
+ * processor stages, each a thread taking requests off its queue and
+ * handing them to the next stage's queue, like the throttler, prep, sync
+ * and commit processors do. Compares the queue classes the pipeline can be
+ * configured with.
+ */
+@Fork(3)
+public class RequestQueueBench {
+
+    @State(Scope.Benchmark)
+    public static class PipelineState {
+
+        @Param({"java.util.concurrent.LinkedBlockingQueue", "org.apache.zookeeper.util.MpscBlockingQueue"})
+        public String queueClass;
+
+        @Param({"4"})
+        public int producerCount;
+
+        @Param({"3"})
+        public int stageCount;
+
+        @Param({"100000"})
+        public int requestsPerProducer;
+
+        Request[] requests;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            RequestQueueFactory.setQueueClass(queueClass);
+            requests = new Request[requestsPerProducer];
+            for (int i = 0; i < requestsPerProducer; i++) {
+                requests[i] = new Request(null, i, i, OpCode.setData, null, null);
+            }
+        }
+    }
+
+    /**
+     * The output of this test is the time for all the requests to get
+     * through every stage.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testPipeline(PipelineState state) throws Exception {
+        List<BlockingQueue<Request>> queues = new ArrayList<>();
+        for (int i = 0; i <= state.stageCount; i++) {
+            queues.add(RequestQueueFactory.createQueue());
+        }
+        final int total = state.producerCount * state.requestsPerProducer;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < state.stageCount; i++) {
+            final BlockingQueue<Request> in = queues.get(i);
+            final BlockingQueue<Request> out = queues.get(i + 1);
+            threads.add(new Thread(() -> {
+                List<Request> batch = new ArrayList<>();
+                int forwarded = 0;
+                try {
+                    while (forwarded < total) {
+                        batch.add(in.take());
+                        in.drainTo(batch, RequestQueueFactory.MAX_DRAIN_BATCH_SIZE - 1);
+                        for (Request request : batch) {
+                            out.add(request);
+                        }
+                        forwarded += batch.size();
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < state.producerCount; i++) {
+            final BlockingQueue<Request> in = queues.get(0);
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Request request : state.requests) {
+                    in.add(request);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+
+        BlockingQueue<Request> sink = queues.get(state.stageCount);
+        for (int i = 0; i < total; i++) {
+            sink.take();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+}
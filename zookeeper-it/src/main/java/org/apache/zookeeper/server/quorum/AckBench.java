@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.FinalRequestProcessor;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.RequestProcessor.RequestProcessorException;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.TxnHeader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the ack streams of the voters of an ensemble on a Leader, one
+ * thread per voter acking every proposal in order like a learner handler
+ * does. Compares Leader.processAck, counting the acks on the concurrent ack
+ * sets of the proposals and only locking to commit, with the way the leader
+ * used to count them: every ack under the leader lock, on HashSet ack sets.
+ */
+@Fork(3)
+public class AckBench {
+
+    /**
+     * A proposal with the HashSet ack sets of the old SyncedLearnerTracker,
+     * only safe to ack under the leader lock.
+     */
+    static class HashSetProposal extends Proposal {
+
+        @Override
+        protected Set<Long> newAckset(int voterCount) {
+            return new HashSet<Long>(voterCount);
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class AckState {
+
+        @Param({"5", "7", "9"})
+        public int voterCount;
+
+        @Param({"100000"})
+        public int proposalCount;
+
+        QuorumVerifier qv;
+        File dataDir;
+        FileTxnSnapLog snapLog;
+        Leader leader;
+        long firstZxid;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Map<Long, QuorumServer> members = new HashMap<>();
+            for (long sid = 1; sid <= voterCount; sid++) {
+                members.put(sid, new QuorumServer(sid, new InetSocketAddress("127.0.0.1", PortAssignment.unique())));
+            }
+            qv = new QuorumMaj(members);
+
+            QuorumPeer self = new QuorumPeer();
+            self.setMyid(1);
+            self.setQuorumVerifier(qv, false);
+            dataDir = Files.createTempDirectory("AckBench").toFile();
+            snapLog = new FileTxnSnapLog(dataDir, dataDir);
+            LeaderZooKeeperServer zk = new LeaderZooKeeperServer(snapLog, self, new ZKDatabase(snapLog));
+            leader = new Leader(self, zk);
+
+            // the committed requests are taken off toBeApplied as the
+            // final processor would apply them, without applying them
+            final RequestProcessor toBeApplied = new Leader.ToBeAppliedRequestProcessor(
+                new FinalRequestProcessor(zk) {
+                    @Override
+                    public void processRequest(Request request) {
+                    }
+                }, leader);
+            zk.commitProcessor = new CommitProcessor(toBeApplied, "1", false, null) {
+                @Override
+                public void commit(Request request) {
+                    try {
+                        toBeApplied.processRequest(request);
+                    } catch (RequestProcessorException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            firstZxid = ZxidUtils.makeZxid(1, 1);
+        }
+
+        Proposal newProposal() {
+            return new Proposal();
+        }
+
+        @Setup(Level.Invocation)
+        public void propose() {
+            leader.outstandingProposals.clear();
+            for (long zxid = firstZxid; zxid < firstZxid + proposalCount; zxid++) {
+                Proposal p = newProposal();
+                p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, new byte[100], null);
+                p.request = new Request(1, (int) zxid, OpCode.setData,
+                                        new TxnHeader(1, (int) zxid, zxid, 0, OpCode.setData), null, zxid);
+                p.addQuorumVerifier(qv);
+                leader.outstandingProposals.put(zxid, p);
+            }
+            leader.lastCommitted = firstZxid - 1;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            leader.closeSockets();
+            snapLog.close();
+            for (File file : dataDir.listFiles()) {
+                file.delete();
+            }
+            dataDir.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class HashSetAckState extends AckState {
+
+        @Override
+        Proposal newProposal() {
+            return new HashSetProposal();
+        }
+    }
+
+    private interface AckProcessor {
+
+        void processAck(long sid, long zxid);
+
+    }
+
+    private static void replay(AckState state, AckProcessor processor) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (long sid = 1; sid <= state.voterCount; sid++) {
+            final long voter = sid;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long zxid = state.firstZxid; zxid < state.firstZxid + state.proposalCount; zxid++) {
+                    processor.processAck(voter, zxid);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * The output of this test is the time for all the voters to ack all
+     * the proposals, with every ack counted under the leader lock, as
+     * Leader.processAck used to.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testSynchronizedAcks(HashSetAckState state) throws InterruptedException {
+        final Leader leader = state.leader;
+        replay(state, (sid, zxid) -> {
+            synchronized (leader) {
+                if (leader.lastCommitted >= zxid) {
+                    return;
+                }
+                Proposal p = leader.outstandingProposals.get(zxid);
+                if (p == null) {
+                    return;
+                }
+                p.addAck(sid);
+                leader.tryToCommit(p, zxid, null);
+            }
+        });
+    }
+
+    /**
+     * The output of this test is the time for all the voters to ack all
+     * the proposals through Leader.processAck.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testConcurrentAcks(AckState state) throws InterruptedException {
+        final Leader leader = state.leader;
+        replay(state, (sid, zxid) -> leader.processAck(sid, zxid, null));
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the session queue handling of the CommitProcessor loop: each
+ * session queues a write and the reads behind it, then the writes are
+ * committed in batches and the reads behind them drained. Compares the
+ * SessionQueueMap with the map of boxed session ids to deques the processor
+ * used to hold its pending requests in.
+ */
+@Fork(3)
+public class SessionQueueBench {
+
+    @State(Scope.Benchmark)
+    public static class BenchState {
+
+        @Param({"50000"})
+        public int sessionCount;
+
+        @Param({"2"})
+        public int readsPerWrite;
+
+        @Param({"100"})
+        public int commitBatchSize;
+
+        Request[] writes;
+        Request[] reads;
+
+        final SessionQueueMap sessionQueueMap = new SessionQueueMap(10000);
+        final Map<Long, Deque<Request>> hashMap = new HashMap<>(10000);
+
+        @Setup(Level.Trial)
+        public void setup() {
+            writes = new Request[sessionCount];
+            reads = new Request[sessionCount * readsPerWrite];
+            for (int i = 0; i < sessionCount; i++) {
+                long sessionId = (0x1L << 56) + i;
+                writes[i] = new Request(null, sessionId, 0, OpCode.setData, null, null);
+                for (int j = 0; j < readsPerWrite; j++) {
+                    reads[i * readsPerWrite + j] = new Request(null, sessionId, j + 1, OpCode.getData, null, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * The output of this test is the time to queue and then commit a write
+     * and its reads for every session.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testSessionQueueMap(BenchState state, Blackhole bh) {
+        SessionQueueMap pending = state.sessionQueueMap;
+        for (int i = 0; i < state.sessionCount; i++) {
+            Request write = state.writes[i];
+            pending.getOrCreate(write.sessionId).addLast(write);
+            for (int j = 0; j < state.readsPerWrite; j++) {
+                Request read = state.reads[i * state.readsPerWrite + j];
+                if (pending.containsKey(read.sessionId)) {
+                    pending.getOrCreate(read.sessionId).addLast(read);
+                }
+            }
+        }
+
+        List<SessionQueueMap.SessionQueue> queuesToDrain = new ArrayList<>();
+        for (int i = 0; i < state.sessionCount; i += state.commitBatchSize) {
+            int end = Math.min(state.sessionCount, i + state.commitBatchSize);
+            for (int k = i; k < end; k++) {
+                SessionQueueMap.SessionQueue queue = pending.get(state.writes[k].sessionId);
+                bh.consume(queue.poll());
+                if (!queue.draining) {
+                    queue.draining = true;
+                    queuesToDrain.add(queue);
+                }
+            }
+            for (SessionQueueMap.SessionQueue queue : queuesToDrain) {
+                queue.draining = false;
+                while (!queue.isEmpty()) {
+                    bh.consume(queue.poll());
+                }
+                pending.remove(queue.sessionId);
+            }
+            queuesToDrain.clear();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testHashMap(BenchState state, Blackhole bh) {
+        Map<Long, Deque<Request>> pending = state.hashMap;
+        for (int i = 0; i < state.sessionCount; i++) {
+            Request write = state.writes[i];
+            pending.computeIfAbsent(write.sessionId, sid -> new ArrayDeque<>()).addLast(write);
+            for (int j = 0; j < state.readsPerWrite; j++) {
+                Request read = state.reads[i * state.readsPerWrite + j];
+                if (pending.containsKey(read.sessionId)) {
+                    pending.computeIfAbsent(read.sessionId, sid -> new ArrayDeque<>()).addLast(read);
+                }
+            }
+        }
+
+        for (int i = 0; i < state.sessionCount; i += state.commitBatchSize) {
+            int end = Math.min(state.sessionCount, i + state.commitBatchSize);
+            Set<Long> queuesToDrain = new HashSet<>();
+            for (int k = i; k < end; k++) {
+                Request write = state.writes[k];
+                bh.consume(pending.get(write.sessionId).poll());
+                queuesToDrain.add(write.sessionId);
+            }
+            for (Long sessionId : queuesToDrain) {
+                Deque<Request> queue = pending.get(sessionId);
+                while (!queue.isEmpty()) {
+                    bh.consume(queue.poll());
+                }
+                pending.remove(sessionId);
+            }
+        }
+    }
+
+}
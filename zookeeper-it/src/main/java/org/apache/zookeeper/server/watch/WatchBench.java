@@ -297,4 +297,30 @@ public void testTriggerSparseWatch(TriggerSparseWatchState state) throws Excepti
             state.watchManager.triggerWatch(path, event);
         }
     }
+
+    @State(Scope.Benchmark)
+    public static class TriggerHotWatchState extends InvocationState {
+
+        @Param({"1"})
+        public int pathCount;
+
+        @Param({"100000", "1000000"})
+        public int watcherCount;
+    }
+
+    /**
+     * Test trigger watches on a hot path, such as a config node, watched by
+     * a large number of sessions.
+     *
+     * The output of this test is the time used to trigger all the watches
+     * of that path.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testTriggerHotWatch(TriggerHotWatchState state) throws Exception {
+        state.watchManager.triggerWatch(state.paths[0], event);
+    }
 }
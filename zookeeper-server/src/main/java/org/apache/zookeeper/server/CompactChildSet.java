@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The children of a {@link DataNode}.
+ * <p>
+ * Most znodes have only a few children, for which a HashSet costs an entry
+ * object per child and a mostly empty table. Up to {@link #MAX_ARRAY_SIZE}
+ * children are instead kept in a sorted array and looked up with a binary
+ * search. Beyond that the set switches to a HashSet, and back to an array
+ * once it has shrunk to half of that.
+ * <p>
+ * Like the HashSet it replaces, this class is not thread safe, DataNode
+ * guards it with its own lock.
+ */
+class CompactChildSet extends AbstractSet<String> {
+
+    static final int MAX_ARRAY_SIZE = 128;
+
+    private static final String[] EMPTY_ARRAY = new String[0];
+
+    /** the sorted children, null once they are kept in hashed */
+    private String[] sorted;
+
+    private int size;
+
+    private HashSet<String> hashed;
+
+    CompactChildSet() {
+        sorted = EMPTY_ARRAY;
+    }
+
+    CompactChildSet(Collection<String> children) {
+        this();
+        for (String child : children) {
+            add(child);
+        }
+    }
+
+    @Override
+    public int size() {
+        return hashed == null ? size : hashed.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (hashed != null) {
+            return hashed.contains(o);
+        }
+        return o instanceof String && Arrays.binarySearch(sorted, 0, size, o) >= 0;
+    }
+
+    @Override
+    public boolean add(String child) {
+        if (hashed != null) {
+            return hashed.add(child);
+        }
+        int index = Arrays.binarySearch(sorted, 0, size, child);
+        if (index >= 0) {
+            return false;
+        }
+        if (size == MAX_ARRAY_SIZE) {
+            hashed = new HashSet<>(Arrays.asList(sorted));
+            sorted = null;
+            size = 0;
+            return hashed.add(child);
+        }
+        index = -index - 1;
+        if (size == sorted.length) {
+            sorted = Arrays.copyOf(sorted, Math.min(Math.max(4, size * 2), MAX_ARRAY_SIZE));
+        }
+        System.arraycopy(sorted, index, sorted, index + 1, size - index);
+        sorted[index] = child;
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (hashed != null) {
+            if (!hashed.remove(o)) {
+                return false;
+            }
+            if (hashed.size() <= MAX_ARRAY_SIZE / 2) {
+                String[] children = hashed.toArray(new String[hashed.size()]);
+                Arrays.sort(children);
+                sorted = children;
+                size = children.length;
+                hashed = null;
+            }
+            return true;
+        }
+        if (!(o instanceof String)) {
+            return false;
+        }
+        int index = Arrays.binarySearch(sorted, 0, size, o);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(sorted, index + 1, sorted, index, size - index - 1);
+        sorted[--size] = null;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        sorted = EMPTY_ARRAY;
+        size = 0;
+        hashed = null;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        if (hashed != null) {
+            return hashed.iterator();
+        }
+        return new Iterator<String>() {
+            int next = 0;
+            int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = next++;
+                return sorted[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                CompactChildSet.this.remove(sorted[last]);
+                next = last;
+                last = -1;
+            }
+        };
+    }
+
+}
@@ -33,7 +33,8 @@
  * This class contains the data for a node in the data tree.
  * <p>
  * A data node contains a reference to its parent, a byte array as its data, an
- * array of ACLs, a stat object, and a set of its children's paths.
+ * array of ACLs, a stat object, and a set of its children's paths. The data
+ * can also be kept outside of the heap, in an {@link OffHeapDataArena}.
  *
  */
 @SuppressFBWarnings({"EI_EXPOSE_REP", "EI_EXPOSE_REP2"})
@@ -46,9 +47,21 @@ public class DataNode implements Record {
     // optimize the performance.
     volatile boolean digestCached;
 
-    /** the data for this datanode */
+    /** the data for this datanode, null when it is kept in the arena */
     byte[] data;
 
+    /**
+     * the arena holding the data of this node, null if the data is kept on
+     * the heap
+     */
+    private final OffHeapDataArena arena;
+
+    /** the handle of the data in the arena */
+    private long dataHandle = OffHeapDataArena.NULL_HANDLE;
+
+    /** the handle of a node whose data has been released */
+    private static final long RELEASED_HANDLE = -3;
+
     /**
      * the acl map long for this datanode. the datatree has the map
      */
@@ -63,8 +76,9 @@ public class DataNode implements Record {
      * the list of children for this node. note that the list of children string
      * does not contain the parent path -- just the last part of the path. This
      * should be synchronized on except deserializing (for speed up issues).
+     * It is null when the node has no children.
      */
-    private Set<String> children = null;
+    private CompactChildSet children = null;
 
     private static final Set<String> EMPTY_SET = Collections.emptySet();
 
@@ -72,7 +86,17 @@ public class DataNode implements Record {
      * default constructor for the datanode
      */
     DataNode() {
-        // default constructor
+        this((OffHeapDataArena) null);
+    }
+
+    /**
+     * create an empty DataNode that keeps its data in an arena
+     *
+     * @param arena
+     *            the arena for the data, or null to keep it on the heap
+     */
+    DataNode(OffHeapDataArena arena) {
+        this.arena = arena;
     }
 
     /**
@@ -86,9 +110,26 @@ public class DataNode implements Record {
      *            the stat for this node.
      */
     public DataNode(byte[] data, Long acl, StatPersisted stat) {
-        this.data = data;
+        this(data, acl, stat, null);
+    }
+
+    /**
+     * create a DataNode that keeps its data in an arena
+     *
+     * @param data
+     *            the data to be set
+     * @param acl
+     *            the acls for this node
+     * @param stat
+     *            the stat for this node.
+     * @param arena
+     *            the arena for the data, or null to keep it on the heap
+     */
+    DataNode(byte[] data, Long acl, StatPersisted stat, OffHeapDataArena arena) {
+        this.arena = arena;
         this.acl = acl;
         this.stat = stat;
+        setData(data);
     }
 
     /**
@@ -100,8 +141,7 @@ public DataNode(byte[] data, Long acl, StatPersisted stat) {
      */
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<String>(8);
+            children = new CompactChildSet();
         }
         return children.add(child);
     }
@@ -116,7 +156,12 @@ public synchronized boolean removeChild(String child) {
         if (children == null) {
             return false;
         }
-        return children.remove(child);
+        boolean removed = children.remove(child);
+        if (children.isEmpty()) {
+            // leaves are the most common nodes, don't keep an empty set
+            children = null;
+        }
+        return removed;
     }
 
     /**
@@ -125,7 +170,7 @@ public synchronized boolean removeChild(String child) {
      * @param children
      */
     public synchronized void setChildren(HashSet<String> children) {
-        this.children = children;
+        this.children = children == null || children.isEmpty() ? null : new CompactChildSet(children);
     }
 
     /**
@@ -151,7 +196,7 @@ public synchronized void copyStat(Stat to) {
         to.setPzxid(stat.getPzxid());
         to.setVersion(stat.getVersion());
         to.setEphemeralOwner(getClientEphemeralOwner(stat));
-        to.setDataLength(data == null ? 0 : data.length);
+        to.setDataLength(getDataLength());
         int numChildren = 0;
         if (this.children != null) {
             numChildren = children.size();
@@ -173,7 +218,7 @@ private static long getClientEphemeralOwner(StatPersisted stat) {
 
     public synchronized void deserialize(InputArchive archive, String tag) throws IOException {
         archive.startRecord("node");
-        data = archive.readBuffer("data");
+        setData(archive.readBuffer("data"));
         acl = archive.readLong("acl");
         stat = new StatPersisted();
         stat.deserialize(archive, "statpersisted");
@@ -182,7 +227,7 @@ public synchronized void deserialize(InputArchive archive, String tag) throws IO
 
     public synchronized void serialize(OutputArchive archive, String tag) throws IOException {
         archive.startRecord(this, "node");
-        archive.writeBuffer(data, "data");
+        archive.writeBuffer(getData(), "data");
         archive.writeLong(acl, "acl");
         stat.serialize(archive, "statpersisted");
         archive.endRecord(this, "node");
@@ -204,8 +249,64 @@ public void setDigest(long digest) {
         this.digest = digest;
     }
 
+    /**
+     * @return the data of this node. If the data is kept in an arena, this
+     *         is a copy of it.
+     */
     public synchronized byte[] getData() {
-        return data;
+        if (arena == null) {
+            return data;
+        }
+        return arena.read(dataHandle);
+    }
+
+    /**
+     * Replace the data of this node. If the data is kept in an arena, it is
+     * copied into it and the slot of the previous data is released.
+     */
+    synchronized void setData(byte[] data) {
+        if (arena == null) {
+            this.data = data;
+            return;
+        }
+        long previous = dataHandle;
+        dataHandle = arena.allocate(data);
+        arena.release(previous);
+    }
+
+    /**
+     * Release the slot of the data of a node removed from the tree. The
+     * node reports null data afterwards.
+     */
+    synchronized void releaseData() {
+        if (arena != null) {
+            arena.release(dataHandle);
+            dataHandle = RELEASED_HANDLE;
+        }
+    }
+
+    /**
+     * @return true if the data of this node has been released
+     */
+    synchronized boolean isDataReleased() {
+        return dataHandle == RELEASED_HANDLE;
+    }
+
+    /**
+     * @return the length of the data of this node, 0 if it is null
+     */
+    public synchronized int getDataLength() {
+        if (arena == null) {
+            return data == null ? 0 : data.length;
+        }
+        return Math.max(arena.length(dataHandle), 0);
+    }
+
+    /**
+     * @return true if the data of this node is kept in an arena
+     */
+    public boolean isOffHeap() {
+        return arena != null;
     }
 
 }
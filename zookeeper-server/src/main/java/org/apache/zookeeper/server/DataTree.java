@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -32,8 +33,18 @@
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -189,6 +200,65 @@ public class DataTree {
 
     private final DigestCalculator digestCalculator;
 
+    public static final String OFF_HEAP_DATA_ENABLED = "zookeeper.offHeapData.enabled";
+    public static final String OFF_HEAP_DATA_SLAB_SIZE = "zookeeper.offHeapData.slabSizeInKb";
+
+    public static final String NODE_TRIE_MAP_ENABLED = "zookeeper.nodeTrieMap.enabled";
+
+    private static boolean offHeapDataEnabled = Boolean.getBoolean(OFF_HEAP_DATA_ENABLED);
+    private static int offHeapDataSlabSize = Integer.getInteger(OFF_HEAP_DATA_SLAB_SIZE, 4096) * 1024;
+    private static boolean nodeTrieMapEnabled = Boolean.getBoolean(NODE_TRIE_MAP_ENABLED);
+
+    static {
+        LOG.info("{} = {}, {} = {}, {} = {}",
+                 OFF_HEAP_DATA_ENABLED, offHeapDataEnabled,
+                 OFF_HEAP_DATA_SLAB_SIZE, offHeapDataSlabSize / 1024,
+                 NODE_TRIE_MAP_ENABLED, nodeTrieMapEnabled);
+    }
+
+    public static void setNodeTrieMapEnabled(boolean enabled) {
+        nodeTrieMapEnabled = enabled;
+    }
+
+    public static boolean isNodeTrieMapEnabled() {
+        return nodeTrieMapEnabled;
+    }
+
+    public static void setOffHeapDataEnabled(boolean enabled) {
+        offHeapDataEnabled = enabled;
+    }
+
+    public static boolean isOffHeapDataEnabled() {
+        return offHeapDataEnabled;
+    }
+
+    /**
+     * @param size the size in bytes of the slabs of the off-heap arena
+     */
+    public static void setOffHeapDataSlabSize(int size) {
+        offHeapDataSlabSize = size;
+    }
+
+    /**
+     * The arena the data of the nodes is kept in, null if it is kept on
+     * the heap. A new arena is started when the tree is deserialized, the
+     * previous one is freed with the nodes that reference it.
+     */
+    private volatile OffHeapDataArena dataArena = newDataArena();
+
+    private static OffHeapDataArena newDataArena() {
+        return offHeapDataEnabled ? new OffHeapDataArena(offHeapDataSlabSize) : null;
+    }
+
+    /**
+     * @return the bytes of direct memory held by the data of the nodes, 0
+     *         if it is kept on the heap
+     */
+    public long getOffHeapDataCapacity() {
+        OffHeapDataArena arena = dataArena;
+        return arena == null ? 0 : arena.getCapacityBytes();
+    }
+
     @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
         HashSet<String> retv = ephemerals.get(sessionId);
@@ -244,7 +314,7 @@ public long approximateDataSize() {
         for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
             DataNode value = entry.getValue();
             synchronized (value) {
-                result += getNodeSize(entry.getKey(), value.data);
+                result += getNodeSize(entry.getKey(), value.getDataLength());
             }
         }
         return result;
@@ -254,7 +324,11 @@ public long approximateDataSize() {
      * Get the size of the node based on path and data length.
      */
     private static long getNodeSize(String path, byte[] data) {
-        return (path == null ? 0 : path.length()) + (data == null ? 0 : data.length);
+        return getNodeSize(path, data == null ? 0 : data.length);
+    }
+
+    private static long getNodeSize(String path, int dataLength) {
+        return (path == null ? 0 : path.length()) + dataLength;
     }
 
     public long cachedApproximateDataSize() {
@@ -284,7 +358,11 @@ public DataTree() {
 
     DataTree(DigestCalculator digestCalculator) {
         this.digestCalculator = digestCalculator;
-        nodes = new NodeHashMapImpl(digestCalculator);
+        if (nodeTrieMapEnabled) {
+            nodes = new NodeTrieMap(digestCalculator);
+        } else {
+            nodes = new NodeHashMapImpl(digestCalculator);
+        }
 
         /* Rather than fight it, let root have an alias */
         nodes.put("", root);
@@ -391,10 +469,10 @@ public void updateCountBytes(String lastPrefix, long bytesDiff, int countDiff) {
             return;
         }
         synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
+            updatedStat = new StatsTrack(new String(node.getData()));
             updatedStat.setCount(updatedStat.getCount() + countDiff);
             updatedStat.setBytes(updatedStat.getBytes() + bytesDiff);
-            node.data = updatedStat.toString().getBytes();
+            node.setData(updatedStat.toString().getBytes());
         }
         // now check if the counts match the quota
         String quotaNode = Quotas.quotaPath(lastPrefix);
@@ -406,7 +484,7 @@ public void updateCountBytes(String lastPrefix, long bytesDiff, int countDiff) {
             return;
         }
         synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+            thisStats = new StatsTrack(new String(node.getData()));
         }
         if (thisStats.getCount() > -1 && (thisStats.getCount() < updatedStat.getCount())) {
             LOG.warn(
@@ -506,10 +584,10 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
                 parent.stat.setCversion(parentCVersion);
                 parent.stat.setPzxid(zxid);
             }
-            DataNode child = new DataNode(data, longval, stat);
+            DataNode child = new DataNode(data, longval, stat, dataArena);
             parent.addChild(childName);
             nodes.postChange(parentName, parent);
-            nodeDataSize.addAndGet(getNodeSize(path, child.data));
+            nodeDataSize.addAndGet(getNodeSize(path, data));
             nodes.put(path, child);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
             if (ephemeralType == EphemeralType.CONTAINER) {
@@ -592,9 +670,12 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
             throw new KeeperException.NoNodeException();
         }
         nodes.remove(path);
+        int bytes;
         synchronized (node) {
             aclCache.removeUsage(node.acl);
-            nodeDataSize.addAndGet(-getNodeSize(path, node.data));
+            bytes = node.getDataLength();
+            nodeDataSize.addAndGet(-getNodeSize(path, bytes));
+            node.releaseData();
         }
 
         // Synchronized to sync the containers and ttls change, probably
@@ -627,11 +708,7 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
         String lastPrefix = getMaxPrefixWithQuota(path);
         if (lastPrefix != null) {
             // ok we have some match and need to update
-            int bytes = 0;
-            synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
-            }
-            updateCountBytes(lastPrefix, bytes, -1);
+            updateCountBytes(lastPrefix, -bytes, -1);
         }
 
         updateWriteStat(path, 0L);
@@ -658,11 +735,11 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         if (n == null) {
             throw new KeeperException.NoNodeException();
         }
-        byte[] lastdata = null;
+        int lastLength;
         synchronized (n) {
-            lastdata = n.data;
+            lastLength = n.getDataLength();
             nodes.preChange(path, n);
-            n.data = data;
+            n.setData(data);
             n.stat.setMtime(time);
             n.stat.setMzxid(zxid);
             n.stat.setVersion(version);
@@ -673,9 +750,9 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         String lastPrefix = getMaxPrefixWithQuota(path);
         long dataBytes = data == null ? 0 : data.length;
         if (lastPrefix != null) {
-            this.updateCountBytes(lastPrefix, dataBytes - (lastdata == null ? 0 : lastdata.length), 0);
+            this.updateCountBytes(lastPrefix, dataBytes - lastLength, 0);
         }
-        nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastdata));
+        nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastLength));
 
         updateWriteStat(path, dataBytes);
         dataWatches.triggerWatch(path, EventType.NodeDataChanged);
@@ -714,11 +791,15 @@ public byte[] getData(String path, Stat stat, Watcher watcher) throws KeeperExce
             throw new KeeperException.NoNodeException();
         }
         synchronized (n) {
+            if (n.isDataReleased()) {
+                // deleted since it was looked up
+                throw new KeeperException.NoNodeException();
+            }
             n.copyStat(stat);
             if (watcher != null) {
                 dataWatches.addWatch(path, watcher);
             }
-            data = n.data;
+            data = n.getData();
         }
         updateReadStat(path, data == null ? 0 : data.length);
         return data;
@@ -1229,7 +1310,7 @@ private void getCounts(String path, Counts counts) {
         synchronized (node) {
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -1260,7 +1341,7 @@ private void updateQuotaForPath(String path) {
         }
         synchronized (node) {
             nodes.preChange(statPath, node);
-            node.data = strack.toString().getBytes();
+            node.setData(strack.toString().getBytes());
             nodes.postChange(statPath, node);
         }
     }
@@ -1320,33 +1401,59 @@ private void setupQuota() {
      * @throws IOException
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
-        String pathString = path.toString();
+        serializeNode(oa, path, null);
+    }
+
+    /**
+     * @param chunks if not null, the nodes are written to its archive and
+     *               oa is ignored
+     */
+    private void serializeNode(OutputArchive oa, StringBuilder path, NodeChunkWriter chunks) throws IOException {
+        String[] children = serializeSingleNode(oa, path.toString(), chunks);
+        if (children == null) {
+            return;
+        }
+        path.append('/');
+        int off = path.length();
+        for (String child : children) {
+            // since this is single buffer being resused
+            // we need
+            // to truncate the previous bytes of string.
+            path.delete(off, Integer.MAX_VALUE);
+            path.append(child);
+            serializeNode(oa, path, chunks);
+        }
+    }
+
+    /**
+     * Serialize a node without its children.
+     *
+     * @return the children of the node at the time it was serialized, or
+     *         null if the node doesn't exist
+     */
+    private String[] serializeSingleNode(OutputArchive oa, String pathString, NodeChunkWriter chunks) throws IOException {
         DataNode node = getNode(pathString);
         if (node == null) {
-            return;
+            return null;
         }
         String[] children = null;
         DataNode nodeCopy;
         synchronized (node) {
             StatPersisted statCopy = new StatPersisted();
             copyStatPersisted(node.stat, statCopy);
-            //we do not need to make a copy of node.data because the contents
-            //are never changed
-            nodeCopy = new DataNode(node.data, node.acl, statCopy);
+            //we do not need to make a copy of the data because the contents
+            //are never changed, data kept off-heap is copied by getData
+            nodeCopy = new DataNode(node.getData(), node.acl, statCopy);
             Set<String> childs = node.getChildren();
             children = childs.toArray(new String[childs.size()]);
         }
-        serializeNodeData(oa, pathString, nodeCopy);
-        path.append('/');
-        int off = path.length();
-        for (String child : children) {
-            // since this is single buffer being resused
-            // we need
-            // to truncate the previous bytes of string.
-            path.delete(off, Integer.MAX_VALUE);
-            path.append(child);
-            serializeNode(oa, path);
+        if (chunks == null) {
+            serializeNodeData(oa, pathString, nodeCopy);
+        } else {
+            serializeNodeData(chunks.getArchive(), pathString, nodeCopy);
+            chunks.endNode();
         }
+        return children;
     }
 
     // visiable for test
@@ -1373,14 +1480,308 @@ public void serialize(OutputArchive oa, String tag) throws IOException {
         serializeNodes(oa);
     }
 
+    /**
+     * Serialize the tree with its nodes split into independently decodable
+     * chunks, see {@link NodeChunkWriter} for the layout. Such a tree can
+     * be loaded in parallel with {@link #deserializeChunked(InputArchive, String, int)}.
+     * <p>
+     * With more than one thread, the subtrees of the top level nodes are
+     * walked and serialized concurrently. Their chunks are written out in
+     * the order of the top level nodes as they become available.
+     *
+     * @param chunkSize the size in bytes after which a chunk is cut
+     * @param threads the number of threads walking the tree
+     */
+    public void serializeChunked(OutputArchive oa, String tag, int chunkSize, int threads) throws IOException {
+        serializeAcls(oa);
+        NodeChunkWriter.ChunkedOutput out = new NodeChunkWriter.ChunkedOutput(oa);
+        if (threads <= 1) {
+            NodeChunkWriter chunks = new NodeChunkWriter(out, chunkSize);
+            serializeNode(oa, new StringBuilder(), chunks);
+            chunks.flush();
+        } else {
+            serializePartitions(out, chunkSize, threads);
+        }
+        // we need to check if clear had been called in between the snapshot.
+        if (root != null) {
+            out.finish();
+        }
+    }
+
+    private static final SerializedChunk END_OF_PARTITION = new SerializedChunk(null, 0);
+
+    private static class SerializedChunk {
+
+        final byte[] data;
+        final int nodeCount;
+
+        SerializedChunk(byte[] data, int nodeCount) {
+            this.data = data;
+            this.nodeCount = nodeCount;
+        }
+
+    }
+
+    /**
+     * Serialize the root on this thread and every top level subtree as a
+     * partition on one of the threads. The partitions hand their chunks
+     * over through bounded queues, so only a few chunks per thread are
+     * held in memory.
+     */
+    private void serializePartitions(NodeChunkWriter.ChunkedOutput out, int chunkSize, int threads) throws IOException {
+        NodeChunkWriter rootChunk = new NodeChunkWriter(out, chunkSize);
+        String[] topLevel = serializeSingleNode(null, "", rootChunk);
+        rootChunk.flush();
+        if (topLevel == null) {
+            return;
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SnapshotWriter-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<BlockingQueue<SerializedChunk>> queues = new ArrayList<>(topLevel.length);
+            List<Future<Void>> futures = new ArrayList<>(topLevel.length);
+            // partitions are started in order, so the one written out next
+            // is always running and never blocked by the later ones
+            for (String child : topLevel) {
+                BlockingQueue<SerializedChunk> queue = new ArrayBlockingQueue<>(4);
+                queues.add(queue);
+                futures.add(executor.submit(() -> {
+                    try {
+                        NodeChunkWriter chunks = new NodeChunkWriter(
+                            (chunk, nodeCount) -> putChunk(queue, new SerializedChunk(chunk, nodeCount)),
+                            chunkSize);
+                        serializeNode(null, new StringBuilder("/").append(child), chunks);
+                        chunks.flush();
+                    } finally {
+                        putChunk(queue, END_OF_PARTITION);
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < topLevel.length; i++) {
+                BlockingQueue<SerializedChunk> queue = queues.get(i);
+                SerializedChunk chunk;
+                while ((chunk = takeChunk(queue)) != END_OF_PARTITION) {
+                    out.write(chunk.data, chunk.nodeCount);
+                }
+                waitFor(futures.get(i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void putChunk(BlockingQueue<SerializedChunk> queue, SerializedChunk chunk) throws IOException {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while serializing the snapshot", e);
+        }
+    }
+
+    private static SerializedChunk takeChunk(BlockingQueue<SerializedChunk> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while serializing the snapshot", e);
+        }
+    }
+
+    /**
+     * The nodes of one chunk of a chunked snapshot after they have been
+     * inserted into the node map.
+     */
+    private static class LoadedChunk {
+
+        final List<String> paths = new ArrayList<>();
+        final Map<Long, List<String>> ephemerals = new HashMap<>();
+        long checksum;
+
+    }
+
+    /**
+     * Deserialize a tree written by {@link #serializeChunked(OutputArchive, String, int)}.
+     * The chunks are decoded and inserted by loadThreads threads while they
+     * are read, the children are linked to their parents once all nodes
+     * are in.
+     */
+    public void deserializeChunked(InputArchive ia, String tag, int loadThreads) throws IOException {
+        aclCache.deserialize(ia);
+        nodes.clear();
+        pTrie.clear();
+        nodeDataSize.set(0);
+        root = null;
+        OffHeapDataArena arena = newDataArena();
+        dataArena = arena;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(loadThreads, r -> {
+            Thread t = new Thread(r, "SnapshotLoader-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        List<LoadedChunk> loaded = new ArrayList<>();
+        try {
+            // bound the number of chunks held in memory ahead of the loaders
+            Semaphore pending = new Semaphore(loadThreads * 2);
+            List<Future<LoadedChunk>> futures = new ArrayList<>();
+            byte[] chunk;
+            while ((chunk = ia.readBuffer("chunk")) != null) {
+                pending.acquireUninterruptibly();
+                final byte[] bytes = chunk;
+                futures.add(executor.submit(() -> {
+                    try {
+                        return insertChunk(bytes, arena);
+                    } finally {
+                        pending.release();
+                    }
+                }));
+            }
+
+            int chunkCount = ia.readInt("chunkCount");
+            if (chunkCount != futures.size()) {
+                throw new IOException("Invalid Datatree, read " + futures.size()
+                                      + " chunks but the index lists " + chunkCount);
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                LoadedChunk loadedChunk = waitFor(futures.get(i));
+                int nodeCount = ia.readInt("nodeCount");
+                long checksum = ia.readLong("checksum");
+                if (nodeCount != loadedChunk.paths.size() || checksum != loadedChunk.checksum) {
+                    throw new IOException("Invalid Datatree, chunk " + i + " does not match the chunk index");
+                }
+                loaded.add(loadedChunk);
+            }
+            if (root == null) {
+                throw new IOException("Invalid Datatree, no root node found");
+            }
+
+            List<Future<Void>> links = new ArrayList<>();
+            for (LoadedChunk loadedChunk : loaded) {
+                links.add(executor.submit(() -> {
+                    linkChunk(loadedChunk);
+                    return null;
+                }));
+            }
+            for (Future<Void> link : links) {
+                waitFor(link);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (LoadedChunk loadedChunk : loaded) {
+            for (Map.Entry<Long, List<String>> entry : loadedChunk.ephemerals.entrySet()) {
+                ephemerals.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue());
+            }
+        }
+
+        // have counted digest for root node with "", ignore here to avoid
+        // counting twice for root node
+        nodes.putWithoutDigest("/", root);
+
+        nodeDataSize.set(approximateDataSize());
+
+        // we are done with deserializing the
+        // the datatree
+        // update the quotas - create path trie
+        // and also update the stat nodes
+        setupQuota();
+
+        aclCache.purgeUnused();
+    }
+
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing the snapshot", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to process snapshot chunk", e.getCause());
+        }
+    }
+
+    /**
+     * Decode the nodes of a chunk and put them into the node map. Safe to
+     * run concurrently for different chunks.
+     */
+    private LoadedChunk insertChunk(byte[] chunk, OffHeapDataArena arena) throws IOException {
+        LoadedChunk loadedChunk = new LoadedChunk();
+        Adler32 checksum = new Adler32();
+        checksum.update(chunk, 0, chunk.length);
+        loadedChunk.checksum = checksum.getValue();
+
+        ByteArrayInputStream bais = new ByteArrayInputStream(chunk);
+        InputArchive chunkArchive = BinaryInputArchive.getArchive(bais);
+        while (bais.available() > 0) {
+            String path = chunkArchive.readString("path");
+            DataNode node = new DataNode(arena);
+            chunkArchive.readRecord(node, "node");
+            nodes.put(path, node);
+            synchronized (node) {
+                aclCache.addUsage(node.acl);
+            }
+            loadedChunk.paths.add(path);
+            if (path.isEmpty()) {
+                root = node;
+                continue;
+            }
+            long eowner = node.stat.getEphemeralOwner();
+            EphemeralType ephemeralType = EphemeralType.get(eowner);
+            if (ephemeralType == EphemeralType.CONTAINER) {
+                containers.add(path);
+            } else if (ephemeralType == EphemeralType.TTL) {
+                ttls.add(path);
+            } else if (eowner != 0) {
+                loadedChunk.ephemerals.computeIfAbsent(eowner, k -> new ArrayList<>()).add(path);
+            }
+        }
+        return loadedChunk;
+    }
+
+    /**
+     * Add the nodes of a loaded chunk to the children of their parents.
+     */
+    private void linkChunk(LoadedChunk loadedChunk) throws IOException {
+        for (String path : loadedChunk.paths) {
+            int lastSlash = path.lastIndexOf('/');
+            if (lastSlash == -1) {
+                continue;
+            }
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException("Invalid Datatree, unable to find "
+                                      + "parent "
+                                      + parentPath
+                                      + " of path "
+                                      + path);
+            }
+            parent.addChild(path.substring(lastSlash + 1));
+        }
+    }
+
     public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.deserialize(ia);
         nodes.clear();
         pTrie.clear();
         nodeDataSize.set(0);
+        OffHeapDataArena arena = newDataArena();
+        dataArena = arena;
         String path = ia.readString("path");
         while (!"/".equals(path)) {
-            DataNode node = new DataNode();
+            DataNode node = new DataNode(arena);
             ia.readRecord(node, "node");
             nodes.put(path, node);
             synchronized (node) {
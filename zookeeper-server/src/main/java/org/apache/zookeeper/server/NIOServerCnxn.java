@@ -32,6 +32,8 @@
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.ClientCnxn;
@@ -61,9 +63,22 @@ public class NIOServerCnxn extends ServerCnxn {
 
     private final SocketChannel sock;
 
-    private final SelectorThread selectorThread;
+    /** the selector thread and key of the connection, until it migrates */
+    private volatile SelectorThread selectorThread;
 
-    private final SelectionKey sk;
+    private volatile SelectionKey sk;
+
+    /** whether the connection is closed, so no longer counted by its selector thread, guarded by this */
+    private boolean closed;
+
+    /**
+     * The load put on the selector thread by this connection, see
+     * {@link NIOServerCnxnFactory#loadOf(long, long)}.
+     */
+    private final AtomicLong ioLoad = new AtomicLong();
+
+    /** the load when last sampled, only used by the selector thread */
+    private long sampledLoad;
 
     private boolean initialized;
 
@@ -73,6 +88,9 @@ public class NIOServerCnxn extends ServerCnxn {
 
     private final Queue<ByteBuffer> outgoingBuffers = new LinkedBlockingQueue<ByteBuffer>();
 
+    /** the direct buffers queued in outgoingBuffers */
+    private final AtomicInteger directOutgoingBuffers = new AtomicInteger();
+
     private int sessionTimeout;
 
     /**
@@ -108,7 +126,7 @@ public NIOServerCnxn(ZooKeeperServer zk, SocketChannel sock, SelectionKey sk, NI
      * close the underlying machinery (like socket, selectorkey, etc...)
      */
     public void sendCloseSession() {
-        sendBuffer(ServerCnxnFactory.closeConn);
+        sendBufferInOrder(ServerCnxnFactory.closeConn);
     }
 
     /**
@@ -145,6 +163,9 @@ public void sendBuffer(ByteBuffer... buffers) {
 
         synchronized (outgoingBuffers) {
             for (ByteBuffer buffer : buffers) {
+                if (buffer.isDirect()) {
+                    directOutgoingBuffers.incrementAndGet();
+                }
                 outgoingBuffers.add(buffer);
             }
             outgoingBuffers.add(packetSentinel);
@@ -212,10 +233,92 @@ public void enableSelectable() {
         selectable.set(true);
     }
 
+    /**
+     * Whether an interest ops update of this connection is queued on the
+     * selector thread. A burst of packets, such as the notifications of a
+     * watch storm, queues a single update and wakes the selector up once,
+     * the packets are then written together by the next handleWrite.
+     */
+    private final AtomicBoolean interestOpsUpdatePending = new AtomicBoolean(false);
+
     private void requestInterestOpsUpdate() {
-        if (isSelectable()) {
-            selectorThread.addInterestOpsUpdateRequest(sk);
+        if (isSelectable() && interestOpsUpdatePending.compareAndSet(false, true)) {
+            if (!selectorThread.addInterestOpsUpdateRequest(sk)) {
+                interestOpsUpdatePending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Called by the selector thread before it reads the interest ops for an
+     * update request, so changes made from now on queue a new request.
+     */
+    void clearInterestOpsUpdatePending() {
+        interestOpsUpdatePending.set(false);
+    }
+
+    @Override
+    protected void packetReceived(long bytes) {
+        super.packetReceived(bytes);
+        recordIO(1, bytes);
+    }
+
+    private void recordIO(long requests, long bytes) {
+        ioLoad.addAndGet(NIOServerCnxnFactory.loadOf(requests, bytes));
+        selectorThread.recordIO(requests, bytes);
+    }
+
+    /**
+     * @return the load put on the selector thread since the last sample
+     */
+    long sampleLoad() {
+        long load = ioLoad.get();
+        long delta = load - sampledLoad;
+        sampledLoad = load;
+        return delta;
+    }
+
+    /**
+     * @return whether the connection can migrate to another selector thread:
+     *         no I/O is in progress and it has no request in flight nor
+     *         response to send
+     */
+    boolean isIdle() {
+        return initialized
+               && isSelectable()
+               && !throttled.get()
+               && outgoingBuffers.isEmpty()
+               && getOutstandingRequests() == 0;
+    }
+
+    SocketChannel getSocketChannel() {
+        return sock;
+    }
+
+    SelectorThread getSelectorThread() {
+        return selectorThread;
+    }
+
+    SelectionKey getSelectionKey() {
+        return sk;
+    }
+
+    /**
+     * Move the connection to the key of another selector thread. Called by
+     * that thread while the connection is not selectable, so interest ops
+     * updates requested from now on go to the new key, and the connection
+     * is counted by the new thread.
+     */
+    void migrateTo(SelectionKey key, SelectorThread thread) {
+        synchronized (this) {
+            if (!closed) {
+                selectorThread.decrementConnectionCount();
+                thread.incrementConnectionCount();
+            }
+            this.selectorThread = thread;
         }
+        this.sk = key;
+        clearInterestOpsUpdatePending();
     }
 
     void handleWrite(SelectionKey k) throws IOException {
@@ -230,11 +333,11 @@ void handleWrite(SelectionKey k) throws IOException {
          * send.
          */
         ByteBuffer directBuffer = NIOServerCnxnFactory.getDirectBuffer();
-        if (directBuffer == null) {
+        if (directBuffer == null || directOutgoingBuffers.get() > 0) {
             ByteBuffer[] bufferList = new ByteBuffer[outgoingBuffers.size()];
             // Use gathered write call. This updates the positions of the
             // byte buffers to reflect the bytes that were written out.
-            sock.write(outgoingBuffers.toArray(bufferList));
+            recordIO(0, sock.write(outgoingBuffers.toArray(bufferList)));
 
             // Remove the buffers that we have sent
             ByteBuffer bb;
@@ -248,7 +351,7 @@ void handleWrite(SelectionKey k) throws IOException {
                 if (bb.remaining() > 0) {
                     break;
                 }
-                outgoingBuffers.remove();
+                removeSentBuffer();
             }
         } else {
             directBuffer.clear();
@@ -283,6 +386,7 @@ void handleWrite(SelectionKey k) throws IOException {
             directBuffer.flip();
 
             int sent = sock.write(directBuffer);
+            recordIO(0, sent);
 
             ByteBuffer bb;
 
@@ -304,11 +408,25 @@ void handleWrite(SelectionKey k) throws IOException {
                 }
                 /* We've sent the whole buffer, so drop the buffer */
                 sent -= bb.remaining();
-                outgoingBuffers.remove();
+                removeSentBuffer();
             }
         }
     }
 
+    /**
+     * Drop the buffer at the head of outgoingBuffers once sent. Responses
+     * served from the response cache are already in direct buffers, they
+     * are written straight from there rather than copied into the thread's
+     * direct buffer first, and handed back to the cache once sent.
+     */
+    private void removeSentBuffer() {
+        ByteBuffer bb = outgoingBuffers.remove();
+        if (bb.isDirect()) {
+            directOutgoingBuffers.decrementAndGet();
+            releaseSentBuffer(bb);
+        }
+    }
+
     /**
      * Only used in order to allow testing
      */
@@ -588,6 +706,13 @@ private void close() {
             return;
         }
 
+        synchronized (this) {
+            closed = true;
+            if (selectorThread != null) {
+                selectorThread.decrementConnectionCount();
+            }
+        }
+
         if (zkServer != null) {
             zkServer.removeCnxn(this);
         }
@@ -671,7 +796,7 @@ public int sendResponse(ReplyHeader h, Record r, String tag, String cacheKey, St
             ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
             responseSize = bb[0].getInt();
             bb[0].rewind();
-            sendBuffer(bb);
+            sendReply(h, bb);
             decrOutstandingAndCheckThrottle(h);
         } catch (Exception e) {
             LOG.warn("Unexpected exception. Destruction averted.", e);
@@ -31,13 +31,20 @@
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.zookeeper.metrics.MetricsContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -80,6 +87,27 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
     public static final String ZOOKEEPER_NIO_DIRECT_BUFFER_BYTES = "zookeeper.nio.directBufferBytes";
     /** Default worker pool shutdown timeout in ms: 5000 (5s) */
     public static final String ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT = "zookeeper.nio.shutdownTimeout";
+    /**
+     * Default: false, connections are assigned to the selector threads
+     * round-robin and never move. When true, they are assigned to the least
+     * loaded selector thread, and idle connections migrate from the most to
+     * the least loaded one when the load is skewed.
+     */
+    public static final String ZOOKEEPER_NIO_SELECTOR_BALANCE = "zookeeper.nio.selectorBalance";
+    /** Default interval between two samples of the selector loads in ms: 1000 (1s) */
+    public static final String ZOOKEEPER_NIO_SELECTOR_BALANCE_INTERVAL = "zookeeper.nio.selectorBalanceIntervalMs";
+
+    /**
+     * Connections migrate when the load of the most loaded selector thread
+     * is more than this ratio of the load of the least loaded one.
+     */
+    static final double SELECTOR_IMBALANCE_RATIO = 1.5;
+
+    /** loads smaller than this, in bytes per second, are not rebalanced */
+    static final double MIN_REBALANCED_LOAD = 1024 * 1024;
+
+    /** the most connections migrating off a selector thread per interval */
+    static final int MAX_MIGRATIONS_PER_INTERVAL = 16;
 
     static {
         Thread.setDefaultUncaughtExceptionHandler((t, e) -> LOG.error("Thread {} died", t, e));
@@ -273,11 +301,7 @@ private boolean doAccept() {
 
                 sc.configureBlocking(false);
 
-                // Round-robin assign this connection to a selector thread
-                if (!selectorIterator.hasNext()) {
-                    selectorIterator = selectorThreads.iterator();
-                }
-                SelectorThread selectorThread = selectorIterator.next();
+                SelectorThread selectorThread = nextSelectorThread();
                 if (!selectorThread.addAcceptedConnection(sc)) {
                     throw new IOException("Unable to add connection to selector queue"
                                           + (stopped ? " (shutdown in progress)" : ""));
@@ -292,6 +316,50 @@ private boolean doAccept() {
             return accepted;
         }
 
+        private SelectorThread nextSelectorThread() {
+            if (selectorBalance) {
+                return leastLoadedSelectorThread(selectorThreads);
+            }
+            // Round-robin assign this connection to a selector thread
+            if (!selectorIterator.hasNext()) {
+                selectorIterator = selectorThreads.iterator();
+            }
+            return selectorIterator.next();
+        }
+
+    }
+
+    /**
+     * The load put on a selector thread, in bytes: each request weighs
+     * as much as a kilobyte on top of the bytes read and written.
+     */
+    static long loadOf(long requests, long bytes) {
+        return requests * 1024 + bytes;
+    }
+
+    /**
+     * @return the selector thread with the least load, counting the load
+     *         expected from the connections assigned since the last sample,
+     *         or with the fewest connections among equally loaded ones
+     */
+    private static SelectorThread leastLoadedSelectorThread(Collection<SelectorThread> selectorThreads) {
+        SelectorThread leastLoaded = null;
+        double totalLoad = 0;
+        int totalConnections = 0;
+        for (SelectorThread thread : selectorThreads) {
+            totalLoad += thread.getLoad();
+            totalConnections += thread.getConnectionCount();
+            if (leastLoaded == null
+                || thread.getExpectedLoad() < leastLoaded.getExpectedLoad()
+                || (thread.getExpectedLoad() == leastLoaded.getExpectedLoad()
+                    && thread.getConnectionCount() < leastLoaded.getConnectionCount())) {
+                leastLoaded = thread;
+            }
+        }
+        // a burst of connections accepted between two samples is spread
+        // across the threads rather than sent to the same one
+        leastLoaded.addExpectedLoad(Math.max(1, totalConnections > 0 ? totalLoad / totalConnections : 0));
+        return leastLoaded;
     }
 
     /**
@@ -301,10 +369,13 @@ private boolean doAccept() {
      * any non-threadsafe or potentially blocking calls on the selector
      * (registering new connections and reading/writing interest ops).
      *
-     * Assignment of a connection to a SelectorThread is permanent and only
-     * one SelectorThread will ever interact with the connection. There are
-     * 1-N SelectorThreads, with connections evenly apportioned between the
-     * SelectorThreads.
+     * A connection is assigned to a single SelectorThread at a time. There
+     * are 1-N SelectorThreads, with connections evenly apportioned between
+     * the SelectorThreads, either round-robin or, with
+     * zookeeper.nio.selectorBalance, by load. In the latter case, an idle
+     * connection may migrate to another SelectorThread: the thread it leaves
+     * cancels its key and hands it over to the other thread, which
+     * registers it on its own selector.
      *
      * If there is a worker thread pool, when a connection has I/O to perform
      * the SelectorThread removes it from selection by clearing its interest
@@ -320,12 +391,120 @@ class SelectorThread extends AbstractSelectThread {
         private final int id;
         private final Queue<SocketChannel> acceptedQueue;
         private final Queue<SelectionKey> updateQueue;
+        private final Queue<NIOServerCnxn> migratedQueue;
+
+        /** the connections to migrate to another thread, if any */
+        private final AtomicReference<Migration> migration = new AtomicReference<>();
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        /** the request and byte rates over the last sample interval */
+        private volatile double requestRate;
+        private volatile double byteRate;
+
+        /** the load of the connections assigned since the last sample */
+        private volatile double assignedLoad;
+
+        /**
+         * the connections registered on this thread and not closed yet,
+         * including the ones migrating away until the other thread
+         * registers them
+         */
+        private final AtomicInteger connectionCount = new AtomicInteger();
+
+        /** the counts at the last sample, only used by the balancer thread */
+        private long sampledRequests;
+        private long sampledBytes;
+        private long sampleNanos = System.nanoTime();
+
+        /** when the connection loads were last sampled, only used by this thread */
+        private long connectionSampleNanos = System.nanoTime();
 
         public SelectorThread(int id) throws IOException {
             super("NIOServerCxnFactory.SelectorThread-" + id);
             this.id = id;
             acceptedQueue = new LinkedBlockingQueue<SocketChannel>();
             updateQueue = new LinkedBlockingQueue<SelectionKey>();
+            migratedQueue = new LinkedBlockingQueue<NIOServerCnxn>();
+        }
+
+        void recordIO(long requests, long bytes) {
+            if (requests > 0) {
+                this.requests.add(requests);
+            }
+            this.bytes.add(bytes);
+        }
+
+        /**
+         * Compute the rates since the last sample.
+         */
+        void sampleLoad(long now) {
+            double seconds = Math.max(1, now - sampleNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+            long r = requests.sum();
+            long b = bytes.sum();
+            requestRate = (r - sampledRequests) / seconds;
+            byteRate = (b - sampledBytes) / seconds;
+            sampledRequests = r;
+            sampledBytes = b;
+            sampleNanos = now;
+            assignedLoad = 0;
+        }
+
+        double getRequestRate() {
+            return requestRate;
+        }
+
+        double getByteRate() {
+            return byteRate;
+        }
+
+        /**
+         * @return the load over the last sample interval, in bytes per second
+         */
+        double getLoad() {
+            return requestRate * 1024 + byteRate;
+        }
+
+        double getExpectedLoad() {
+            return getLoad() + assignedLoad;
+        }
+
+        void addExpectedLoad(double load) {
+            assignedLoad += load;
+        }
+
+        int getConnectionCount() {
+            return connectionCount.get();
+        }
+
+        void incrementConnectionCount() {
+            connectionCount.incrementAndGet();
+        }
+
+        void decrementConnectionCount() {
+            connectionCount.decrementAndGet();
+        }
+
+        /**
+         * Ask this thread to move idle connections carrying up to the given
+         * load to another thread.
+         */
+        void requestMigration(SelectorThread target, double load) {
+            migration.set(new Migration(target, load));
+            wakeupSelector();
+        }
+
+        /**
+         * Place a connection migrating from another thread onto a queue for
+         * registering on this thread's selector.
+         */
+        boolean addMigratedConnection(NIOServerCnxn cnxn) {
+            if (stopped || !migratedQueue.offer(cnxn)) {
+                return false;
+            }
+            wakeupSelector();
+            return true;
         }
 
         /**
@@ -367,7 +546,9 @@ public void run() {
                     try {
                         select();
                         processAcceptedConnections();
+                        processMigratedConnections();
                         processInterestOpsUpdateRequests();
+                        processMigration();
                     } catch (RuntimeException e) {
                         LOG.warn("Ignoring unexpected runtime exception", e);
                     } catch (Exception e) {
@@ -388,6 +569,10 @@ public void run() {
                 while ((accepted = acceptedQueue.poll()) != null) {
                     fastCloseSock(accepted);
                 }
+                NIOServerCnxn migrated;
+                while ((migrated = migratedQueue.poll()) != null) {
+                    migrated.close(ServerCnxn.DisconnectReason.SERVER_SHUTDOWN);
+                }
                 updateQueue.clear();
             } finally {
                 closeSelector();
@@ -454,6 +639,7 @@ private void processAcceptedConnections() {
                     key = accepted.register(selector, SelectionKey.OP_READ);
                     NIOServerCnxn cnxn = createConnection(accepted, key, this);
                     key.attach(cnxn);
+                    incrementConnectionCount();
                     addCnxn(cnxn);
                 } catch (IOException e) {
                     // register, createConnection
@@ -471,15 +657,158 @@ private void processInterestOpsUpdateRequests() {
             SelectionKey key;
             while (!stopped && (key = updateQueue.poll()) != null) {
                 if (!key.isValid()) {
+                    // closed, or migrated to another thread
                     cleanupSelectionKey(key);
+                    continue;
                 }
                 NIOServerCnxn cnxn = (NIOServerCnxn) key.attachment();
+                cnxn.clearInterestOpsUpdatePending();
                 if (cnxn.isSelectable()) {
                     key.interestOps(cnxn.getInterestOps());
                 }
             }
         }
 
+        /**
+         * Register the connections migrating from other threads on this
+         * thread's selector, and resume their selection.
+         */
+        private void processMigratedConnections() {
+            NIOServerCnxn cnxn;
+            while (!stopped && (cnxn = migratedQueue.poll()) != null) {
+                try {
+                    SelectionKey key = cnxn.getSocketChannel().register(selector, 0, cnxn);
+                    cnxn.migrateTo(key, this);
+                    cnxn.enableSelectable();
+                    // picks up the writes queued while the connection was
+                    // not selectable
+                    key.interestOps(cnxn.getInterestOps());
+                    ServerMetrics.getMetrics().NIO_CONNECTIONS_MIGRATED.add(1);
+                } catch (IOException | RuntimeException e) {
+                    // register, closed while migrating
+                    LOG.debug("Unable to migrate connection {}", cnxn, e);
+                    cnxn.close(ServerCnxn.DisconnectReason.CONNECTION_MIGRATION_FAILED);
+                }
+            }
+        }
+
+        /**
+         * Hand the idle connections with the most load over to the thread
+         * asked for by the balancer, without moving more than the requested
+         * load so the imbalance doesn't flip over.
+         */
+        private void processMigration() {
+            Migration m = migration.getAndSet(null);
+            if (m == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - connectionSampleNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+            connectionSampleNanos = now;
+
+            List<NIOServerCnxn> idle = new ArrayList<>();
+            Map<NIOServerCnxn, Double> loads = new HashMap<>();
+            for (SelectionKey key : selector.keys()) {
+                NIOServerCnxn cnxn = (NIOServerCnxn) key.attachment();
+                if (cnxn == null || !key.isValid()) {
+                    continue;
+                }
+                double load = cnxn.sampleLoad() / seconds;
+                if (load > 0 && cnxn.isIdle()) {
+                    idle.add(cnxn);
+                    loads.put(cnxn, load);
+                }
+            }
+            idle.sort((a, b) -> Double.compare(loads.get(b), loads.get(a)));
+
+            double remaining = m.load;
+            int migrated = 0;
+            for (NIOServerCnxn cnxn : idle) {
+                if (migrated >= MAX_MIGRATIONS_PER_INTERVAL || stopped) {
+                    break;
+                }
+                double load = loads.get(cnxn);
+                if (load > remaining) {
+                    continue;
+                }
+                // stop selecting it here, the target thread resumes it
+                cnxn.disableSelectable();
+                cleanupSelectionKey(cnxn.getSelectionKey());
+                if (!m.target.addMigratedConnection(cnxn)) {
+                    cnxn.close(ServerCnxn.DisconnectReason.CONNECTION_MIGRATION_FAILED);
+                    continue;
+                }
+                remaining -= load;
+                migrated++;
+            }
+            if (migrated > 0) {
+                LOG.debug("Migrated {} connections from selector thread {} to {}", migrated, id, m.target.id);
+            }
+        }
+
+    }
+
+    /**
+     * A request to a selector thread to move some of its load to another.
+     */
+    private static class Migration {
+
+        final SelectorThread target;
+        final double load;
+
+        Migration(SelectorThread target, double load) {
+            this.target = target;
+            this.load = load;
+        }
+
+    }
+
+    /**
+     * Samples the load of the selector threads at a fixed interval and, with
+     * zookeeper.nio.selectorBalance, asks the most loaded thread to migrate
+     * idle connections to the least loaded one when the load is skewed.
+     */
+    private class SelectorBalancerThread extends ZooKeeperThread {
+
+        SelectorBalancerThread() {
+            super("NIOServerCxnFactory.SelectorBalancer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (!stopped) {
+                    Thread.sleep(selectorBalanceIntervalMs);
+                    long now = System.nanoTime();
+                    for (SelectorThread thread : selectorThreads) {
+                        thread.sampleLoad(now);
+                    }
+                    if (selectorBalance && selectorThreads.size() > 1) {
+                        rebalance();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.info("SelectorBalancerThread interrupted");
+            }
+        }
+
+        private void rebalance() {
+            SelectorThread most = null;
+            SelectorThread least = null;
+            for (SelectorThread thread : selectorThreads) {
+                if (most == null || thread.getLoad() > most.getLoad()) {
+                    most = thread;
+                }
+                if (least == null || thread.getLoad() < least.getLoad()) {
+                    least = thread;
+                }
+            }
+            double gap = most.getLoad() - least.getLoad();
+            if (gap >= MIN_REBALANCED_LOAD && most.getLoad() > SELECTOR_IMBALANCE_RATIO * least.getLoad()) {
+                most.requestMigration(least, gap / 2);
+            }
+        }
+
     }
 
     /**
@@ -601,6 +930,8 @@ public static ByteBuffer getDirectBuffer() {
     private int numSelectorThreads;
     private int numWorkerThreads;
     private long workerShutdownTimeoutMS;
+    private boolean selectorBalance;
+    private long selectorBalanceIntervalMs;
 
     /**
      * Construct a new server connection factory which will accept an unlimited number
@@ -612,6 +943,8 @@ public NIOServerCnxnFactory() {
 
     private volatile boolean stopped = true;
     private ConnectionExpirerThread expirerThread;
+    private SelectorBalancerThread balancerThread;
+    private boolean selectorMetricsRegistered;
     private AcceptThread acceptThread;
     private final Set<SelectorThread> selectorThreads = new HashSet<SelectorThread>();
 
@@ -643,12 +976,19 @@ public void configure(InetSocketAddress addr, int maxcc, int backlog, boolean se
 
         numWorkerThreads = Integer.getInteger(ZOOKEEPER_NIO_NUM_WORKER_THREADS, 2 * numCores);
         workerShutdownTimeoutMS = Long.getLong(ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT, 5000);
+        selectorBalance = Boolean.getBoolean(ZOOKEEPER_NIO_SELECTOR_BALANCE);
+        selectorBalanceIntervalMs = Long.getLong(ZOOKEEPER_NIO_SELECTOR_BALANCE_INTERVAL, 1000);
+        if (selectorBalanceIntervalMs <= 0) {
+            throw new IOException(ZOOKEEPER_NIO_SELECTOR_BALANCE_INTERVAL + " must be positive");
+        }
+        balancerThread = new SelectorBalancerThread();
 
         String logMsg = "Configuring NIO connection handler with "
             + (sessionlessCnxnTimeout / 1000) + "s sessionless connection timeout, "
             + numSelectorThreads + " selector thread(s), "
             + (numWorkerThreads > 0 ? numWorkerThreads : "no") + " worker threads, and "
-            + (directBufferBytes == 0 ? "gathered writes." : ("" + (directBufferBytes / 1024) + " kB direct buffers."));
+            + (directBufferBytes == 0 ? "gathered writes" : ("" + (directBufferBytes / 1024) + " kB direct buffers"))
+            + (selectorBalance ? ", and load balanced selector threads." : ".");
         LOG.info(logMsg);
         for (int i = 0; i < numSelectorThreads; ++i) {
             selectorThreads.add(new SelectorThread(i));
@@ -734,6 +1074,35 @@ public void start() {
         if (expirerThread.getState() == Thread.State.NEW) {
             expirerThread.start();
         }
+        if (balancerThread.getState() == Thread.State.NEW) {
+            balancerThread.start();
+            registerSelectorMetrics();
+        }
+    }
+
+    private void registerSelectorMetrics() {
+        selectorMetricsRegistered = true;
+        MetricsContext rootContext = ServerMetrics.getMetrics().getMetricsProvider().getRootContext();
+        for (SelectorThread thread : selectorThreads) {
+            String prefix = "nio_selector_" + thread.id + "_";
+            rootContext.registerGauge(prefix + "connections", thread::getConnectionCount);
+            rootContext.registerGauge(prefix + "requests_per_sec", thread::getRequestRate);
+            rootContext.registerGauge(prefix + "bytes_per_sec", thread::getByteRate);
+        }
+    }
+
+    private void unregisterSelectorMetrics() {
+        if (!selectorMetricsRegistered) {
+            return;
+        }
+        selectorMetricsRegistered = false;
+        MetricsContext rootContext = ServerMetrics.getMetrics().getMetricsProvider().getRootContext();
+        for (SelectorThread thread : selectorThreads) {
+            String prefix = "nio_selector_" + thread.id + "_";
+            rootContext.unregisterGauge(prefix + "connections");
+            rootContext.unregisterGauge(prefix + "requests_per_sec");
+            rootContext.unregisterGauge(prefix + "bytes_per_sec");
+        }
     }
 
     @Override
@@ -872,6 +1241,9 @@ public void stop() {
         if (expirerThread != null) {
             expirerThread.interrupt();
         }
+        if (balancerThread != null) {
+            balancerThread.interrupt();
+        }
         for (SelectorThread thread : selectorThreads) {
             if (thread.isAlive()) {
                 thread.wakeupSelector();
@@ -895,6 +1267,8 @@ public void shutdown() {
             // close all open connections
             closeAll(ServerCnxn.DisconnectReason.SERVER_SHUTDOWN);
 
+            unregisterSelectorMetrics();
+
             if (login != null) {
                 login.shutdown();
             }
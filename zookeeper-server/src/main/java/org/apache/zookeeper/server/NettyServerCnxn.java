@@ -25,6 +25,7 @@
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import java.io.BufferedWriter;
@@ -42,6 +43,7 @@
 import org.apache.jute.Record;
 import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.ReplyHeader;
@@ -82,6 +84,7 @@ public enum HandshakeState {
     NettyServerCnxn(Channel channel, ZooKeeperServer zks, NettyServerCnxnFactory factory) {
         super(zks);
         this.channel = channel;
+        this.flushNotifications = this::flushNotifications;
         this.closingChannel = false;
         this.factory = factory;
         if (this.factory.login != null) {
@@ -171,7 +174,13 @@ public void process(WatchedEvent event) {
         WatcherEvent e = event.getWrapper();
 
         try {
-            int responseSize = sendResponse(h, e, "notification");
+            if (closingChannel || !channel.isOpen()) {
+                return;
+            }
+            ByteBuffer[] bb = serialize(h, e, "notification", null, null, ZooDefs.OpCode.error);
+            int responseSize = bb[0].getInt();
+            bb[0].rewind();
+            sendNotification(bb);
             ServerMetrics.getMetrics().WATCH_BYTES.add(responseSize);
         } catch (IOException e1) {
             LOG.debug("Problem sending to {}", getRemoteSocketAddress(), e1);
@@ -190,7 +199,7 @@ public int sendResponse(ReplyHeader h, Record r, String tag,
         ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
         int responseSize = bb[0].getInt();
         bb[0].rewind();
-        sendBuffer(bb);
+        sendReply(h, bb);
         decrOutstandingAndCheckThrottle(h);
         return responseSize;
     }
@@ -214,7 +223,77 @@ public void sendBuffer(ByteBuffer... buffers) {
             close(DisconnectReason.CLIENT_CLOSED_CONNECTION);
             return;
         }
-        channel.writeAndFlush(Unpooled.wrappedBuffer(buffers)).addListener(onSendBufferDoneListener);
+        ChannelFuture future = channel.writeAndFlush(wrap(buffers)).addListener(onSendBufferDoneListener);
+        for (ByteBuffer b : buffers) {
+            if (b.isDirect()) {
+                // hand a cached response back once written, or dropped
+                future.addListener(f -> releaseSentBuffer(b));
+            }
+        }
+    }
+
+    /**
+     * Whether a flush of the notifications written so far is queued on the
+     * event loop, only accessed from the event loop.
+     */
+    private boolean notificationFlushPending;
+
+    // created once the channel is set, a single instance to reduce GC
+    private final Runnable flushNotifications;
+
+    private void flushNotifications() {
+        notificationFlushPending = false;
+        channel.flush();
+    }
+
+    /**
+     * Send a watch notification. Unlike responses, notifications are
+     * written without flushing, and a single flush is queued behind them on
+     * the event loop, so the notifications fired at this connection by a
+     * watch storm go out in one write rather than one per event.
+     */
+    private void sendNotification(ByteBuffer... buffers) {
+        ByteBuf buf = wrap(buffers);
+        EventLoop eventLoop = channel.eventLoop();
+        Runnable write = () -> {
+            channel.write(buf).addListener(onSendBufferDoneListener);
+            if (!notificationFlushPending) {
+                notificationFlushPending = true;
+                eventLoop.execute(flushNotifications);
+            }
+        };
+        if (eventLoop.inEventLoop()) {
+            write.run();
+        } else {
+            eventLoop.execute(write);
+        }
+    }
+
+    /**
+     * Wrap the buffers of a response without copying them. If some of them
+     * are direct, such as a response shared with the response cache, the
+     * heap ones are copied to direct buffers here. Otherwise the transport
+     * would copy the whole response, as it only writes direct buffers.
+     */
+    private ByteBuf wrap(ByteBuffer... buffers) {
+        boolean direct = false;
+        for (ByteBuffer b : buffers) {
+            direct |= b.isDirect();
+        }
+        if (!direct) {
+            return Unpooled.wrappedBuffer(buffers);
+        }
+        CompositeByteBuf composite = channel.alloc().compositeDirectBuffer(buffers.length);
+        for (ByteBuffer b : buffers) {
+            if (b.isDirect()) {
+                composite.addComponent(true, Unpooled.wrappedBuffer(b));
+            } else {
+                ByteBuf copy = channel.alloc().directBuffer(b.remaining());
+                copy.writeBytes(b.duplicate());
+                composite.addComponent(true, copy);
+            }
+        }
+        return composite;
     }
 
     /**
@@ -601,7 +680,7 @@ public InetSocketAddress getRemoteSocketAddress() {
      */
     @Override
     public void sendCloseSession() {
-        sendBuffer(ServerCnxnFactory.closeConn);
+        sendBufferInOrder(ServerCnxnFactory.closeConn);
     }
 
     @Override
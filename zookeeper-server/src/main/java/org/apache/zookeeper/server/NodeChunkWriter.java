@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Adler32;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+
+/**
+ * Writes the nodes of a {@link DataTree} as a sequence of independently
+ * decodable chunks, so that they can be decoded and inserted in parallel
+ * when the snapshot is loaded. Several writers may produce chunks
+ * concurrently, for different subtrees, as long as their chunks are handed
+ * to the {@link ChunkedOutput} from one thread.
+ * <p>
+ * The layout written by {@link ChunkedOutput} is:
+ * <blockquote><pre>
+ * Nodes:
+ *     Chunk* EndOfChunks ChunkIndex
+ *
+ * Chunk:
+ *     buffer holding a sequence of (path, DataNode) records
+ *
+ * EndOfChunks:
+ *     buffer of length -1
+ *
+ * ChunkIndex:
+ *     chunkCount 4bytes, then for each chunk:
+ *     nodeCount 4bytes, checksum 8bytes (Adler32 of the chunk buffer)
+ * </pre></blockquote>
+ * A chunk is cut before the node which would take it over the chunk size,
+ * which is capped at jute.maxbuffer, so that every chunk can be read back as
+ * a buffer. A node bigger than the chunk size gets a chunk of its own.
+ */
+class NodeChunkWriter {
+
+    /**
+     * Receives the chunks cut by a {@link NodeChunkWriter}.
+     */
+    interface ChunkSink {
+
+        void write(byte[] chunk, int nodeCount) throws IOException;
+
+    }
+
+    private final ChunkSink sink;
+    private final int chunkSize;
+
+    private final ByteArrayOutputStream buffer;
+    private final BinaryOutputArchive archive;
+    private int nodesInChunk;
+    // the size of the chunk up to the end of its last complete node
+    private int chunkEnd;
+
+    /**
+     * @param sink where the chunks are written to
+     * @param chunkSize the size in bytes after which a chunk is cut
+     */
+    NodeChunkWriter(ChunkSink sink, int chunkSize) {
+        this.sink = sink;
+        this.chunkSize = Math.min(chunkSize, BinaryInputArchive.maxBuffer);
+        this.buffer = new ByteArrayOutputStream(this.chunkSize);
+        this.archive = BinaryOutputArchive.getArchive(buffer);
+    }
+
+    /**
+     * @return the archive the records of the current chunk are written to
+     */
+    OutputArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Called after a node has been written to {@link #getArchive()}. Cuts
+     * the chunk before the node if the node took it over the chunk size,
+     * and after it once the chunk reached the chunk size.
+     */
+    void endNode() throws IOException {
+        int size = buffer.size();
+        if (size > chunkSize && nodesInChunk > 0) {
+            // move the node to a chunk of its own
+            byte[] bytes = buffer.toByteArray();
+            sink.write(Arrays.copyOf(bytes, chunkEnd), nodesInChunk);
+            buffer.reset();
+            buffer.write(bytes, chunkEnd, size - chunkEnd);
+            nodesInChunk = 0;
+        }
+        nodesInChunk++;
+        chunkEnd = buffer.size();
+        if (chunkEnd >= chunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Cut the current chunk, if it holds any node.
+     */
+    void flush() throws IOException {
+        if (nodesInChunk == 0) {
+            return;
+        }
+        sink.write(buffer.toByteArray(), nodesInChunk);
+        buffer.reset();
+        nodesInChunk = 0;
+        chunkEnd = 0;
+    }
+
+    /**
+     * Writes chunks to an archive and keeps the chunk index.
+     */
+    static class ChunkedOutput implements ChunkSink {
+
+        private final OutputArchive out;
+        private final List<Integer> nodeCounts = new ArrayList<>();
+        private final List<Long> checksums = new ArrayList<>();
+
+        ChunkedOutput(OutputArchive out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(byte[] chunk, int nodeCount) throws IOException {
+            Adler32 checksum = new Adler32();
+            checksum.update(chunk, 0, chunk.length);
+            out.writeBuffer(chunk, "chunk");
+            nodeCounts.add(nodeCount);
+            checksums.add(checksum.getValue());
+        }
+
+        /**
+         * Write the end marker and the chunk index.
+         */
+        void finish() throws IOException {
+            out.writeBuffer(null, "chunk");
+            out.writeInt(nodeCounts.size(), "chunkCount");
+            for (int i = 0; i < nodeCounts.size(); i++) {
+                out.writeInt(nodeCounts.get(i), "nodeCount");
+                out.writeLong(checksums.get(i), "checksum");
+            }
+        }
+
+    }
+
+}
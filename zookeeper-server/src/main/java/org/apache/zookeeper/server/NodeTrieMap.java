@@ -0,0 +1,458 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.util.AdHash;
+
+/**
+ * A NodeHashMap that keeps the nodes in a trie of path segments instead of
+ * keying them by their full path, so the common prefixes of deep paths are
+ * stored only once. The segment names are interned, which shares them
+ * between the trie nodes of the same name under different parents.
+ * <p>
+ * A path is split on '/', so "" is the segment "", "/" the segments "" and
+ * "", and "/a/b" the segments "", "a" and "b". Any string is a valid key.
+ * <p>
+ * Lookups don't lock. A trie node with few children keeps them in a sorted
+ * array that is copied on write and found with a binary search over the
+ * path, without allocating the segment, one with many children keeps them
+ * in a ConcurrentHashMap. Trie nodes are added and removed under the lock
+ * of their parent, trie nodes without a value or children are removed
+ * again.
+ */
+public class NodeTrieMap implements NodeHashMap {
+
+    /** the number of children above which a trie node hashes them */
+    static final int MAX_ARRAY_CHILDREN = 16;
+
+    private volatile TrieNode root = new TrieNode(null, null);
+    private final AtomicInteger size = new AtomicInteger();
+    private final boolean digestEnabled;
+    private final DigestCalculator digestCalculator;
+
+    private final AdHash hash;
+
+    private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    private static final class TrieNode {
+
+        final String name;
+        final TrieNode parent;
+
+        /** guarded by this for writes */
+        volatile DataNode value;
+
+        /**
+         * the children, a sorted TrieNode[] or a ConcurrentHashMap from
+         * name to TrieNode, replaced under the lock of this node
+         */
+        volatile Object children = NO_CHILDREN;
+
+        /** set once this node is detached from its parent, guarded by this */
+        boolean removed;
+
+        TrieNode(String name, TrieNode parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        @SuppressWarnings("unchecked")
+        TrieNode child(String path, int start, int end) {
+            Object current = children;
+            if (current instanceof TrieNode[]) {
+                TrieNode[] array = (TrieNode[]) current;
+                int index = search(array, path, start, end);
+                return index >= 0 ? array[index] : null;
+            }
+            return ((ConcurrentHashMap<String, TrieNode>) current).get(path.substring(start, end));
+        }
+
+        /** must hold the lock of this node */
+        @SuppressWarnings("unchecked")
+        void addChild(TrieNode child) {
+            Object current = children;
+            if (current instanceof TrieNode[]) {
+                TrieNode[] array = (TrieNode[]) current;
+                if (array.length < MAX_ARRAY_CHILDREN) {
+                    int index = -search(array, child.name, 0, child.name.length()) - 1;
+                    TrieNode[] grown = new TrieNode[array.length + 1];
+                    System.arraycopy(array, 0, grown, 0, index);
+                    grown[index] = child;
+                    System.arraycopy(array, index, grown, index + 1, array.length - index);
+                    children = grown;
+                    return;
+                }
+                ConcurrentHashMap<String, TrieNode> map = new ConcurrentHashMap<>(array.length * 4);
+                for (TrieNode node : array) {
+                    map.put(node.name, node);
+                }
+                map.put(child.name, child);
+                children = map;
+                return;
+            }
+            ((ConcurrentHashMap<String, TrieNode>) current).put(child.name, child);
+        }
+
+        /** must hold the lock of this node */
+        @SuppressWarnings("unchecked")
+        void removeChild(TrieNode child) {
+            Object current = children;
+            if (current instanceof TrieNode[]) {
+                TrieNode[] array = (TrieNode[]) current;
+                int index = search(array, child.name, 0, child.name.length());
+                if (index < 0) {
+                    return;
+                }
+                TrieNode[] shrunk = array.length == 1 ? NO_CHILDREN : new TrieNode[array.length - 1];
+                System.arraycopy(array, 0, shrunk, 0, index);
+                System.arraycopy(array, index + 1, shrunk, index, array.length - index - 1);
+                children = shrunk;
+                return;
+            }
+            ConcurrentHashMap<String, TrieNode> map = (ConcurrentHashMap<String, TrieNode>) current;
+            map.remove(child.name);
+            if (map.isEmpty()) {
+                children = NO_CHILDREN;
+            }
+        }
+
+        boolean hasChildren() {
+            Object current = children;
+            if (current instanceof TrieNode[]) {
+                return ((TrieNode[]) current).length > 0;
+            }
+            return !((Map<?, ?>) current).isEmpty();
+        }
+
+        @SuppressWarnings("unchecked")
+        Iterator<TrieNode> children() {
+            Object current = children;
+            if (current instanceof TrieNode[]) {
+                return Arrays.asList((TrieNode[]) current).iterator();
+            }
+            return ((ConcurrentHashMap<String, TrieNode>) current).values().iterator();
+        }
+
+    }
+
+    /**
+     * Binary search for the child named like path[start, end).
+     */
+    private static int search(TrieNode[] array, String path, int start, int end) {
+        int low = 0;
+        int high = array.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(array[mid].name, path, start, end);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Compare name to path[start, end) like {@link String#compareTo(String)}.
+     */
+    private static int compare(String name, String path, int start, int end) {
+        int len = Math.min(name.length(), end - start);
+        for (int i = 0; i < len; i++) {
+            char c1 = name.charAt(i);
+            char c2 = path.charAt(start + i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return name.length() - (end - start);
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end == -1 ? path.length() : end;
+    }
+
+    public NodeTrieMap(DigestCalculator digestCalculator) {
+        this.digestCalculator = digestCalculator;
+        hash = new AdHash();
+        digestEnabled = ZooKeeperServer.isDigestEnabled();
+    }
+
+    private TrieNode find(String path) {
+        TrieNode node = root;
+        int start = 0;
+        while (true) {
+            int end = segmentEnd(path, start);
+            node = node.child(path, start, end);
+            if (node == null || end == path.length()) {
+                return node;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Walk to the trie node of the path, creating the missing ones.
+     *
+     * @return the trie node, or null if a trie node on the way was removed
+     *         concurrently and the walk needs to be retried
+     */
+    private TrieNode findOrCreate(String path) {
+        TrieNode node = root;
+        int start = 0;
+        while (true) {
+            int end = segmentEnd(path, start);
+            TrieNode child = node.child(path, start, end);
+            if (child == null) {
+                synchronized (node) {
+                    if (node.removed) {
+                        return null;
+                    }
+                    child = node.child(path, start, end);
+                    if (child == null) {
+                        child = new TrieNode(path.substring(start, end).intern(), node);
+                        node.addChild(child);
+                    }
+                }
+            }
+            node = child;
+            if (end == path.length()) {
+                return node;
+            }
+            start = end + 1;
+        }
+    }
+
+    private DataNode putNode(String path, DataNode value) {
+        while (true) {
+            TrieNode node = findOrCreate(path);
+            if (node == null) {
+                continue;
+            }
+            DataNode oldNode;
+            synchronized (node) {
+                if (node.removed) {
+                    continue;
+                }
+                oldNode = node.value;
+                node.value = value;
+            }
+            if (oldNode == null) {
+                size.incrementAndGet();
+            }
+            return oldNode;
+        }
+    }
+
+    /**
+     * Remove the trie node and its ancestors as long as they have neither
+     * a value nor children.
+     */
+    private void prune(TrieNode node) {
+        TrieNode parent = node.parent;
+        while (parent != null) {
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || node.value != null || node.hasChildren()) {
+                        return;
+                    }
+                    parent.removeChild(node);
+                    node.removed = true;
+                }
+            }
+            node = parent;
+            parent = node.parent;
+        }
+    }
+
+    @Override
+    public DataNode put(String path, DataNode node) {
+        DataNode oldNode = putNode(path, node);
+        addDigest(path, node);
+        if (oldNode != null) {
+            removeDigest(path, oldNode);
+        }
+        return oldNode;
+    }
+
+    @Override
+    public DataNode putWithoutDigest(String path, DataNode node) {
+        return putNode(path, node);
+    }
+
+    @Override
+    public DataNode get(String path) {
+        TrieNode node = find(path);
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public DataNode remove(String path) {
+        TrieNode node = find(path);
+        if (node == null) {
+            return null;
+        }
+        DataNode oldNode;
+        synchronized (node) {
+            oldNode = node.value;
+            node.value = null;
+        }
+        if (oldNode != null) {
+            size.decrementAndGet();
+            removeDigest(path, oldNode);
+        }
+        prune(node);
+        return oldNode;
+    }
+
+    @Override
+    public Set<Map.Entry<String, DataNode>> entrySet() {
+        return new AbstractSet<Map.Entry<String, DataNode>>() {
+            @Override
+            public Iterator<Map.Entry<String, DataNode>> iterator() {
+                return new EntryIterator(root);
+            }
+
+            @Override
+            public int size() {
+                return size.get();
+            }
+        };
+    }
+
+    /**
+     * Walks the trie depth first, building the paths of the trie nodes
+     * that have a value.
+     */
+    private static class EntryIterator implements Iterator<Map.Entry<String, DataNode>> {
+
+        private final Deque<Iterator<TrieNode>> children = new ArrayDeque<>();
+        private final Deque<String> paths = new ArrayDeque<>();
+        private Map.Entry<String, DataNode> next;
+
+        EntryIterator(TrieNode root) {
+            children.push(root.children());
+            paths.push("");
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !children.isEmpty()) {
+                Iterator<TrieNode> iterator = children.peek();
+                if (!iterator.hasNext()) {
+                    children.pop();
+                    paths.pop();
+                    continue;
+                }
+                TrieNode node = iterator.next();
+                // the children of the root are the first segments
+                String path = children.size() == 1 ? node.name : paths.peek() + "/" + node.name;
+                children.push(node.children());
+                paths.push(path);
+                DataNode value = node.value;
+                if (value != null) {
+                    next = new AbstractMap.SimpleImmutableEntry<>(path, value);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, DataNode> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, DataNode> entry = next;
+            advance();
+            return entry;
+        }
+
+    }
+
+    @Override
+    public void clear() {
+        root = new TrieNode(null, null);
+        size.set(0);
+        hash.clear();
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void preChange(String path, DataNode node) {
+        removeDigest(path, node);
+    }
+
+    @Override
+    public void postChange(String path, DataNode node) {
+        // we just made a change, so make sure the digest is
+        // invalidated
+        node.digestCached = false;
+        addDigest(path, node);
+    }
+
+    private void addDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.addDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    private void removeDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.removeDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    @Override
+    public long getDigest() {
+        return hash.getHash();
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A slab allocator that keeps the data of {@link DataNode}s in direct
+ * memory, outside of the java heap.
+ * <p>
+ * Slots are sized in powers of two. The slots of a size class are carved
+ * out of slabs of slabSize bytes and put on a free list when released, a
+ * slot larger than a slab gets a slab of its own that is dropped when the
+ * slot is released. Each slot starts with the length of the data it holds.
+ * <p>
+ * A slot is addressed by a handle made of the index of its slab and its
+ * offset in the slab. Allocating and releasing are synchronized on the
+ * arena, reads are not: callers must make sure a slot isn't released while
+ * it is read, DataNode does so by reading and releasing under its own lock.
+ * <p>
+ * The memory of the slabs is returned once the arena and the nodes
+ * referencing it are garbage collected, so an arena is never explicitly
+ * closed.
+ */
+public class OffHeapDataArena {
+
+    /** the handle of null data, any other negative handle reads as null too */
+    public static final long NULL_HANDLE = -1;
+
+    /** the handle of empty data, which takes no slot */
+    public static final long EMPTY_HANDLE = -2;
+
+    private static final int LENGTH_BYTES = 4;
+
+    private static final int MIN_SLOT_SHIFT = 4;
+
+    private final int slabSize;
+
+    /** the slabs, copied on growth so reads don't need the lock */
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+
+    private int slabCount;
+
+    /** indexes of dropped slabs that can be reused, guarded by this */
+    private int[] freeSlabs = new int[4];
+
+    private int freeSlabCount;
+
+    private final SizeClass[] sizeClasses;
+
+    private long allocatedBytes;
+
+    private long capacityBytes;
+
+    /**
+     * The free slots of one slot size and the slab new slots are cut from.
+     */
+    private static class SizeClass {
+
+        final int slotSize;
+
+        long[] free = new long[16];
+
+        int freeCount;
+
+        int currentSlab = -1;
+
+        int nextOffset;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+
+    }
+
+    /**
+     * @param slabSize the size in bytes of the slabs slots are cut from,
+     *                 rounded up to a power of two
+     */
+    public OffHeapDataArena(int slabSize) {
+        if (slabSize < (1 << MIN_SLOT_SHIFT)) {
+            throw new IllegalArgumentException("Invalid slab size " + slabSize);
+        }
+        this.slabSize = slotSizeFor(slabSize);
+        int classCount = Integer.numberOfTrailingZeros(this.slabSize) - MIN_SLOT_SHIFT + 1;
+        sizeClasses = new SizeClass[classCount];
+        for (int i = 0; i < classCount; i++) {
+            sizeClasses[i] = new SizeClass(1 << (MIN_SLOT_SHIFT + i));
+        }
+    }
+
+    private static int slotSizeFor(int size) {
+        if (size <= (1 << MIN_SLOT_SHIFT)) {
+            return 1 << MIN_SLOT_SHIFT;
+        }
+        int slotSize = Integer.highestOneBit(size - 1) << 1;
+        if (slotSize <= 0) {
+            throw new IllegalArgumentException("Data of " + size + " bytes is too large");
+        }
+        return slotSize;
+    }
+
+    private static long handle(int slab, int offset) {
+        return ((long) slab << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Copy data into a newly allocated slot.
+     *
+     * @return the handle of the slot
+     */
+    public long allocate(byte[] data) {
+        if (data == null) {
+            return NULL_HANDLE;
+        }
+        if (data.length == 0) {
+            return EMPTY_HANDLE;
+        }
+        int size = data.length + LENGTH_BYTES;
+        if (size < 0) {
+            throw new IllegalArgumentException("Data of " + data.length + " bytes is too large");
+        }
+        long handle;
+        ByteBuffer slab;
+        synchronized (this) {
+            int slotSize = slotSizeFor(size);
+            if (slotSize > slabSize) {
+                handle = handle(addSlab(slotSize), 0);
+            } else {
+                handle = allocateSlot(sizeClasses[Integer.numberOfTrailingZeros(slotSize) - MIN_SLOT_SHIFT]);
+            }
+            allocatedBytes += slotSize;
+            slab = slabs[slabOf(handle)];
+        }
+        int offset = offsetOf(handle);
+        slab.putInt(offset, data.length);
+        ByteBuffer slot = slab.duplicate();
+        slot.position(offset + LENGTH_BYTES);
+        slot.put(data);
+        return handle;
+    }
+
+    private long allocateSlot(SizeClass sizeClass) {
+        if (sizeClass.freeCount > 0) {
+            return sizeClass.free[--sizeClass.freeCount];
+        }
+        if (sizeClass.currentSlab == -1 || sizeClass.nextOffset + sizeClass.slotSize > slabSize) {
+            sizeClass.currentSlab = addSlab(slabSize);
+            sizeClass.nextOffset = 0;
+        }
+        long handle = handle(sizeClass.currentSlab, sizeClass.nextOffset);
+        sizeClass.nextOffset += sizeClass.slotSize;
+        return handle;
+    }
+
+    private int addSlab(int size) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(size);
+        capacityBytes += size;
+        int index;
+        if (freeSlabCount > 0) {
+            index = freeSlabs[--freeSlabCount];
+        } else {
+            index = slabCount++;
+            if (index == slabs.length) {
+                slabs = Arrays.copyOf(slabs, slabs.length * 2);
+            }
+        }
+        // write through the volatile field to publish the slab
+        ByteBuffer[] current = slabs;
+        current[index] = slab;
+        slabs = current;
+        return index;
+    }
+
+    /**
+     * Release the slot of a handle. The handle must not be used afterwards.
+     */
+    public synchronized void release(long handle) {
+        if (handle < 0) {
+            return;
+        }
+        ByteBuffer slab = slabs[slabOf(handle)];
+        int slotSize = slotSizeFor(slab.getInt(offsetOf(handle)) + LENGTH_BYTES);
+        allocatedBytes -= slotSize;
+        if (slotSize > slabSize) {
+            ByteBuffer[] current = slabs;
+            current[slabOf(handle)] = null;
+            slabs = current;
+            capacityBytes -= slotSize;
+            if (freeSlabCount == freeSlabs.length) {
+                freeSlabs = Arrays.copyOf(freeSlabs, freeSlabs.length * 2);
+            }
+            freeSlabs[freeSlabCount++] = slabOf(handle);
+            return;
+        }
+        SizeClass sizeClass = sizeClasses[Integer.numberOfTrailingZeros(slotSize) - MIN_SLOT_SHIFT];
+        if (sizeClass.freeCount == sizeClass.free.length) {
+            sizeClass.free = Arrays.copyOf(sizeClass.free, sizeClass.free.length * 2);
+        }
+        sizeClass.free[sizeClass.freeCount++] = handle;
+    }
+
+    /**
+     * @return the length of the data of a handle, -1 for null data
+     */
+    public int length(long handle) {
+        if (handle == EMPTY_HANDLE) {
+            return 0;
+        }
+        if (handle < 0) {
+            return -1;
+        }
+        return slabs[slabOf(handle)].getInt(offsetOf(handle));
+    }
+
+    /**
+     * @return a copy of the data of a handle
+     */
+    public byte[] read(long handle) {
+        if (handle == EMPTY_HANDLE) {
+            return new byte[0];
+        }
+        if (handle < 0) {
+            return null;
+        }
+        ByteBuffer slot = slot(handle);
+        byte[] data = new byte[slot.remaining()];
+        slot.get(data);
+        return data;
+    }
+
+    private ByteBuffer slot(long handle) {
+        ByteBuffer slab = slabs[slabOf(handle)];
+        int offset = offsetOf(handle);
+        int length = slab.getInt(offset);
+        ByteBuffer slot = slab.duplicate();
+        slot.position(offset + LENGTH_BYTES);
+        slot.limit(offset + LENGTH_BYTES + length);
+        return slot;
+    }
+
+    /**
+     * @return the bytes taken by the allocated slots
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the bytes of direct memory held by the slabs
+     */
+    public synchronized long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+}
@@ -31,7 +31,7 @@
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.CreateMode;
@@ -99,7 +99,7 @@ public class PrepRequestProcessor extends ZooKeeperCriticalThread implements Req
      */
     private static boolean failCreate = false;
 
-    LinkedBlockingQueue<Request> submittedRequests = new LinkedBlockingQueue<Request>();
+    BlockingQueue<Request> submittedRequests = RequestQueueFactory.createQueue();
 
     private final RequestProcessor nextProcessor;
     private final boolean digestEnabled;
@@ -134,25 +134,32 @@ public static void setFailCreate(boolean b) {
     @Override
     public void run() {
         LOG.info(String.format("PrepRequestProcessor (sid:%d) started, reconfigEnabled=%s", zks.getServerId(), zks.reconfigEnabled));
+        List<Request> batch = new ArrayList<>();
         try {
+            mainLoop:
             while (true) {
                 ServerMetrics.getMetrics().PREP_PROCESSOR_QUEUE_SIZE.add(submittedRequests.size());
-                Request request = submittedRequests.take();
-                ServerMetrics.getMetrics().PREP_PROCESSOR_QUEUE_TIME
-                    .add(Time.currentElapsedTime() - request.prepQueueStartTime);
-                long traceMask = ZooTrace.CLIENT_REQUEST_TRACE_MASK;
-                if (request.type == OpCode.ping) {
-                    traceMask = ZooTrace.CLIENT_PING_TRACE_MASK;
-                }
-                if (LOG.isTraceEnabled()) {
-                    ZooTrace.logRequest(LOG, traceMask, 'P', request, "");
-                }
-                if (Request.requestOfDeath == request) {
-                    break;
-                }
+                // take whatever else is queued along with the next request
+                batch.add(submittedRequests.take());
+                submittedRequests.drainTo(batch, RequestQueueFactory.MAX_DRAIN_BATCH_SIZE - 1);
+                for (Request request : batch) {
+                    ServerMetrics.getMetrics().PREP_PROCESSOR_QUEUE_TIME
+                        .add(Time.currentElapsedTime() - request.prepQueueStartTime);
+                    long traceMask = ZooTrace.CLIENT_REQUEST_TRACE_MASK;
+                    if (request.type == OpCode.ping) {
+                        traceMask = ZooTrace.CLIENT_PING_TRACE_MASK;
+                    }
+                    if (LOG.isTraceEnabled()) {
+                        ZooTrace.logRequest(LOG, traceMask, 'P', request, "");
+                    }
+                    if (Request.requestOfDeath == request) {
+                        break mainLoop;
+                    }
 
-                request.prepStartTime = Time.currentElapsedTime();
-                pRequest(request);
+                    request.prepStartTime = Time.currentElapsedTime();
+                    pRequest(request);
+                }
+                batch.clear();
             }
         } catch (Exception e) {
             handleException(this.getName(), e);
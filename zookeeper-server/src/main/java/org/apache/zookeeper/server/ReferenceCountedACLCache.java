@@ -25,6 +25,7 @@
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.jute.Index;
 import org.apache.jute.InputArchive;
@@ -34,15 +35,31 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Maps the ACL lists of the data tree to longs and counts their usages.
+ * <p>
+ * ACL lists are added and dropped rarely compared to how often they are
+ * looked up, so the two maps between lists and longs are changed under the
+ * lock of the cache and read without locking. The reference counts are
+ * atomic and changed without locking as long as they stay positive, only a
+ * count dropping to zero or an ACL missing from the counters takes the
+ * lock.
+ */
 public class ReferenceCountedACLCache {
 
     private static final Logger LOG = LoggerFactory.getLogger(ReferenceCountedACLCache.class);
 
-    final Map<Long, List<ACL>> longKeyMap = new HashMap<Long, List<ACL>>();
+    /**
+     * modified under the lock of this, an ACL is added here before it is
+     * added to aclKeyMap and removed after it is removed from it
+     */
+    final Map<Long, List<ACL>> longKeyMap = new ConcurrentHashMap<Long, List<ACL>>();
 
-    final Map<List<ACL>, Long> aclKeyMap = new HashMap<List<ACL>, Long>();
+    /** modified under the lock of this */
+    final Map<List<ACL>, Long> aclKeyMap = new ConcurrentHashMap<List<ACL>, Long>();
 
-    final Map<Long, AtomicLongWithEquals> referenceCounter = new HashMap<Long, AtomicLongWithEquals>();
+    /** entries are added and removed under the lock of this */
+    final Map<Long, AtomicLongWithEquals> referenceCounter = new ConcurrentHashMap<Long, AtomicLongWithEquals>();
     private static final long OPEN_UNSAFE_ACL_ID = -1L;
 
     /**
@@ -56,31 +73,59 @@ public class ReferenceCountedACLCache {
      * @param acls
      * @return a long that map to the acls
      */
-    public synchronized Long convertAcls(List<ACL> acls) {
+    public Long convertAcls(List<ACL> acls) {
         if (acls == null) {
             return OPEN_UNSAFE_ACL_ID;
         }
 
-        // get the value from the map
         Long ret = aclKeyMap.get(acls);
-        if (ret == null) {
-            ret = incrementIndex();
-            longKeyMap.put(ret, acls);
-            aclKeyMap.put(acls, ret);
+        if (ret != null && tryIncrementUsage(ret)) {
+            return ret;
         }
 
-        addUsage(ret);
+        synchronized (this) {
+            // get the value from the map
+            ret = aclKeyMap.get(acls);
+            if (ret == null) {
+                ret = incrementIndex();
+                longKeyMap.put(ret, acls);
+                aclKeyMap.put(acls, ret);
+            }
+
+            addUsage(ret);
+        }
 
         return ret;
     }
 
+    /**
+     * Increment the count of an ACL without locking if it is positive.
+     *
+     * @return false if the count is missing or not positive, in which case
+     *         it has to be changed under the lock
+     */
+    private boolean tryIncrementUsage(Long acl) {
+        AtomicLong count = referenceCounter.get(acl);
+        if (count == null) {
+            return false;
+        }
+        long current;
+        do {
+            current = count.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + 1));
+        return true;
+    }
+
     /**
      * converts a long to a list of acls.
      *
      * @param longVal
      * @return a list of ACLs that map to the long
      */
-    public synchronized List<ACL> convertLong(Long longVal) {
+    public List<ACL> convertLong(Long longVal) {
         if (longVal == null) {
             return null;
         }
@@ -100,7 +145,9 @@ private long incrementIndex() {
     }
 
     public void deserialize(InputArchive ia) throws IOException {
-        clear();
+        synchronized (this) {
+            clear();
+        }
         int i = ia.readInt("map");
 
         LinkedHashMap<Long, List<ACL>> deserializedMap = new LinkedHashMap<>();
@@ -139,6 +186,7 @@ public void deserialize(InputArchive ia) throws IOException {
     }
 
     public void serialize(OutputArchive oa) throws IOException {
+        // copy under the lock, so the count written matches the entries
         Map<Long, List<ACL>> clonedLongKeyMap;
         synchronized (this) {
             clonedLongKeyMap = new HashMap<>(longKeyMap);
@@ -165,39 +213,55 @@ private void clear() {
         referenceCounter.clear();
     }
 
-    public synchronized void addUsage(Long acl) {
+    public void addUsage(Long acl) {
         if (acl == OPEN_UNSAFE_ACL_ID) {
             return;
         }
 
-        if (!longKeyMap.containsKey(acl)) {
-            LOG.info("Ignoring acl {} as it does not exist in the cache", acl);
+        if (tryIncrementUsage(acl)) {
             return;
         }
 
-        AtomicLong count = referenceCounter.get(acl);
-        if (count == null) {
-            referenceCounter.put(acl, new AtomicLongWithEquals(1));
-        } else {
-            count.incrementAndGet();
+        synchronized (this) {
+            if (!longKeyMap.containsKey(acl)) {
+                LOG.info("Ignoring acl {} as it does not exist in the cache", acl);
+                return;
+            }
+
+            AtomicLong count = referenceCounter.get(acl);
+            if (count == null) {
+                referenceCounter.put(acl, new AtomicLongWithEquals(1));
+            } else {
+                count.incrementAndGet();
+            }
         }
     }
 
-    public synchronized void removeUsage(Long acl) {
+    public void removeUsage(Long acl) {
         if (acl == OPEN_UNSAFE_ACL_ID) {
             return;
         }
 
-        if (!longKeyMap.containsKey(acl)) {
-            LOG.info("Ignoring acl {} as it does not exist in the cache", acl);
-            return;
+        AtomicLong count = referenceCounter.get(acl);
+        if (count != null) {
+            // decrement without locking unless this may be the last usage
+            long current = count.get();
+            if (current > 1 && count.compareAndSet(current, current - 1)) {
+                return;
+            }
         }
 
-        long newCount = referenceCounter.get(acl).decrementAndGet();
-        if (newCount <= 0) {
-            referenceCounter.remove(acl);
-            aclKeyMap.remove(longKeyMap.get(acl));
-            longKeyMap.remove(acl);
+        synchronized (this) {
+            if (!longKeyMap.containsKey(acl)) {
+                LOG.info("Ignoring acl {} as it does not exist in the cache", acl);
+                return;
+            }
+
+            long newCount = referenceCounter.get(acl).decrementAndGet();
+            if (newCount <= 0) {
+                referenceCounter.remove(acl);
+                removeAcl(acl);
+            }
         }
     }
 
@@ -206,14 +270,31 @@ public synchronized void purgeUnused() {
         while (refCountIter.hasNext()) {
             Map.Entry<Long, AtomicLongWithEquals> entry = refCountIter.next();
             if (entry.getValue().get() <= 0) {
-                Long acl = entry.getKey();
-                aclKeyMap.remove(longKeyMap.get(acl));
-                longKeyMap.remove(acl);
                 refCountIter.remove();
+                removeAcl(entry.getKey());
             }
         }
     }
 
+    /**
+     * Drop an ACL from the maps, must hold the lock of this.
+     */
+    private void removeAcl(Long acl) {
+        List<ACL> acls = longKeyMap.get(acl);
+        if (acls != null) {
+            aclKeyMap.remove(acls);
+            longKeyMap.remove(acl);
+        }
+    }
+
+    /**
+     * @return the reference count of an ACL, or -1 if it is not counted
+     */
+    long getReferenceCount(long acl) {
+        AtomicLong count = referenceCounter.get(acl);
+        return count == null ? -1 : count.get();
+    }
+
     private static class AtomicLongWithEquals extends AtomicLong {
 
         private static final long serialVersionUID = 3355155896813725462L;
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A factory used to produce the queues between the request processors
+ * based on the zookeeper.requestQueueClass option, the name of an
+ * unbounded {@link BlockingQueue} class with a public no-arg constructor,
+ * for instance {@link org.apache.zookeeper.util.MpscBlockingQueue}.
+ */
+public class RequestQueueFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestQueueFactory.class);
+
+    public static final String ZOOKEEPER_REQUEST_QUEUE_CLASS = "zookeeper.requestQueueClass";
+
+    /**
+     * The most requests a processor takes off its queue at once.
+     */
+    public static final int MAX_DRAIN_BATCH_SIZE = 1000;
+
+    private static volatile Class<?> queueClass;
+
+    static {
+        init();
+    }
+
+    /**
+     * Use the queue class named by the zookeeper.requestQueueClass option,
+     * or the default {@link LinkedBlockingQueue} if it isn't a usable
+     * blocking queue class.
+     */
+    static void init() {
+        String className = System.getProperty(ZOOKEEPER_REQUEST_QUEUE_CLASS, LinkedBlockingQueue.class.getName());
+        try {
+            setQueueClass(className);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid {}, using {} instead", ZOOKEEPER_REQUEST_QUEUE_CLASS, LinkedBlockingQueue.class.getName(), e);
+            className = LinkedBlockingQueue.class.getName();
+            queueClass = LinkedBlockingQueue.class;
+        }
+        LOG.info("{} = {}", ZOOKEEPER_REQUEST_QUEUE_CLASS, className);
+    }
+
+    /**
+     * Change the class of the queues created from now on.
+     *
+     * @throws IllegalArgumentException if it is not a blocking queue class
+     *         with a public no-arg constructor
+     */
+    public static void setQueueClass(String className) {
+        try {
+            Class<?> clazz = Class.forName(className);
+            if (!BlockingQueue.class.isAssignableFrom(clazz)) {
+                throw new IllegalArgumentException(className + " is not a " + BlockingQueue.class.getName());
+            }
+            clazz.getConstructor();
+            queueClass = clazz;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Couldn't use " + className + " as request queue", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> BlockingQueue<E> createQueue() {
+        try {
+            return (BlockingQueue<E>) queueClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Couldn't instantiate " + queueClass.getName(), e);
+        }
+    }
+
+}
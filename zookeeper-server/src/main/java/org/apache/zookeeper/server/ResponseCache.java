@@ -18,73 +18,333 @@
 
 package org.apache.zookeeper.server;
 
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.Counter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@SuppressWarnings("serial")
+/**
+ * Caches the serialized responses of read requests by path.
+ * <p>
+ * The cache is split into segments by the hash of the path, each an LRU
+ * map with its own lock and an equal share of the entry and byte limits,
+ * so concurrent reads of different paths rarely contend.
+ * <p>
+ * Responses are cached in read-only direct buffers, so that a cache hit is
+ * written to the socket without copying the response, only the small reply
+ * header of each request is allocated. A response too large to be cached is
+ * sent from its heap array, direct memory is only spent on cached entries.
+ * <p>
+ * The connections sending a cached response release it once it is sent.
+ * When an entry is evicted or replaced and no connection is sending it any
+ * more, its buffer goes back to a small pool of its segment, from which
+ * the next responses cached are allocated, so overwriting a path does not
+ * leave a buffer to the garbage collector each time. Buffers sized in
+ * powers of two are pooled, up to a quarter of the bytes of the segment.
+ */
 public class ResponseCache {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
 
     // Magic number chosen to be "big enough but not too big"
     public static final int DEFAULT_RESPONSE_CACHE_SIZE = 400;
+    public static final long DEFAULT_RESPONSE_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /** the most segments a cache is split into */
+    private static final int MAX_SEGMENTS = 16;
+
+    /** the fewest entries a segment holds, so small caches aren't split */
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    /** the smallest buffer, as a power of two */
+    private static final int MIN_BUFFER_SHIFT = 6;
+
     private final int cacheSize;
+    private final long cacheBytes;
+    private final Function<ServerMetrics, Counter> evictionCounter;
+
+    /**
+     * A response served from the cache, to be released by the connection
+     * sending it once it is sent.
+     */
+    public static final class CachedResponse {
+
+        private final Entry entry;
+        private final ByteBuffer buffer;
+
+        private CachedResponse(Entry entry) {
+            this.entry = entry;
+            // each sender gets its own position and limit
+            this.buffer = entry.data.duplicate();
+        }
+
+        /**
+         * @return a read-only direct buffer holding the response, which the
+         *         caller may consume
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Called once the buffer has been sent, and not read after.
+         */
+        public void release() {
+            entry.release();
+        }
+
+    }
+
     private static class Entry {
-        public Stat stat;
-        public byte[] data;
+
+        final Segment segment;
+        final Stat stat;
+        /** the pooled buffer, and the read-only view of the response */
+        final ByteBuffer buffer;
+        final ByteBuffer data;
+        /** held by the cache and by each connection sending the response */
+        final AtomicInteger refs;
+
+        Entry(Segment segment, Stat stat, ByteBuffer buffer, int refs) {
+            this.segment = segment;
+            this.stat = stat;
+            this.buffer = buffer;
+            this.data = buffer.asReadOnlyBuffer();
+            this.refs = new AtomicInteger(refs);
+        }
+
+        CachedResponse retain() {
+            refs.incrementAndGet();
+            return new CachedResponse(this);
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                segment.recycle(buffer);
+            }
+        }
+
     }
 
-    private final Map<String, Entry> cache;
+    private final Segment[] segments;
 
-    public ResponseCache(int cacheSize) {
+    /**
+     * @param cacheSize the most entries held by the cache, not positive to
+     *                  disable it
+     * @param cacheBytes the most bytes of serialized responses held by the
+     *                   cache, not positive for no limit
+     * @param evictionCounter selects the metric counting the entries evicted
+     *                        to stay within the limits
+     */
+    public ResponseCache(int cacheSize, long cacheBytes, Function<ServerMetrics, Counter> evictionCounter) {
         this.cacheSize = cacheSize;
-        cache = Collections.synchronizedMap(new LRUCache<>(cacheSize));
-        LOG.info("Response cache size is initialized with value {}.", cacheSize);
+        this.cacheBytes = cacheBytes > 0 ? cacheBytes : Long.MAX_VALUE;
+        this.evictionCounter = evictionCounter;
+        int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, cacheSize / MIN_SEGMENT_SIZE)));
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(
+                Math.max(1, cacheSize / segmentCount),
+                Math.max(1, this.cacheBytes / segmentCount));
+        }
+        LOG.info("Response cache size is initialized with value {} and {} bytes in {} segments.",
+                 cacheSize, cacheBytes, segmentCount);
     }
 
     public int getCacheSize() {
         return cacheSize;
     }
 
-    public void put(String path, byte[] data, Stat stat) {
-        Entry entry = new Entry();
-        entry.data = data;
-        entry.stat = stat;
-        cache.put(path, entry);
+    public long getCacheBytes() {
+        return cacheBytes;
     }
 
-    public byte[] get(String key, Stat stat) {
-        Entry entry = cache.get(key);
-        if (entry == null) {
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * Cache a serialized response.
+     *
+     * @return the cached response, to be sent in place of data and then
+     *         released, or null if it isn't cached and data is to be sent
+     */
+    public CachedResponse put(String path, byte[] data, Stat stat) {
+        if (!isEnabled()) {
             return null;
         }
-        if (!stat.equals(entry.stat)) {
-            // The node has been modified, invalidate cache.
-            cache.remove(key);
+        Segment segment = segmentFor(path);
+        long size = bufferSize(data.length);
+        if (size > Integer.MAX_VALUE || path.length() + size > segment.maxBytes) {
+            // would evict the whole segment, don't cache it
+            segment.remove(path);
             return null;
-        } else {
-            return entry.data;
         }
+        ByteBuffer buffer = segment.allocate(data.length);
+        buffer.put(data);
+        buffer.flip();
+        // the caller holds the entry before the cache does, so it can't be
+        // recycled before the caller sent it
+        Entry entry = new Entry(segment, stat, buffer, 2);
+        int evicted = segment.put(path, entry);
+        if (evicted > 0) {
+            evictionCounter.apply(ServerMetrics.getMetrics()).add(evicted);
+        }
+        return new CachedResponse(entry);
+    }
+
+    /**
+     * @return the cached response, to be released once sent, or null if
+     *         there is none for stat
+     */
+    public CachedResponse get(String key, Stat stat) {
+        return segmentFor(key).get(key, stat);
     }
 
     public boolean isEnabled() {
         return cacheSize > 0;
     }
 
-    private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
+    /**
+     * @return the bytes of the serialized responses currently cached
+     */
+    public long getCachedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the bytes of the buffers pooled for reuse
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.pooledBytes;
+            }
+        }
+        return bytes;
+    }
+
+    private static long weigh(String key, Entry entry) {
+        return key.length() + entry.buffer.capacity();
+    }
+
+    private static int sizeClassOf(int size) {
+        return Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1) - MIN_BUFFER_SHIFT);
+    }
 
-        private int cacheSize;
+    /**
+     * @return the capacity of the buffers holding responses of a size
+     */
+    private static long bufferSize(int size) {
+        return 1L << (sizeClassOf(size) + MIN_BUFFER_SHIFT);
+    }
+
+    private static class Segment {
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxEntries;
+        private final long maxBytes;
+        private long bytes;
+
+        /** the buffers of the dropped entries, by size class */
+        private final List<ArrayDeque<ByteBuffer>> pool = new ArrayList<>();
+        private long pooledBytes;
+
+        Segment(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return a buffer with room for size bytes, from the pool if it
+         *         holds one
+         */
+        synchronized ByteBuffer allocate(int size) {
+            int sizeClass = sizeClassOf(size);
+            ByteBuffer buffer = sizeClass < pool.size() ? pool.get(sizeClass).poll() : null;
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect((int) bufferSize(size));
+            }
+            pooledBytes -= buffer.capacity();
+            buffer.clear();
+            return buffer;
+        }
+
+        /**
+         * Take back the buffer of an entry dropped by the cache and by the
+         * connections, or leave it to the garbage collector if the pool is
+         * full.
+         */
+        synchronized void recycle(ByteBuffer buffer) {
+            if (pooledBytes + buffer.capacity() > maxBytes / 4) {
+                return;
+            }
+            int sizeClass = sizeClassOf(buffer.capacity());
+            while (pool.size() <= sizeClass) {
+                pool.add(new ArrayDeque<>());
+            }
+            pool.get(sizeClass).push(buffer);
+            pooledBytes += buffer.capacity();
+        }
+
+        /**
+         * @param entry an entry no heavier than the segment limit
+         * @return the number of entries evicted to make room
+         */
+        synchronized int put(String key, Entry entry) {
+            long weight = weigh(key, entry);
+            remove(key);
+            int evicted = 0;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (eldest.hasNext() && (entries.size() >= maxEntries || bytes + weight > maxBytes)) {
+                Map.Entry<String, Entry> e = eldest.next();
+                bytes -= weigh(e.getKey(), e.getValue());
+                eldest.remove();
+                e.getValue().release();
+                evicted++;
+            }
+            entries.put(key, entry);
+            bytes += weight;
+            return evicted;
+        }
 
-        LRUCache(int cacheSize) {
-            super(cacheSize / 4);
-            this.cacheSize = cacheSize;
+        synchronized void remove(String key) {
+            Entry old = entries.remove(key);
+            if (old != null) {
+                bytes -= weigh(key, old);
+                old.release();
+            }
         }
 
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() >= cacheSize;
+        synchronized CachedResponse get(String key, Stat stat) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (!stat.equals(entry.stat)) {
+                // The node has been modified, invalidate cache.
+                remove(key);
+                return null;
+            } else {
+                return entry.retain();
+            }
         }
 
     }
@@ -29,6 +29,7 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +38,7 @@
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
+import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -46,6 +48,7 @@
 import org.apache.zookeeper.metrics.Counter;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.server.watch.WatchFanOut;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -101,6 +104,7 @@ public enum DisconnectReason {
         CLOSE_CONNECTION_COMMAND("close_connection_command"),
         CLEAN_UP("clean_up"),
         CONNECTION_MODE_CHANGED("connection_mode_changed"),
+        CONNECTION_MIGRATION_FAILED("connection_migration_failed"),
         // Below reasons are NettyServerCnxnFactory only
         CHANNEL_DISCONNECTED("channel disconnected"),
         CHANNEL_CLOSED_EXCEPTION("channel_closed_exception"),
@@ -193,6 +197,34 @@ public int sendResponse(ReplyHeader h, Record r, String tag) throws IOException
         return sendResponse(h, r, tag, null, null, -1);
     }
 
+    /**
+     * The responses of the response cache being sent on this connection, by
+     * the buffer they are sent from. Responses still in there when the
+     * connection closes are left to the garbage collector.
+     */
+    private final Map<ByteBuffer, ResponseCache.CachedResponse> cachedResponsesInFlight = new IdentityHashMap<>();
+
+    /**
+     * Release a buffer sent on the connection, if it holds a response of the
+     * response cache, which may then reuse it. The cached responses are the
+     * only ones sent from direct buffers.
+     */
+    protected void releaseSentBuffer(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        ResponseCache.CachedResponse cached;
+        synchronized (cachedResponsesInFlight) {
+            cached = cachedResponsesInFlight.remove(buffer);
+        }
+        if (cached != null) {
+            cached.release();
+        }
+    }
+
+    /** the serialized length of a ReplyHeader: xid, zxid and err */
+    private static final int REPLY_HEADER_LENGTH = 4 + 8 + 4;
+
     protected byte[] serializeRecord(Record record) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(ZooKeeperServer.intBufferStartingSizeBytes);
         BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
@@ -202,8 +234,7 @@ protected byte[] serializeRecord(Record record) throws IOException {
 
     protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                                      String cacheKey, Stat stat, int opCode) throws IOException {
-        byte[] header = serializeRecord(h);
-        byte[] data = null;
+        ByteBuffer data = null;
         if (r != null) {
             ResponseCache cache = null;
             Counter cacheHit = null, cacheMiss = null;
@@ -229,37 +260,46 @@ protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                 //
                 // NB: Tag is ignored both during cache lookup and serialization,
                 // since is is not used in read responses, which are being cached.
-                data = cache.get(cacheKey, stat);
-                if (data == null) {
+                ResponseCache.CachedResponse cached = cache.get(cacheKey, stat);
+                if (cached == null) {
                     // Cache miss, serialize the response and put it in cache.
-                    data = serializeRecord(r);
-                    cache.put(cacheKey, data, stat);
+                    byte[] serialized = serializeRecord(r);
+                    cached = cache.put(cacheKey, serialized, stat);
+                    if (cached == null) {
+                        data = ByteBuffer.wrap(serialized);
+                    }
                     cacheMiss.add(1);
                 } else {
                     cacheHit.add(1);
                 }
+                if (cached != null) {
+                    data = cached.getBuffer();
+                    synchronized (cachedResponsesInFlight) {
+                        cachedResponsesInFlight.put(data, cached);
+                    }
+                }
             } else {
-                data = serializeRecord(r);
+                data = ByteBuffer.wrap(serializeRecord(r));
             }
         }
-        int dataLength = data == null ? 0 : data.length;
-        int packetLength = header.length + dataLength;
+        // the length and the reply header share a buffer, the data is sent
+        // from its own, which may be shared with the response cache
+        ByteBuffer header = ByteBuffer.allocate(4 + REPLY_HEADER_LENGTH);
+        header.position(4);
+        ByteBufferOutputStream.record2ByteBuffer(h, header);
+        int dataLength = data == null ? 0 : data.remaining();
+        int packetLength = header.position() - 4 + dataLength;
         ServerStats serverStats = serverStats();
         if (serverStats != null) {
             serverStats.updateClientResponseSize(packetLength);
         }
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
-        lengthBuffer.rewind();
-
-        int bufferLen = data != null ? 3 : 2;
-        ByteBuffer[] buffers = new ByteBuffer[bufferLen];
+        header.putInt(0, packetLength);
+        header.flip();
 
-        buffers[0] = lengthBuffer;
-        buffers[1] = ByteBuffer.wrap(header);
-        if (data != null) {
-            buffers[2] = ByteBuffer.wrap(data);
+        if (data == null) {
+            return new ByteBuffer[] {header};
         }
-        return buffers;
+        return new ByteBuffer[] {header, data};
     }
 
     /* notify the client the session is closing and close/cleanup socket */
@@ -286,6 +326,28 @@ public boolean removeAuthInfo(Id id) {
 
     abstract void sendBuffer(ByteBuffer... buffers);
 
+    /**
+     * Send the buffers of a reply. Watch notifications are sent right away,
+     * other replies are sent behind the notifications the
+     * {@link WatchFanOut} may still be delivering to this session.
+     */
+    void sendReply(ReplyHeader h, ByteBuffer... buffers) {
+        if (h.getXid() == ClientCnxn.NOTIFICATION_XID) {
+            sendBuffer(buffers);
+        } else {
+            sendBufferInOrder(buffers);
+        }
+    }
+
+    void sendBufferInOrder(ByteBuffer... buffers) {
+        WatchFanOut fanOut = WatchFanOut.getInstance();
+        if (fanOut == null) {
+            sendBuffer(buffers);
+        } else {
+            fanOut.sendInOrder(getSessionId(), () -> sendBuffer(buffers));
+        }
+    }
+
     abstract void enableRecv();
 
     void disableRecv() {
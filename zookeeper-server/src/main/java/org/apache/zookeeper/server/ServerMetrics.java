@@ -83,6 +83,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         CONNECTION_REQUEST_COUNT = metricsContext.getCounter("connection_request_count");
         CONNECTION_TOKEN_DEFICIT = metricsContext.getSummary("connection_token_deficit", DetailLevel.BASIC);
         CONNECTION_REJECTED = metricsContext.getCounter("connection_rejected");
+        NIO_CONNECTIONS_MIGRATED = metricsContext.getCounter("nio_connections_migrated");
 
         INFLIGHT_SNAP_COUNT = metricsContext.getSummary("inflight_snap_count", DetailLevel.BASIC);
         INFLIGHT_DIFF_COUNT = metricsContext.getSummary("inflight_diff_count", DetailLevel.BASIC);
@@ -108,8 +109,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
         RESPONSE_PACKET_CACHE_HITS = metricsContext.getCounter("response_packet_cache_hits");
         RESPONSE_PACKET_CACHE_MISSING = metricsContext.getCounter("response_packet_cache_misses");
+        RESPONSE_PACKET_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_cache_evictions");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS = metricsContext.getCounter("response_packet_get_children_cache_hits");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING = metricsContext.getCounter("response_packet_get_children_cache_misses");
+        RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_get_children_cache_evictions");
 
         ENSEMBLE_AUTH_SUCCESS = metricsContext.getCounter("ensemble_auth_success");
 
@@ -207,6 +210,11 @@ private ServerMetrics(MetricsProvider metricsProvider) {
          */
         LEARNER_HANDLER_QP_SIZE = metricsContext.getSummarySet("learner_handler_qp_size", DetailLevel.BASIC);
         LEARNER_HANDLER_QP_TIME = metricsContext.getSummarySet("learner_handler_qp_time_ms", DetailLevel.ADVANCED);
+        PROPOSAL_BATCH_SIZE = metricsContext.getSummary("proposal_batch_size", DetailLevel.BASIC);
+        LEARNER_ACK_BATCH_SIZE = metricsContext.getSummary("learner_ack_batch_size", DetailLevel.BASIC);
+        COMMIT_BATCH_SIZE = metricsContext.getSummary("commit_batch_size", DetailLevel.BASIC);
+        INFORM_BATCH_SIZE = metricsContext.getSummary("inform_batch_size", DetailLevel.BASIC);
+        SERIALIZED_PACKET_REUSED = metricsContext.getCounter("serialized_packet_reused");
 
         STARTUP_TXNS_LOADED = metricsContext.getSummary("startup_txns_loaded", DetailLevel.BASIC);
         STARTUP_TXNS_LOAD_TIME = metricsContext.getSummary("startup_txns_load_time", DetailLevel.BASIC);
@@ -314,6 +322,9 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary CONNECTION_TOKEN_DEFICIT;
     public final Counter CONNECTION_REJECTED;
 
+    // NIO selector balancing
+    public final Counter NIO_CONNECTIONS_MIGRATED;
+
     public final Summary INFLIGHT_SNAP_COUNT;
     public final Summary INFLIGHT_DIFF_COUNT;
 
@@ -372,12 +383,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary DEAD_WATCHERS_CLEANER_LATENCY;
 
     /*
-     * Response cache hit and miss metrics.
+     * Response cache hit, miss and eviction metrics.
      */
     public final Counter RESPONSE_PACKET_CACHE_HITS;
     public final Counter RESPONSE_PACKET_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_CACHE_EVICTIONS;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
 
     /**
      * Learner handler quorum packet metrics.
@@ -385,6 +398,26 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final SummarySet LEARNER_HANDLER_QP_SIZE;
     public final SummarySet LEARNER_HANDLER_QP_TIME;
 
+    /**
+     * Number of proposals sent to a follower in one packet, and number of
+     * proposals acked by a follower in one ack, when batching.
+     */
+    public final Summary PROPOSAL_BATCH_SIZE;
+    public final Summary LEARNER_ACK_BATCH_SIZE;
+
+    /**
+     * Number of zxids committed to a follower in one commit, and number of
+     * informs sent to an observer in one packet, when batching.
+     */
+    public final Summary COMMIT_BATCH_SIZE;
+    public final Summary INFORM_BATCH_SIZE;
+
+    /**
+     * Number of times a packet queued to several learners was written
+     * without serializing it again.
+     */
+    public final Counter SERIALIZED_PACKET_REUSED;
+
     /*
      * Number of requests that are in the session queue.
      */
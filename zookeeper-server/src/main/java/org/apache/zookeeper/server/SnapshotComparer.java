@@ -186,7 +186,7 @@ void populateChildren(String path, DataTree dataTree, TreeInfo treeInfo, int cur
             DataNode childNode = dataTree.getNode(childPath);
             long size;
             synchronized (childNode) {
-              size = childNode.data == null ? 0 : childNode.data.length;
+              size = childNode.getDataLength();
             }
             TreeNode childTreeNode = new TreeNode(childPath, size);
             childTreeNode.populateChildren(childPath, dataTree, treeInfo, currentDepth + 1);
@@ -217,7 +217,7 @@ void populateChildren(String path, DataTree dataTree, TreeInfo treeInfo, int cur
       count = 0;
       long beginning = System.nanoTime();
       DataNode root = dataTree.getNode("");
-      long size = root.data == null ? 0 : root.data.length;
+      long size = root.getDataLength();
       this.root = new TreeNode("", size);
       // Construct TreeInfo tree from DataTree
       this.root.populateChildren("", dataTree, this);
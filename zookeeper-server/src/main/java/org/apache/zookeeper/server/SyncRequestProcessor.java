@@ -28,6 +28,7 @@
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.common.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +49,11 @@
  *             It never send ack back to the leader, so the nextProcessor will
  *             be null. This change the semantic of txnlog on the observer
  *             since it only contains committed txns.
+ *
+ * When pipelined flush is enabled (zookeeper.pipelinedFlush), a batch is only
+ * flushed out of the write buffers on this thread and then handed over to a
+ * dedicated LogSyncThread, which fsyncs it and passes its requests on. This
+ * lets the next batch be appended while the previous one is being fsynced.
  */
 public class SyncRequestProcessor extends ZooKeeperCriticalThread implements RequestProcessor {
 
@@ -55,6 +61,8 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
 
     private static final Request REQUEST_OF_DEATH = Request.requestOfDeath;
 
+    private static final Queue<Request> BATCH_OF_DEATH = new ArrayDeque<>(0);
+
     /** The number of log entries to log before starting a snapshot */
     private static int snapCount = ZooKeeperServer.getSnapCount();
 
@@ -69,7 +77,7 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private int randRoll;
     private long randSize;
 
-    private final BlockingQueue<Request> queuedRequests = new LinkedBlockingQueue<Request>();
+    private final BlockingQueue<Request> queuedRequests = RequestQueueFactory.createQueue();
 
     private final Semaphore snapThreadMutex = new Semaphore(1);
 
@@ -85,11 +93,31 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private final Queue<Request> toFlush;
     private long lastFlushTime;
 
+    /**
+     * Batches that have been flushed to the log and are waiting to be synced
+     * by the LogSyncThread. At most one batch waits here, so appending can
+     * only run one batch ahead of the fsync.
+     */
+    private final BlockingQueue<Queue<Request>> flushedBatches = new LinkedBlockingQueue<>(1);
+
+    /**
+     * Number of batches handed to the LogSyncThread which have not been
+     * passed to the next processor yet.
+     */
+    private final AtomicInteger pendingBatches = new AtomicInteger(0);
+
+    /**
+     * The thread syncing flushed batches, or null if pipelined flush is
+     * disabled.
+     */
+    private final LogSyncThread logSyncThread;
+
     public SyncRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
         this.zks = zks;
         this.nextProcessor = nextProcessor;
         this.toFlush = new ArrayDeque<>(zks.getMaxBatchSize());
+        this.logSyncThread = zks.isPipelinedFlush() ? new LogSyncThread() : null;
     }
 
     /**
@@ -152,6 +180,14 @@ private void resetSnapshotStats() {
         randSize = Math.abs(ThreadLocalRandom.current().nextLong() % (snapSizeInBytes / 2));
     }
 
+    @Override
+    public synchronized void start() {
+        if (logSyncThread != null) {
+            logSyncThread.start();
+        }
+        super.start();
+    }
+
     @Override
     public void run() {
         try {
@@ -200,7 +236,7 @@ public void run() {
                             }.start();
                         }
                     }
-                } else if (toFlush.isEmpty()) {
+                } else if (toFlush.isEmpty() && pendingBatches.get() == 0) {
                     // optimization for read heavy workloads
                     // iff this is a read or a throttled request(which doesn't need to be written to the disk),
                     // and there are no pending flushes (writes), then just pass this to the next processor
@@ -231,15 +267,40 @@ private void flush() throws IOException, RequestProcessorException {
 
         ServerMetrics.getMetrics().BATCH_SIZE.add(toFlush.size());
 
-        long flushStartTime = Time.currentElapsedTime();
-        zks.getZKDatabase().commit();
-        ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
+        if (logSyncThread == null) {
+            long flushStartTime = Time.currentElapsedTime();
+            zks.getZKDatabase().commit();
+            ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
 
-        if (this.nextProcessor == null) {
+            release(this.toFlush);
+        } else {
+            // only push the batch out of the write buffers here, the
+            // fsync happens on the LogSyncThread
+            zks.getZKDatabase().flushLog();
+
+            Queue<Request> batch = new ArrayDeque<>(this.toFlush);
             this.toFlush.clear();
+            pendingBatches.incrementAndGet();
+            try {
+                flushedBatches.put(batch);
+            } catch (InterruptedException e) {
+                pendingBatches.decrementAndGet();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while handing over a flushed batch", e);
+            }
+        }
+        lastFlushTime = Time.currentElapsedTime();
+    }
+
+    /**
+     * Pass the requests of a batch which is now on disk to the next processor.
+     */
+    private void release(Queue<Request> batch) throws IOException, RequestProcessorException {
+        if (this.nextProcessor == null) {
+            batch.clear();
         } else {
-            while (!this.toFlush.isEmpty()) {
-                final Request i = this.toFlush.remove();
+            while (!batch.isEmpty()) {
+                final Request i = batch.remove();
                 long latency = Time.currentElapsedTime() - i.syncQueueStartTime;
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(latency);
                 this.nextProcessor.processRequest(i);
@@ -248,7 +309,45 @@ private void flush() throws IOException, RequestProcessorException {
                 ((Flushable) this.nextProcessor).flush();
             }
         }
-        lastFlushTime = Time.currentElapsedTime();
+    }
+
+    /**
+     * Syncs the batches flushed by the SyncThread to disk and passes their
+     * requests on, in the order the batches were flushed.
+     */
+    private class LogSyncThread extends ZooKeeperCriticalThread {
+
+        LogSyncThread() {
+            super("LogSyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Queue<Request> batch = flushedBatches.take();
+                    if (batch == BATCH_OF_DEATH) {
+                        break;
+                    }
+
+                    long syncStartTime = Time.currentElapsedTime();
+                    zks.getZKDatabase().syncLog();
+                    ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - syncStartTime);
+
+                    release(batch);
+                    pendingBatches.decrementAndGet();
+                }
+            } catch (Throwable t) {
+                handleException(this.getName(), t);
+            }
+            LOG.info("LogSyncThread exited!");
+        }
+
+        void shutdown() throws InterruptedException {
+            flushedBatches.put(BATCH_OF_DEATH);
+            this.join();
+        }
+
     }
 
     public void shutdown() {
@@ -257,6 +356,9 @@ public void shutdown() {
         try {
             this.join();
             this.flush();
+            if (logSyncThread != null) {
+                logSyncThread.shutdown();
+            }
         } catch (InterruptedException e) {
             LOG.warn("Interrupted while wating for {} to finish", this);
             Thread.currentThread().interrupt();
@@ -631,6 +631,29 @@ public void serializeSnapshot(OutputArchive oa) throws IOException, InterruptedE
         SerializeUtils.serializeSnapshot(getDataTree(), oa, getSessionWithTimeOuts());
     }
 
+    /**
+     * deserialize a snapshot written in chunks by
+     * {@link #serializeChunkedSnapshot(OutputArchive, int, int)}, the chunks
+     * are loaded by loadThreads threads while they are read
+     * @param ia the input archive to restore from
+     * @throws IOException
+     */
+    public void deserializeChunkedSnapshot(InputArchive ia, int loadThreads) throws IOException {
+        clear();
+        SerializeUtils.deserializeChunkedSnapshot(getDataTree(), ia, getSessionWithTimeOuts(), loadThreads);
+        initialized = true;
+    }
+
+    /**
+     * serialize the snapshot in chunks of about chunkSize bytes, written as
+     * writeThreads threads serialize them
+     * @param oa the output archive to which the snapshot needs to be serialized
+     * @throws IOException
+     */
+    public void serializeChunkedSnapshot(OutputArchive oa, int chunkSize, int writeThreads) throws IOException {
+        SerializeUtils.serializeChunkedSnapshot(getDataTree(), oa, getSessionWithTimeOuts(), chunkSize, writeThreads);
+    }
+
     /**
      * append to the underlying transaction log
      * @param si the request to append
@@ -657,6 +680,22 @@ public void commit() throws IOException {
         this.snapLog.commit();
     }
 
+    /**
+     * flush the underlying transaction log without forcing it to disk
+     * @throws IOException
+     */
+    public void flushLog() throws IOException {
+        this.snapLog.flushLog();
+    }
+
+    /**
+     * force what has been flushed to the underlying transaction log to disk
+     * @throws IOException
+     */
+    public void syncLog() throws IOException {
+        this.snapLog.syncLog();
+    }
+
     /**
      * close this database. free the resources
      * @throws IOException
@@ -216,6 +216,8 @@ protected enum State {
     private static volatile long maxWriteQueuePollTime;
     private static final String MAX_BATCH_SIZE = "zookeeper.maxBatchSize";
     private static volatile int maxBatchSize;
+    private static final String PIPELINED_FLUSH = "zookeeper.pipelinedFlush";
+    private static volatile boolean pipelinedFlush;
 
     /**
      * Starting size of read and write ByteArroyOuputBuffers. Default is 32 bytes.
@@ -227,12 +229,15 @@ protected enum State {
 
     public static final String GET_DATA_RESPONSE_CACHE_SIZE = "zookeeper.maxResponseCacheSize";
     public static final String GET_CHILDREN_RESPONSE_CACHE_SIZE = "zookeeper.maxGetChildrenResponseCacheSize";
+    public static final String GET_DATA_RESPONSE_CACHE_BYTES = "zookeeper.maxResponseCacheBytes";
+    public static final String GET_CHILDREN_RESPONSE_CACHE_BYTES = "zookeeper.maxGetChildrenResponseCacheBytes";
 
     static {
         long configuredFlushDelay = Long.getLong(FLUSH_DELAY, 0);
         setFlushDelay(configuredFlushDelay);
         setMaxWriteQueuePollTime(Long.getLong(MAX_WRITE_QUEUE_POLL_SIZE, configuredFlushDelay / 3));
         setMaxBatchSize(Integer.getInteger(MAX_BATCH_SIZE, 1000));
+        setPipelinedFlush(Boolean.getBoolean(PIPELINED_FLUSH));
 
         intBufferStartingSizeBytes = Integer.getInteger(INT_BUFFER_STARTING_SIZE_BYTES, DEFAULT_STARTING_BUFFER_SIZE);
 
@@ -325,13 +330,15 @@ public ZooKeeperServer(FileTxnSnapLog txnLogFactory, int tickTime, int minSessio
 
         listener = new ZooKeeperServerListenerImpl(this);
 
-        readResponseCache = new ResponseCache(Integer.getInteger(
-            GET_DATA_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE));
+        readResponseCache = new ResponseCache(
+            Integer.getInteger(GET_DATA_RESPONSE_CACHE_SIZE, ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_DATA_RESPONSE_CACHE_BYTES, ResponseCache.DEFAULT_RESPONSE_CACHE_BYTES),
+            metrics -> metrics.RESPONSE_PACKET_CACHE_EVICTIONS);
 
-        getChildrenResponseCache = new ResponseCache(Integer.getInteger(
-            GET_CHILDREN_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE));
+        getChildrenResponseCache = new ResponseCache(
+            Integer.getInteger(GET_CHILDREN_RESPONSE_CACHE_SIZE, ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_CHILDREN_RESPONSE_CACHE_BYTES, ResponseCache.DEFAULT_RESPONSE_CACHE_BYTES),
+            metrics -> metrics.RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS);
 
         this.initialConfig = initialConfig;
 
@@ -1467,6 +1474,15 @@ static void setMaxBatchSize(int size) {
         maxBatchSize = size;
     }
 
+    boolean isPipelinedFlush() {
+        return pipelinedFlush;
+    }
+
+    static void setPipelinedFlush(boolean enabled) {
+        LOG.info("{}={}", PIPELINED_FLUSH, enabled);
+        pipelinedFlush = enabled;
+    }
+
     private void initLargeRequestThrottlingSettings() {
         setLargeRequestMaxBytes(Integer.getInteger("zookeeper.largeRequestMaxBytes", largeRequestMaxBytes));
         setLargeRequestThreshold(Integer.getInteger("zookeeper.largeRequestThreshold", -1));
@@ -40,6 +40,13 @@
  * it is responsible for storing, serializing
  * and deserializing the right snapshot.
  * and provides access to the snapshots.
+ * <p>
+ * With zookeeper.snapshot.chunked.enabled, snapshots are written in version
+ * {@link #CHUNKED_VERSION} where the nodes are split into chunks that are
+ * decoded and inserted by zookeeper.snapshot.loadThreads threads on load.
+ * They are written by zookeeper.snapshot.writeThreads threads, each walking
+ * some of the top level subtrees.
+ * Both versions can always be read.
  */
 public class FileSnap implements SnapShot {
 
@@ -47,16 +54,77 @@ public class FileSnap implements SnapShot {
     SnapshotInfo lastSnapshotInfo = null;
     private volatile boolean close = false;
     private static final int VERSION = 2;
+
+    /**
+     * the snapshot version with the nodes split into independently
+     * decodable chunks
+     */
+    public static final int CHUNKED_VERSION = 3;
+
+    public static final String CHUNKED_SNAPSHOT_ENABLED = "zookeeper.snapshot.chunked.enabled";
+    public static final String SNAPSHOT_CHUNK_SIZE = "zookeeper.snapshot.chunkSizeInKb";
+    public static final String SNAPSHOT_LOAD_THREADS = "zookeeper.snapshot.loadThreads";
+    public static final String SNAPSHOT_WRITE_THREADS = "zookeeper.snapshot.writeThreads";
+
+    private static boolean chunkedEnabled = Boolean.getBoolean(CHUNKED_SNAPSHOT_ENABLED);
+    private static int chunkSize = Integer.getInteger(SNAPSHOT_CHUNK_SIZE, 256) * 1024;
+    private static int loadThreads = Integer.getInteger(SNAPSHOT_LOAD_THREADS,
+                                                        Runtime.getRuntime().availableProcessors());
+    private static int writeThreads = Integer.getInteger(SNAPSHOT_WRITE_THREADS,
+                                                         Runtime.getRuntime().availableProcessors());
     private static final long dbId = -1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public static final int SNAP_MAGIC = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
 
     public static final String SNAPSHOT_FILE_PREFIX = "snapshot";
 
+    static {
+        LOG.info("{} = {}, {} = {}, {} = {}, {} = {}",
+                 CHUNKED_SNAPSHOT_ENABLED, chunkedEnabled,
+                 SNAPSHOT_CHUNK_SIZE, chunkSize / 1024,
+                 SNAPSHOT_LOAD_THREADS, loadThreads,
+                 SNAPSHOT_WRITE_THREADS, writeThreads);
+    }
+
     public FileSnap(File snapDir) {
         this.snapDir = snapDir;
     }
 
+    public static void setChunkedEnabled(boolean enabled) {
+        chunkedEnabled = enabled;
+    }
+
+    public static boolean isChunkedEnabled() {
+        return chunkedEnabled;
+    }
+
+    /**
+     * @param size the size in bytes after which a chunk is cut
+     */
+    public static void setChunkSize(int size) {
+        chunkSize = size;
+    }
+
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    public static void setLoadThreads(int threads) {
+        loadThreads = threads;
+    }
+
+    public static int getLoadThreads() {
+        return Math.max(1, loadThreads);
+    }
+
+    public static void setWriteThreads(int threads) {
+        writeThreads = threads;
+    }
+
+    public static int getWriteThreads() {
+        return writeThreads;
+    }
+
     /**
      * get information of the last saved/restored snapshot
      * @return info of last snapshot
@@ -132,7 +200,11 @@ public void deserialize(DataTree dt, Map<Long, Integer> sessions, InputArchive i
         if (header.getMagic() != SNAP_MAGIC) {
             throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        if (header.getVersion() == CHUNKED_VERSION) {
+            SerializeUtils.deserializeChunkedSnapshot(dt, ia, sessions, Math.max(1, loadThreads));
+        } else {
+            SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        }
     }
 
     /**
@@ -224,7 +296,11 @@ protected void serialize(
             throw new IllegalStateException("Snapshot's not open for writing: uninitialized header");
         }
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        if (header.getVersion() == CHUNKED_VERSION) {
+            SerializeUtils.serializeChunkedSnapshot(dt, oa, sessions, chunkSize, writeThreads);
+        } else {
+            SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        }
     }
 
     /**
@@ -242,7 +318,7 @@ public synchronized void serialize(
         if (!close) {
             try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync)) {
                 OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
-                FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+                FileHeader header = new FileHeader(SNAP_MAGIC, chunkedEnabled ? CHUNKED_VERSION : VERSION, dbId);
                 serialize(dt, sessions, oa, header);
                 SnapStream.sealStream(snapOS, oa);
 
@@ -28,6 +28,7 @@
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -93,6 +94,15 @@
  * ZeroPad:
  *     0 padded to EOF (filled during preallocation stage)
  * </pre></blockquote>
+ * <p>
+ * When zookeeper.txnLogMmap is enabled the log is appended to through
+ * {@link MappedTxnLogOutputStream}, which preallocates the file in segments
+ * of zookeeper.preAllocSize. The on-disk format is the same.
+ * <p>
+ * When zookeeper.txnLogCompression is set, logs are written in version
+ * {@link #BLOCK_VERSION}, in which the TxnList is grouped into compressed
+ * blocks, see {@link TxnLogBlockOutputStream}. Logs in both versions can
+ * always be read.
  */
 public class FileTxnLog implements TxnLog, Closeable {
 
@@ -102,6 +112,11 @@ public class FileTxnLog implements TxnLog, Closeable {
 
     public static final int VERSION = 2;
 
+    /**
+     * The version of logs whose transactions are grouped into compressed blocks.
+     */
+    public static final int BLOCK_VERSION = 3;
+
     public static final String LOG_FILE_PREFIX = "log";
 
     static final String FSYNC_WARNING_THRESHOLD_MS_PROPERTY = "fsync.warningthresholdms";
@@ -125,6 +140,32 @@ public class FileTxnLog implements TxnLog, Closeable {
      */
     private static long txnLogSizeLimit = -1;
 
+    /**
+     * Append to the txnlog through memory mapped segments of preAllocSize
+     * instead of a buffered file stream. Disabled by default.
+     */
+    private static final String txnLogMmapSetting = "zookeeper.txnLogMmap";
+
+    private static boolean txnLogMmap;
+
+    /**
+     * The compression of the blocks of newly created logs, one of none, lz4
+     * or zstd. Logs are written in the uncompressed format by default (none).
+     */
+    private static final String txnLogCompressionSetting = "zookeeper.txnLogCompression";
+
+    private static TxnLogCompression txnLogCompression;
+
+    /**
+     * The size of uncompressed transactions after which a block is cut, a
+     * block is also cut on every commit.
+     */
+    private static final String txnLogBlockSizeSetting = "zookeeper.txnLogBlockSizeInKb";
+
+    private static final int DEFAULT_TXN_LOG_BLOCK_SIZE = 64 * 1024;
+
+    private static int txnLogBlockSize;
+
     static {
         LOG = LoggerFactory.getLogger(FileTxnLog.class);
 
@@ -143,17 +184,30 @@ public class FileTxnLog implements TxnLog, Closeable {
             logSize = logSize * 1024;
             txnLogSizeLimit = logSize;
         }
+
+        txnLogMmap = Boolean.getBoolean(txnLogMmapSetting);
+        if (txnLogMmap) {
+            LOG.info("{} = {}", txnLogMmapSetting, txnLogMmap);
+        }
+
+        txnLogCompression = TxnLogCompression.fromString(System.getProperty(txnLogCompressionSetting));
+        setTxnLogBlockSize(Integer.getInteger(txnLogBlockSizeSetting, DEFAULT_TXN_LOG_BLOCK_SIZE / 1024) * 1024);
+        if (txnLogCompression != TxnLogCompression.NONE) {
+            LOG.info("{} = {}, {} = {}", txnLogCompressionSetting, txnLogCompression,
+                     txnLogBlockSizeSetting, txnLogBlockSize / 1024);
+        }
     }
 
     long lastZxidSeen;
-    volatile BufferedOutputStream logStream = null;
+    volatile OutputStream logStream = null;
     volatile OutputArchive oa;
     volatile FileOutputStream fos = null;
 
     File logDir;
     private final boolean forceSync = !System.getProperty("zookeeper.forceSync", "yes").equals("no");
     long dbId;
-    private final Queue<FileOutputStream> streamsToFlush = new ArrayDeque<>();
+    private final Queue<OutputStream> streamsToFlush = new ArrayDeque<>();
+    private final Object syncLock = new Object();
     File logFileWrite = null;
     private FilePadding filePadding = new FilePadding();
 
@@ -201,6 +255,32 @@ public static void setTxnLogSizeLimit(long size) {
         txnLogSizeLimit = size;
     }
 
+    /**
+     * Enable or disable appending through memory mapped segments. Only
+     * affects log files created afterwards.
+     */
+    public static void setTxnLogMmap(boolean enabled) {
+        txnLogMmap = enabled;
+    }
+
+    /**
+     * Set the compression of the logs created afterwards. With
+     * {@link TxnLogCompression#NONE} logs are written in the uncompressed
+     * format.
+     */
+    public static void setTxnLogCompression(TxnLogCompression compression) {
+        txnLogCompression = compression;
+    }
+
+    /**
+     * Set the size in bytes of uncompressed transactions after which a block
+     * of a compressed log is cut.
+     */
+    public static void setTxnLogBlockSize(int size) {
+        // a block can exceed the size by one transaction
+        txnLogBlockSize = Math.max(1, Math.min(size, TxnLogBlockInputStream.MAX_BLOCK_LENGTH / 2));
+    }
+
     /**
      * Return the current on-disk size of log size. This will be accurate only
      * after commit() is called. Otherwise, unflushed txns may not be included.
@@ -251,7 +331,7 @@ public synchronized void close() throws IOException {
         if (logStream != null) {
             logStream.close();
         }
-        for (FileOutputStream log : streamsToFlush) {
+        for (OutputStream log : streamsToFlush) {
             log.close();
         }
     }
@@ -284,17 +364,33 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
             LOG.info("Creating new log file: {}", Util.makeLogName(hdr.getZxid()));
 
             logFileWrite = new File(logDir, Util.makeLogName(hdr.getZxid()));
-            fos = new FileOutputStream(logFileWrite);
-            logStream = new BufferedOutputStream(fos);
+            if (txnLogMmap && FilePadding.getPreAllocSize() > 0) {
+                fos = null;
+                logStream = new MappedTxnLogOutputStream(logFileWrite, FilePadding.getPreAllocSize());
+                streamsToFlush.add(logStream);
+            } else {
+                fos = new FileOutputStream(logFileWrite);
+                logStream = new BufferedOutputStream(fos);
+                streamsToFlush.add(fos);
+            }
             oa = BinaryOutputArchive.getArchive(logStream);
-            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, VERSION, dbId);
+            boolean blocks = txnLogCompression != TxnLogCompression.NONE;
+            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, blocks ? BLOCK_VERSION : VERSION, dbId);
             fhdr.serialize(oa, "fileheader");
             // Make sure that the magic number is written before padding.
             logStream.flush();
-            filePadding.setCurrentSize(fos.getChannel().position());
-            streamsToFlush.add(fos);
+            if (blocks) {
+                logStream = new TxnLogBlockOutputStream(logStream, txnLogCompression, txnLogBlockSize);
+                oa = BinaryOutputArchive.getArchive(logStream);
+            }
+            if (fos != null) {
+                filePadding.setCurrentSize(fos.getChannel().position());
+            }
+        }
+        if (fos != null) {
+            // mapped segments are preallocated when they are mapped
+            filePadding.padFile(fos.getChannel());
         }
-        filePadding.padFile(fos.getChannel());
         byte[] buf = Util.marshallTxnEntry(hdr, txn, digest);
         if (buf == null || buf.length == 0) {
             throw new IOException("Faulty serialization for header " + "and txn");
@@ -303,6 +399,9 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
         crc.update(buf, 0, buf.length);
         oa.writeLong(crc.getValue(), "txnEntryCRC");
         Util.writeTxnBytes(oa, buf);
+        if (logStream instanceof TxnLogBlockOutputStream) {
+            ((TxnLogBlockOutputStream) logStream).endRecord();
+        }
 
         return true;
     }
@@ -387,37 +486,21 @@ private void close(TxnIterator itr) {
      * commit the logs. make sure that everything hits the
      * disk
      */
-    public synchronized void commit() throws IOException {
+    public void commit() throws IOException {
+        flush();
+        sync();
+    }
+
+    /**
+     * flush the buffered appends to the file system without forcing
+     * them to disk. Rolls the log if it exceeds the size limit.
+     */
+    public synchronized void flush() throws IOException {
         if (logStream != null) {
             logStream.flush();
         }
-        for (FileOutputStream log : streamsToFlush) {
+        for (OutputStream log : streamsToFlush) {
             log.flush();
-            if (forceSync) {
-                long startSyncNS = System.nanoTime();
-
-                FileChannel channel = log.getChannel();
-                channel.force(false);
-
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    if (serverStats != null) {
-                        serverStats.incrementFsyncThresholdExceedCount();
-                    }
-
-                    LOG.warn(
-                        "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
-                            + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
-                        Thread.currentThread().getName(),
-                        syncElapsedMS,
-                        channel.size());
-                }
-
-                ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
-            }
-        }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.poll().close();
         }
 
         // Roll the log file if we exceed the size limit
@@ -431,6 +514,64 @@ public synchronized void commit() throws IOException {
         }
     }
 
+    /**
+     * force everything flushed so far to disk. Only the list of files to
+     * sync is taken under the log monitor, so appends can go on while the
+     * fsync is in progress.
+     */
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            List<OutputStream> toSync;
+            int toClose;
+            synchronized (this) {
+                toSync = new ArrayList<>(streamsToFlush);
+                // all but the current log have been rolled and are closed once synced
+                toClose = Math.max(0, toSync.size() - 1);
+                for (int i = 0; i < toClose; i++) {
+                    streamsToFlush.poll();
+                }
+            }
+            for (OutputStream log : toSync) {
+                if (forceSync) {
+                    long startSyncNS = System.nanoTime();
+
+                    FileChannel channel;
+                    if (log instanceof MappedTxnLogOutputStream) {
+                        MappedTxnLogOutputStream mapped = (MappedTxnLogOutputStream) log;
+                        mapped.force();
+                        channel = mapped.getChannel();
+                    } else {
+                        channel = ((FileOutputStream) log).getChannel();
+                        channel.force(false);
+                    }
+
+                    syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+                    if (syncElapsedMS > fsyncWarningThresholdMS) {
+                        ServerStats stats;
+                        synchronized (this) {
+                            stats = serverStats;
+                        }
+                        if (stats != null) {
+                            stats.incrementFsyncThresholdExceedCount();
+                        }
+
+                        LOG.warn(
+                            "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
+                                + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
+                            Thread.currentThread().getName(),
+                            syncElapsedMS,
+                            channel.size());
+                    }
+
+                    ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+                }
+            }
+            for (int i = 0; i < toClose; i++) {
+                toSync.get(i).close();
+            }
+        }
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log in milliseconds
@@ -478,10 +619,23 @@ public boolean truncate(long zxid) throws IOException {
                                       + "log files were deleted accidentally or dataLogDir was changed in zoo.cfg.");
             }
             long pos = input.getPosition();
+            TxnLogBlockInputStream blockStream = itr.blockStream;
+            byte[] keptRecords = null;
+            if (blockStream != null && !blockStream.isBlockConsumed()) {
+                // cut the block the zxid is in, and write its first records back
+                pos = itr.blocksStart + blockStream.getBlockStart();
+                keptRecords = blockStream.getConsumedRecords();
+            }
             // now, truncate at the current position
             RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw");
             raf.setLength(pos);
             raf.close();
+            if (keptRecords != null && keptRecords.length > 0) {
+                try (TxnLogBlockOutputStream out = new TxnLogBlockOutputStream(
+                    new FileOutputStream(itr.logFile, true), blockStream.getBlockCompression(), keptRecords.length)) {
+                    out.write(keptRecords);
+                }
+            }
             while (itr.goToNextLog()) {
                 if (!itr.logFile.delete()) {
                     LOG.warn("Unable to truncate {}", itr.logFile);
@@ -626,6 +780,10 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
         static final String CRC_ERROR = "CRC check failed";
 
         PositionInputStream inputStream = null;
+        int logVersion;
+        // set for logs in BLOCK_VERSION
+        TxnLogBlockInputStream blockStream = null;
+        long blocksStart;
         //stored files is the list of files greater than
         //the zxid we are looking for.
         private ArrayList<File> storedFiles;
@@ -728,6 +886,7 @@ protected void inStreamCreated(InputArchive ia, InputStream is) throws IOExcepti
                                       + " has invalid magic number "
                                       + header.getMagic() + " != " + FileTxnLog.TXNLOG_MAGIC);
             }
+            logVersion = header.getVersion();
         }
 
         /**
@@ -741,6 +900,11 @@ protected InputArchive createInputArchive(File logFile) throws IOException {
                 LOG.debug("Created new input stream: {}", logFile);
                 ia = BinaryInputArchive.getArchive(inputStream);
                 inStreamCreated(ia, inputStream);
+                if (logVersion >= BLOCK_VERSION) {
+                    blocksStart = inputStream.getPosition();
+                    blockStream = new TxnLogBlockInputStream(inputStream);
+                    ia = BinaryInputArchive.getArchive(blockStream);
+                }
                 LOG.debug("Created new input archive: {}", logFile);
             }
             return ia;
@@ -785,6 +949,7 @@ public boolean next() throws IOException {
                 LOG.debug("EOF exception", e);
                 inputStream.close();
                 inputStream = null;
+                blockStream = null;
                 ia = null;
                 hdr = null;
                 // this means that the file has ended
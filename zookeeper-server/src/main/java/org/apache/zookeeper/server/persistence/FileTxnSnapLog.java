@@ -590,6 +590,22 @@ public void commit() throws IOException {
         txnLog.commit();
     }
 
+    /**
+     * flush the transaction logs without forcing them to disk
+     * @throws IOException
+     */
+    public void flushLog() throws IOException {
+        txnLog.flush();
+    }
+
+    /**
+     * force the flushed transaction logs to disk
+     * @throws IOException
+     */
+    public void syncLog() throws IOException {
+        txnLog.sync();
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log commit in milliseconds
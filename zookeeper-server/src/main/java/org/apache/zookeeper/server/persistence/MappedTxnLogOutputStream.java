@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OutputStream appending to a transaction log file through memory mapped
+ * segments of a fixed size.
+ * <p>
+ * Each segment is mapped, and so preallocated, as a whole when the previous
+ * one is full. The unwritten tail of the last segment stays zero filled,
+ * which is the same layout the padding of {@link FilePadding} produces, so
+ * the file can be read by {@link FileTxnLog.FileTxnIterator} and
+ * {@link TxnLogToolkit} as is.
+ * <p>
+ * A segment is unmapped once it is full and forced, and the others when
+ * the stream is closed, rather than when the garbage collector gets to
+ * them, so rolled logs don't keep their address space and file handles.
+ * The JDK has no API for it, the cleaner of the buffer is run through
+ * reflection, and the segments are left to the garbage collector on JVMs
+ * where it isn't accessible. Unmapped segments must not be touched again,
+ * so forcing and closing are serialized.
+ * <p>
+ * Not thread safe, writes and close are serialized by {@link FileTxnLog}.
+ * Only {@link #force()} may be called concurrently with them.
+ */
+class MappedTxnLogOutputStream extends OutputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedTxnLogOutputStream.class);
+
+    private interface Unmapper {
+
+        void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+
+    }
+
+    /** null if the segments can't be unmapped explicitly */
+    private static final Unmapper UNMAPPER = newUnmapper();
+
+    private static Unmapper newUnmapper() {
+        try {
+            // java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unsafe.invokeCleaner is not available", e);
+        }
+        try {
+            // java 8
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> clean.invoke(cleaner.invoke(buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.info("Mapped txn log segments will be unmapped by the garbage collector", e);
+            return null;
+        }
+    }
+
+    private static void unmap(MappedByteBuffer segment) {
+        if (UNMAPPER == null) {
+            return;
+        }
+        try {
+            UNMAPPER.unmap(segment);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unable to unmap a txn log segment", e);
+        }
+    }
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long segmentSize;
+
+    /** segments written since the last force, the last one is the current */
+    private final List<MappedByteBuffer> dirtySegments = new ArrayList<>();
+    private MappedByteBuffer current;
+    private long currentStart;
+
+    /** serializes forcing and unmapping the segments */
+    private final Object forceLock = new Object();
+    private volatile boolean closed;
+
+    MappedTxnLogOutputStream(File file, long segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive: " + segmentSize);
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.segmentSize = segmentSize;
+        mapSegment(0);
+    }
+
+    private void mapSegment(long start) throws IOException {
+        // mapping past the end of the file extends it
+        current = channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize);
+        currentStart = start;
+        synchronized (dirtySegments) {
+            dirtySegments.add(current);
+        }
+    }
+
+    private void ensureRemaining() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (!current.hasRemaining()) {
+            mapSegment(currentStart + segmentSize);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureRemaining();
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureRemaining();
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the file
+     */
+    long position() {
+        return currentStart + current.position();
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * force the segments written since the last call to disk
+     */
+    void force() {
+        synchronized (forceLock) {
+            if (closed) {
+                return;
+            }
+            List<MappedByteBuffer> toForce;
+            synchronized (dirtySegments) {
+                toForce = new ArrayList<>(dirtySegments);
+                // keep the segment being written, it will be dirty again
+                MappedByteBuffer last = dirtySegments.get(dirtySegments.size() - 1);
+                dirtySegments.clear();
+                dirtySegments.add(last);
+            }
+            for (MappedByteBuffer segment : toForce) {
+                segment.force();
+            }
+            // the others are full and no longer referenced
+            for (int i = 0; i < toForce.size() - 1; i++) {
+                unmap(toForce.get(i));
+            }
+        }
+    }
+
+    /**
+     * Close the file and unmap the segments not unmapped yet, nothing may
+     * be written afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (forceLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            raf.close();
+            synchronized (dirtySegments) {
+                for (MappedByteBuffer segment : dirtySegments) {
+                    unmap(segment);
+                }
+                dirtySegments.clear();
+            }
+        }
+    }
+
+}
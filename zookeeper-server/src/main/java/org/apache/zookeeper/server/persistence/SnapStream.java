@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server.persistence;
 
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -29,12 +31,17 @@
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.zookeeper.common.AtomicFileOutputStream;
@@ -53,17 +60,43 @@ public class SnapStream {
 
     public static final String ZOOKEEPER_SHAPSHOT_STREAM_MODE = "zookeeper.snapshot.compression.method";
 
+    public static final String ZOOKEEPER_SNAPSHOT_ZSTD_LEVEL = "zookeeper.snapshot.compression.zstd.level";
+
+    public static final String ZOOKEEPER_SNAPSHOT_ZSTD_DICTIONARY = "zookeeper.snapshot.compression.zstd.dictionary";
+
+    public static final int DEFAULT_ZSTD_LEVEL = 3;
+
+    private static final int ZSTD_MAGIC = 0xFD2FB528;
+
+    private static final int LZ4_FRAME_MAGIC = 0x184D2204;
+
     private static StreamMode streamMode = StreamMode.fromString(
         System.getProperty(ZOOKEEPER_SHAPSHOT_STREAM_MODE,
                            StreamMode.DEFAULT_MODE.getName()));
 
+    private static int zstdLevel = Integer.getInteger(ZOOKEEPER_SNAPSHOT_ZSTD_LEVEL, DEFAULT_ZSTD_LEVEL);
+
+    /**
+     * The dictionary used to both write and read ZSTD snapshots, or null to
+     * not use one. Snapshots written with a dictionary can only be read with
+     * the same dictionary.
+     */
+    private static byte[] zstdDictionary = loadZstdDictionary(System.getProperty(ZOOKEEPER_SNAPSHOT_ZSTD_DICTIONARY));
+
     static {
         LOG.info("{} = {}", ZOOKEEPER_SHAPSHOT_STREAM_MODE, streamMode);
+        if (streamMode == StreamMode.ZSTD) {
+            LOG.info("{} = {}, {} = {}",
+                     ZOOKEEPER_SNAPSHOT_ZSTD_LEVEL, zstdLevel,
+                     ZOOKEEPER_SNAPSHOT_ZSTD_DICTIONARY, System.getProperty(ZOOKEEPER_SNAPSHOT_ZSTD_DICTIONARY));
+        }
     }
 
     public enum StreamMode {
         GZIP("gz"),
         SNAPPY("snappy"),
+        ZSTD("zst"),
+        LZ4("lz4"),
         CHECKED("");
 
         public static final StreamMode DEFAULT_MODE = CHECKED;
@@ -109,6 +142,16 @@ public static CheckedInputStream getInputStream(File file) throws IOException {
         case SNAPPY:
             is = new SnappyInputStream(fis);
             break;
+        case ZSTD:
+            ZstdInputStream zis = new ZstdInputStream(fis);
+            if (zstdDictionary != null) {
+                zis.setDict(zstdDictionary);
+            }
+            is = new BufferedInputStream(zis);
+            break;
+        case LZ4:
+            is = new LZ4FrameInputStream(fis);
+            break;
         case CHECKED:
         default:
             is = new BufferedInputStream(fis);
@@ -134,6 +177,16 @@ public static CheckedOutputStream getOutputStream(File file, boolean fsync) thro
         case SNAPPY:
             os = new SnappyOutputStream(fos);
             break;
+        case ZSTD:
+            ZstdOutputStream zos = new ZstdOutputStream(fos, zstdLevel);
+            if (zstdDictionary != null) {
+                zos.setDict(zstdDictionary);
+            }
+            os = new BufferedOutputStream(zos);
+            break;
+        case LZ4:
+            os = new LZ4FrameOutputStream(fos);
+            break;
         case CHECKED:
         default:
             os = new BufferedOutputStream(fos);
@@ -191,6 +244,12 @@ public static boolean isValidSnapshot(File file) throws IOException {
         case SNAPPY:
             isValid = isValidSnappyStream(file);
             break;
+        case ZSTD:
+            isValid = isValidStreamWithMagic(file, ZSTD_MAGIC);
+            break;
+        case LZ4:
+            isValid = isValidStreamWithMagic(file, LZ4_FRAME_MAGIC);
+            break;
         case CHECKED:
         default:
             isValid = isValidCheckedStream(file);
@@ -206,6 +265,28 @@ public static StreamMode getStreamMode() {
         return streamMode;
     }
 
+    public static void setZstdLevel(int level) {
+        zstdLevel = level;
+    }
+
+    /**
+     * @param dictionary the ZSTD dictionary to use, or null to not use one
+     */
+    public static void setZstdDictionary(byte[] dictionary) {
+        zstdDictionary = dictionary;
+    }
+
+    private static byte[] loadZstdDictionary(String path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(Paths.get(path));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the ZSTD dictionary " + path, e);
+        }
+    }
+
     /**
      * Detect the stream mode from file name extension
      *
@@ -275,6 +356,29 @@ private static boolean isValidSnappyStream(File f) throws IOException {
         }
     }
 
+    /**
+     * Certify the integrity of a stream whose frames start with a 4 byte
+     * little endian magic number, like ZSTD and LZ4 frames.
+     *
+     * @param f file to verify
+     * @param magic the expected magic number
+     * @return true if it has the correct magic number
+     * @throws IOException
+     */
+    private static boolean isValidStreamWithMagic(File f, int magic) throws IOException {
+        byte[] byteArray = new byte[4];
+        try (FileInputStream fis = new FileInputStream(f)) {
+            if (4 != fis.read(byteArray, 0, 4)) {
+                LOG.error("Read incorrect number of bytes from {}", f.getName());
+                return false;
+            }
+            return ByteBuffer.wrap(byteArray).order(ByteOrder.LITTLE_ENDIAN).getInt() == magic;
+        } catch (FileNotFoundException e) {
+            LOG.error("Unable to open file {}", f.getName(), e);
+            return false;
+        }
+    }
+
     /**
      * Certify the Checked stream integrity by checking the header
      * length and format
@@ -101,6 +101,21 @@ public interface TxnLog extends Closeable {
      */
     void commit() throws IOException;
 
+    /**
+     * flush the appended transactions out of any write
+     * buffers without forcing them to disk. Together with
+     * {@link #sync()} this is the two halves of {@link #commit()}.
+     * @throws IOException
+     */
+    void flush() throws IOException;
+
+    /**
+     * force the transactions flushed so far to disk. This may
+     * run concurrently with {@link #append(TxnHeader, Record, TxnDigest)}.
+     * @throws IOException
+     */
+    void sync() throws IOException;
+
     /**
      *
      * @return transaction log's elapsed sync time in milliseconds
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the records of the blocks written by {@link TxnLogBlockOutputStream}
+ * as one continuous stream, in the format of an uncompressed log. The end of
+ * the stream is reached at the end of the file, at the zero padding, or at a
+ * block which was only partially written.
+ * <p>
+ * Not thread safe.
+ */
+public class TxnLogBlockInputStream extends InputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogBlockInputStream.class);
+
+    static final String CRC_ERROR = "Block CRC check failed";
+
+    /**
+     * Upper bound of the lengths read from a block header, so that garbage
+     * can't make us allocate arbitrary amounts of memory.
+     */
+    static final int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final DataInputStream in;
+
+    private byte[] block = EMPTY;
+    private int pos;
+    private TxnLogCompression blockCompression = TxnLogCompression.NONE;
+    /** offset of the current block from the start of the stream */
+    private long blockStart;
+    /** offset of the next block from the start of the stream */
+    private long nextBlockStart;
+    private boolean eof;
+
+    public TxnLogBlockInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return block.length - pos;
+    }
+
+    private boolean fill() throws IOException {
+        while (pos == block.length) {
+            if (eof || !readBlock()) {
+                eof = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readBlock() throws IOException {
+        long checksum;
+        TxnLogCompression compression;
+        int rawLength;
+        int length;
+        byte[] payload;
+        try {
+            checksum = in.readLong();
+            int compressionId = in.readByte();
+            rawLength = in.readInt();
+            length = in.readInt();
+            if (length == 0) {
+                // Since we preallocate, we define EOF to be an
+                // empty block
+                return false;
+            }
+            if (length < 0 || length > MAX_BLOCK_LENGTH || rawLength < 0 || rawLength > MAX_BLOCK_LENGTH) {
+                throw new IOException("Unreasonable block length " + length + " (" + rawLength + " uncompressed)");
+            }
+            compression = TxnLogCompression.fromId(compressionId);
+            payload = new byte[length];
+            in.readFully(payload);
+            if (in.readByte() != TxnLogBlockOutputStream.EOB) {
+                LOG.error("Last block was partial.");
+                return false;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+
+        Adler32 crc = new Adler32();
+        crc.update(payload, 0, payload.length);
+        if (crc.getValue() != checksum) {
+            throw new IOException(CRC_ERROR);
+        }
+        try {
+            block = compression.decompress(payload, rawLength);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to decompress " + compression + " block", e);
+        }
+        pos = 0;
+        blockCompression = compression;
+        blockStart = nextBlockStart;
+        nextBlockStart += 8 + 1 + 4 + 4 + length + 1;
+        return true;
+    }
+
+    /**
+     * @return the offset of the current block from the start of the stream
+     */
+    public long getBlockStart() {
+        return blockStart;
+    }
+
+    /**
+     * @return the offset of the end of the current block from the start of
+     *         the stream
+     */
+    public long getBlockEnd() {
+        return nextBlockStart;
+    }
+
+    /**
+     * @return the records of the current block which have been read so far
+     */
+    public byte[] getConsumedRecords() {
+        return Arrays.copyOf(block, pos);
+    }
+
+    /**
+     * @return true if all the records of the current block have been read
+     */
+    public boolean isBlockConsumed() {
+        return pos == block.length;
+    }
+
+    public TxnLogCompression getBlockCompression() {
+        return blockCompression;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
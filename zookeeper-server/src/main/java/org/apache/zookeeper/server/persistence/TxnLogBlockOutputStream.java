@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+
+/**
+ * Groups the records of a transaction log into compressed blocks. A block
+ * is cut when the stream is flushed, or by {@link #endRecord()} once it
+ * reached the block size, so a block only holds whole records.
+ * <p>
+ * The layout of a block is:
+ * <blockquote><pre>
+ * Block:
+ *     checksum compression rawLength length payload 0x42
+ *
+ * checksum: 8bytes Adler32 of the payload
+ * compression: 1byte id of the {@link TxnLogCompression}
+ * rawLength: 4bytes length of the uncompressed payload
+ * length: 4bytes length of the payload
+ * payload: the compressed records, each one in the same format as in an
+ *     uncompressed log
+ * </pre></blockquote>
+ * Zero padding reads as a block of length 0, which marks the end of the log.
+ * Not thread safe.
+ */
+public class TxnLogBlockOutputStream extends OutputStream {
+
+    static final int EOB = 'B';
+
+    private final DataOutputStream out;
+    private final TxnLogCompression compression;
+    private final int blockSize;
+    private final ByteArrayOutputStream block;
+
+    /**
+     * @param out the stream blocks are written to
+     * @param compression the compression of the blocks
+     * @param blockSize the size of uncompressed records after which a block is cut
+     */
+    public TxnLogBlockOutputStream(OutputStream out, TxnLogCompression compression, int blockSize) {
+        this.out = new DataOutputStream(out);
+        this.compression = compression;
+        this.blockSize = blockSize;
+        this.block = new ByteArrayOutputStream(blockSize);
+    }
+
+    @Override
+    public void write(int b) {
+        block.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        block.write(b, off, len);
+    }
+
+    /**
+     * Called after a whole record has been written, cuts the block once it
+     * reached the block size.
+     */
+    public void endRecord() throws IOException {
+        if (block.size() >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (block.size() == 0) {
+            return;
+        }
+        byte[] raw = block.toByteArray();
+        byte[] payload = compression.compress(raw);
+        Adler32 checksum = new Adler32();
+        checksum.update(payload, 0, payload.length);
+        out.writeLong(checksum.getValue());
+        out.writeByte(compression.getId());
+        out.writeInt(raw.length);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeByte(EOB);
+        block.reset();
+    }
+
+    /**
+     * Cut the current block and flush it to the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import com.github.luben.zstd.Zstd;
+import java.io.IOException;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * The compression of the blocks of a block formatted transaction log, see
+ * {@link TxnLogBlockOutputStream}. The id of a compression is stored in
+ * each block, so blocks compressed differently can be mixed in a log.
+ */
+public enum TxnLogCompression {
+    NONE(0, "none") {
+        @Override
+        byte[] compress(byte[] raw) {
+            return raw;
+        }
+
+        @Override
+        byte[] decompress(byte[] compressed, int rawLength) {
+            return compressed;
+        }
+    },
+    LZ4(1, "lz4") {
+        @Override
+        byte[] compress(byte[] raw) {
+            return Lz4Holder.FACTORY.fastCompressor().compress(raw);
+        }
+
+        @Override
+        byte[] decompress(byte[] compressed, int rawLength) {
+            return Lz4Holder.FACTORY.fastDecompressor().decompress(compressed, rawLength);
+        }
+    },
+    ZSTD(2, "zstd") {
+        @Override
+        byte[] compress(byte[] raw) {
+            return Zstd.compress(raw);
+        }
+
+        @Override
+        byte[] decompress(byte[] compressed, int rawLength) {
+            return Zstd.decompress(compressed, rawLength);
+        }
+    };
+
+    private final int id;
+    private final String name;
+
+    TxnLogCompression(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    abstract byte[] compress(byte[] raw);
+
+    abstract byte[] decompress(byte[] compressed, int rawLength);
+
+    public static TxnLogCompression fromString(String name) {
+        for (TxnLogCompression c : values()) {
+            if (c.getName().equalsIgnoreCase(name)) {
+                return c;
+            }
+        }
+        return NONE;
+    }
+
+    public static TxnLogCompression fromId(int id) throws IOException {
+        for (TxnLogCompression c : values()) {
+            if (c.getId() == id) {
+                return c;
+            }
+        }
+        throw new IOException("Unknown txn log block compression " + id);
+    }
+
+    /**
+     * Loaded on first use only, the codec is an optional dependency.
+     */
+    private static class Lz4Holder {
+
+        static final LZ4Factory FACTORY = LZ4Factory.fastestInstance();
+
+    }
+
+}
@@ -186,8 +186,13 @@ public void dump(Scanner scanner) throws Exception {
         }
         System.out.println("ZooKeeper Transactional Log File with dbid " + fhdr.getDbid()
                            + " txnlog format version " + fhdr.getVersion());
+        if (fhdr.getVersion() >= FileTxnLog.BLOCK_VERSION) {
+            logStream = BinaryInputArchive.getArchive(new TxnLogBlockInputStream(txnFis));
+        }
 
         if (recoveryMode) {
+            // the recovered log is written uncompressed
+            fhdr.setVersion(FileTxnLog.VERSION);
             fhdr.serialize(recoveryOa, "fileheader");
             recoveryFos.flush();
             filePadding.setCurrentSize(recoveryFos.getChannel().position());
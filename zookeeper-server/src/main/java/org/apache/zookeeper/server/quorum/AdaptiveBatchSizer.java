@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+/**
+ * Tunes the read and commit batch sizes of the {@link CommitProcessor} from
+ * its queue depths and the observed time to apply a commit.
+ * <p>
+ * A commit batch holds as many of the queued commits as can be applied in
+ * the target batch time, as estimated from a moving average of the time
+ * per commit, so that reads are not held back for longer than that. The
+ * read batch is then sized in proportion of the read backlog to the commit
+ * backlog, so that both queues drain in about the same number of rounds:
+ * writes aren't starved by a read burst, nor reads by a write burst. With
+ * no commit waiting, reads are not batched, the processor switches to
+ * commits as soon as one is ready.
+ * <p>
+ * Only used by the commit processor thread.
+ */
+class AdaptiveBatchSizer {
+
+    static final int MAX_COMMIT_BATCH_SIZE = 1000;
+
+    static final int MAX_READ_BATCH_SIZE = 10000;
+
+    /** the weight of a new sample in the moving average */
+    private static final double ALPHA = 0.2;
+
+    private final long targetBatchNanos;
+
+    /** the moving average of the time to apply a commit, 0 if unknown */
+    private double commitNanos;
+
+    private int readBatchSize = -1;
+
+    private int commitBatchSize = 1;
+
+    /**
+     * @param targetBatchNanos how long a batch of commits should take
+     */
+    AdaptiveBatchSizer(long targetBatchNanos) {
+        this.targetBatchNanos = targetBatchNanos;
+    }
+
+    /**
+     * Account for the time it took to apply a batch of commits.
+     */
+    void recordCommits(int commits, long elapsedNanos) {
+        if (commits <= 0) {
+            return;
+        }
+        double sample = (double) elapsedNanos / commits;
+        commitNanos = commitNanos == 0 ? sample : commitNanos + ALPHA * (sample - commitNanos);
+    }
+
+    /**
+     * Size the batches of the next round from the current queue depths.
+     */
+    void update(int readsQueued, int commitsQueued) {
+        if (commitsQueued <= 0) {
+            readBatchSize = -1;
+            return;
+        }
+        long affordable = commitNanos <= 0 ? MAX_COMMIT_BATCH_SIZE : (long) (targetBatchNanos / commitNanos);
+        commitBatchSize = (int) clamp(Math.min(commitsQueued, affordable), 1, MAX_COMMIT_BATCH_SIZE);
+        long reads = (long) readsQueued * commitBatchSize / commitsQueued;
+        readBatchSize = (int) clamp(reads, 1, MAX_READ_BATCH_SIZE);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @return the max number of reads of the next round, negative to not
+     *         batch them
+     */
+    int getReadBatchSize() {
+        return readBatchSize;
+    }
+
+    int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    long getCommitNanos() {
+        return (long) commitNanos;
+    }
+
+}
@@ -19,19 +19,18 @@
 package org.apache.zookeeper.server.quorum;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.RequestQueueFactory;
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZooKeeperCriticalThread;
@@ -86,17 +85,21 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE = "zookeeper.commitProcessor.maxReadBatchSize";
     /** Default max commit batch size: 1 */
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE = "zookeeper.commitProcessor.maxCommitBatchSize";
+    /** Default: false, use the max read and commit batch sizes */
+    public static final String ZOOKEEPER_COMMIT_PROC_ADAPTIVE_BATCH_SIZE = "zookeeper.commitProcessor.adaptiveBatchSize";
+    /** Default target time of an adaptive commit batch in ms: 5 */
+    public static final String ZOOKEEPER_COMMIT_PROC_ADAPTIVE_TARGET_BATCH_TIME = "zookeeper.commitProcessor.adaptiveTargetBatchTimeMs";
 
     /**
      * Incoming requests.
      */
-    protected LinkedBlockingQueue<Request> queuedRequests = new LinkedBlockingQueue<Request>();
+    protected BlockingQueue<Request> queuedRequests = RequestQueueFactory.createQueue();
 
     /**
      * Incoming requests that are waiting on a commit,
      * contained in order of arrival
      */
-    protected final LinkedBlockingQueue<Request> queuedWriteRequests = new LinkedBlockingQueue<>();
+    protected final BlockingQueue<Request> queuedWriteRequests = RequestQueueFactory.createQueue();
 
     /**
      * The number of read requests currently held in all session queues
@@ -111,13 +114,19 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     /**
      * Requests that have been committed.
      */
-    protected final LinkedBlockingQueue<Request> committedRequests = new LinkedBlockingQueue<Request>();
+    protected final BlockingQueue<Request> committedRequests = RequestQueueFactory.createQueue();
 
     /**
      * Requests that we are holding until commit comes in. Keys represent
-     * session ids, each value is a linked list of the session's requests.
+     * session ids, each value is a queue of the session's requests.
      */
-    protected final Map<Long, Deque<Request>> pendingRequests = new HashMap<>(10000);
+    protected final SessionQueueMap pendingRequests = new SessionQueueMap(10000);
+
+    /**
+     * The session queues to drain after a batch of commits, reused across
+     * batches.
+     */
+    private final List<SessionQueueMap.SessionQueue> queuesToDrain = new ArrayList<>();
 
     /** The number of requests currently being processed */
     protected final AtomicInteger numRequestsProcessing = new AtomicInteger(0);
@@ -149,6 +158,20 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
      */
     private static volatile int maxCommitBatchSize;
 
+    /**
+     * Whether the read and commit batch sizes are tuned from the queue
+     * depths and the observed commit time, instead of the max sizes above.
+     */
+    private static volatile boolean adaptiveBatchSize;
+
+    private static volatile long adaptiveTargetBatchTimeMs;
+
+    /** The batch sizes used in the current round, exposed as gauges. */
+    private static volatile int currentReadBatchSize;
+    private static volatile int currentCommitBatchSize;
+
+    private AdaptiveBatchSizer batchSizer;
+
     /**
      * This flag indicates whether we need to wait for a response to come back from the
      * leader or we just let the sync operation flow through like a read. The flag will
@@ -231,6 +254,10 @@ public void run() {
                 ServerMetrics.getMetrics().WRITES_QUEUED_IN_COMMIT_PROCESSOR.add(numWriteQueuedRequests.get());
                 ServerMetrics.getMetrics().COMMITS_QUEUED_IN_COMMIT_PROCESSOR.add(committedRequests.size());
 
+                updateBatchSizes();
+                final int readBatchSize = currentReadBatchSize;
+                final int commitBatchSize = currentCommitBatchSize;
+
                 long time = Time.currentElapsedTime();
 
                 /*
@@ -246,12 +273,12 @@ public void run() {
                 int readsProcessed = 0;
                 while (!stopped
                        && requestsToProcess > 0
-                       && (maxReadBatchSize < 0 || readsProcessed <= maxReadBatchSize)
+                       && (readBatchSize < 0 || readsProcessed <= readBatchSize)
                        && (request = queuedRequests.poll()) != null) {
                     requestsToProcess--;
                     if (needCommit(request) || pendingRequests.containsKey(request.sessionId)) {
                         // Add request to pending
-                        Deque<Request> requests = pendingRequests.computeIfAbsent(request.sessionId, sid -> new ArrayDeque<>());
+                        Deque<Request> requests = pendingRequests.getOrCreate(request.sessionId);
                         requests.addLast(request);
                         ServerMetrics.getMetrics().REQUESTS_IN_SESSION_QUEUE.add(requests.size());
                     } else {
@@ -270,7 +297,7 @@ public void run() {
                      * pending write or for a write originating at a different
                      * server. We skip this if maxReadBatchSize is set.
                      */
-                    if (maxReadBatchSize < 0 && !pendingRequests.isEmpty() && !committedRequests.isEmpty()) {
+                    if (readBatchSize < 0 && !pendingRequests.isEmpty() && !committedRequests.isEmpty()) {
                         /*
                          * We set commitIsWaiting so that we won't check
                          * committedRequests again.
@@ -298,13 +325,13 @@ public void run() {
                         return;
                     }
 
-                    int commitsToProcess = maxCommitBatchSize;
+                    int commitsToProcess = commitBatchSize;
 
                     /*
                      * Loop through all the commits, and try to drain them.
                      */
-                    Set<Long> queuesToDrain = new HashSet<>();
                     long startWriteTime = Time.currentElapsedTime();
+                    long startWriteNanos = System.nanoTime();
                     int commitsProcessed = 0;
                     while (commitIsWaiting && !stopped && commitsToProcess > 0) {
 
@@ -329,7 +356,7 @@ public void run() {
                             /*
                              * Commit matches the earliest write in our write queue.
                              */
-                            Deque<Request> sessionQueue = pendingRequests.get(request.sessionId);
+                            SessionQueueMap.SessionQueue sessionQueue = pendingRequests.get(request.sessionId);
                             ServerMetrics.getMetrics().PENDING_SESSION_QUEUE_SIZE.add(pendingRequests.size());
                             if (sessionQueue == null || sessionQueue.isEmpty() || !needCommit(sessionQueue.peek())) {
                                 /*
@@ -366,7 +393,10 @@ public void run() {
                                 // Only decrement if we take a request off the queue.
                                 numWriteQueuedRequests.decrementAndGet();
                                 queuedWriteRequests.poll();
-                                queuesToDrain.add(request.sessionId);
+                                if (!sessionQueue.draining) {
+                                    sessionQueue.draining = true;
+                                    queuesToDrain.add(sessionQueue);
+                                }
                             }
                         }
                         /*
@@ -384,6 +414,9 @@ public void run() {
                     }
                     ServerMetrics.getMetrics().WRITE_BATCH_TIME_IN_COMMIT_PROCESSOR
                         .add(Time.currentElapsedTime() - startWriteTime);
+                    if (batchSizer != null) {
+                        batchSizer.recordCommits(commitsProcessed, System.nanoTime() - startWriteNanos);
+                    }
                     ServerMetrics.getMetrics().WRITES_ISSUED_IN_COMMIT_PROC.add(commitsProcessed);
 
                     /*
@@ -391,8 +424,8 @@ public void run() {
                      * empty.
                      */
                     readsProcessed = 0;
-                    for (Long sessionId : queuesToDrain) {
-                        Deque<Request> sessionQueue = pendingRequests.get(sessionId);
+                    for (SessionQueueMap.SessionQueue sessionQueue : queuesToDrain) {
+                        sessionQueue.draining = false;
                         int readsAfterWrite = 0;
                         while (!stopped && !sessionQueue.isEmpty() && !needCommit(sessionQueue.peek())) {
                             numReadQueuedRequests.decrementAndGet();
@@ -404,10 +437,11 @@ public void run() {
 
                         // Remove empty queues
                         if (sessionQueue.isEmpty()) {
-                            pendingRequests.remove(sessionId);
+                            pendingRequests.remove(sessionQueue.sessionId);
                         }
                     }
                     ServerMetrics.getMetrics().SESSION_QUEUES_DRAINED.add(queuesToDrain.size());
+                    queuesToDrain.clear();
                     ServerMetrics.getMetrics().READ_ISSUED_FROM_SESSION_QUEUE.add(readsProcessed);
                 }
 
@@ -448,6 +482,9 @@ public void start() {
         workerShutdownTimeoutMS = Long.getLong(ZOOKEEPER_COMMIT_PROC_SHUTDOWN_TIMEOUT, 5000);
 
         initBatchSizes();
+        if (adaptiveBatchSize) {
+            batchSizer = new AdaptiveBatchSizer(TimeUnit.MILLISECONDS.toNanos(adaptiveTargetBatchTimeMs));
+        }
 
         LOG.info(
             "Configuring CommitProcessor with {} worker threads.",
@@ -470,6 +507,21 @@ private void sendToNextProcessor(Request request) {
         workerPool.schedule(workRequest, request.sessionId);
     }
 
+    /**
+     * Pick the batch sizes of the next round, tuned from the queue depths
+     * if adaptive batch sizes are enabled.
+     */
+    private void updateBatchSizes() {
+        if (batchSizer == null) {
+            currentReadBatchSize = maxReadBatchSize;
+            currentCommitBatchSize = maxCommitBatchSize;
+            return;
+        }
+        batchSizer.update(numReadQueuedRequests.get(), committedRequests.size());
+        currentReadBatchSize = batchSizer.getReadBatchSize();
+        currentCommitBatchSize = batchSizer.getCommitBatchSize();
+    }
+
     private void processWrite(Request request) throws RequestProcessorException {
         processCommitMetrics(request, true);
 
@@ -481,16 +533,30 @@ private void processWrite(Request request) throws RequestProcessorException {
     private static void initBatchSizes() {
         maxReadBatchSize = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE, -1);
         maxCommitBatchSize = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE, 1);
+        adaptiveBatchSize = Boolean.getBoolean(ZOOKEEPER_COMMIT_PROC_ADAPTIVE_BATCH_SIZE);
+        adaptiveTargetBatchTimeMs = Long.getLong(ZOOKEEPER_COMMIT_PROC_ADAPTIVE_TARGET_BATCH_TIME, 5);
 
         if (maxCommitBatchSize <= 0) {
             String errorMsg = "maxCommitBatchSize must be positive, was " + maxCommitBatchSize;
             throw new IllegalArgumentException(errorMsg);
         }
+        if (adaptiveTargetBatchTimeMs <= 0) {
+            String errorMsg = "adaptiveTargetBatchTimeMs must be positive, was " + adaptiveTargetBatchTimeMs;
+            throw new IllegalArgumentException(errorMsg);
+        }
+        currentReadBatchSize = maxReadBatchSize;
+        currentCommitBatchSize = maxCommitBatchSize;
 
-        LOG.info
-            ("Configuring CommitProcessor with readBatchSize {} commitBatchSize {}",
-             maxReadBatchSize,
-             maxCommitBatchSize);
+        if (adaptiveBatchSize) {
+            LOG.info
+                ("Configuring CommitProcessor with adaptive batch sizes, targetBatchTimeMs {}",
+                 adaptiveTargetBatchTimeMs);
+        } else {
+            LOG.info
+                ("Configuring CommitProcessor with readBatchSize {} commitBatchSize {}",
+                 maxReadBatchSize,
+                 maxCommitBatchSize);
+        }
     }
 
     private static void processCommitMetrics(Request request, boolean isWrite) {
@@ -521,6 +587,22 @@ public static int getMaxCommitBatchSize() {
         return maxCommitBatchSize;
     }
 
+    public static boolean isAdaptiveBatchSize() {
+        return adaptiveBatchSize;
+    }
+
+    /**
+     * @return the read batch size of the current round, negative if reads
+     *         are not batched
+     */
+    public static int getCurrentReadBatchSize() {
+        return currentReadBatchSize;
+    }
+
+    public static int getCurrentCommitBatchSize() {
+        return currentCommitBatchSize;
+    }
+
     public static void setMaxReadBatchSize(int size) {
         maxReadBatchSize = size;
         LOG.info("Configuring CommitProcessor with readBatchSize {}", maxReadBatchSize);
@@ -199,13 +199,26 @@ protected void processPacket(QuorumPacket qp) throws Exception {
                 ServerMetrics.getMetrics().OM_PROPOSAL_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
             }
             break;
+        case Leader.PROPOSALS:
+            for (QuorumPacket proposal : ProposalBatch.unpack(qp)) {
+                processPacket(proposal);
+            }
+            break;
         case Leader.COMMIT:
-            ServerMetrics.getMetrics().LEARNER_COMMIT_RECEIVED_COUNT.add(1);
-            fzk.commit(qp.getZxid());
-            if (om != null) {
-                final long startTime = Time.currentElapsedTime();
-                om.proposalCommitted(qp.getZxid());
-                ServerMetrics.getMetrics().OM_COMMIT_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
+            // a batching leader commits a range of zxids at once, the data
+            // of the commit being the first one
+            long firstZxid = qp.getZxid();
+            if (isBatching() && qp.getData() != null && qp.getData().length == 8) {
+                firstZxid = ByteBuffer.wrap(qp.getData()).getLong();
+            }
+            for (long zxid = firstZxid; zxid <= qp.getZxid(); zxid++) {
+                ServerMetrics.getMetrics().LEARNER_COMMIT_RECEIVED_COUNT.add(1);
+                fzk.commit(zxid);
+                if (om != null) {
+                    final long startTime = Time.currentElapsedTime();
+                    om.proposalCommitted(zxid);
+                    ServerMetrics.getMetrics().OM_COMMIT_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
+                }
             }
             break;
 
@@ -91,6 +91,30 @@ public static class Proposal extends SyncedLearnerTracker {
         public QuorumPacket packet;
         public Request request;
 
+        private final AtomicBoolean quorumReached = new AtomicBoolean();
+
+        /**
+         * The learner handler threads ack concurrently, the ack sets of a
+         * proposal are concurrent sets rather than guarded by the leader.
+         */
+        @Override
+        protected Set<Long> newAckset(int voterCount) {
+            return ConcurrentHashMap.newKeySet(voterCount);
+        }
+
+        /**
+         * Count the ack of a server, may be called from several threads.
+         *
+         * @return true for the one ack which completes the quorums of all
+         *         the configurations of the proposal
+         */
+        public boolean addAckAndCheckQuorums(long sid) {
+            if (!addAck(sid) || quorumReached.get()) {
+                return false;
+            }
+            return hasAllQuorums() && quorumReached.compareAndSet(false, true);
+        }
+
         @Override
         public String toString() {
             return packet.getType() + ", " + packet.getZxid() + ", " + request;
@@ -115,6 +139,85 @@ public static int getAckLoggingFrequency() {
         return ackLoggingFrequency;
     }
 
+    // Batch consecutive proposals, commits and informs to the learners, and
+    // the acks of the followers, when both ends of the connection enable it.
+    public static final String PROPOSAL_BATCHING = "zookeeper.leader.proposalBatching";
+    private static boolean proposalBatching;
+
+    // The most proposals, commits or informs sent to a learner in one packet
+    // when batching.
+    public static final String MAX_PROPOSAL_BATCH_SIZE = "zookeeper.leader.maxProposalBatchSize";
+    private static int maxProposalBatchSize;
+
+    // Stream the snapshot of a SNAP sync in independently decodable chunks,
+    // which the learner loads in parallel while it receives them, when
+    // both ends enable it.
+    public static final String STREAMING_SNAP_SYNC = "zookeeper.leader.streamingSnapSync";
+    private static boolean streamingSnapSync;
+
+    static {
+        proposalBatching = Boolean.getBoolean(PROPOSAL_BATCHING);
+        maxProposalBatchSize = Integer.getInteger(MAX_PROPOSAL_BATCH_SIZE, 100);
+        streamingSnapSync = Boolean.getBoolean(STREAMING_SNAP_SYNC);
+        LOG.info("{} = {}, {} = {}, {} = {}", PROPOSAL_BATCHING, proposalBatching, MAX_PROPOSAL_BATCH_SIZE, maxProposalBatchSize,
+                 STREAMING_SNAP_SYNC, streamingSnapSync);
+    }
+
+    public static void setProposalBatching(boolean enabled) {
+        proposalBatching = enabled;
+    }
+
+    public static boolean isProposalBatching() {
+        return proposalBatching;
+    }
+
+    public static void setMaxProposalBatchSize(int size) {
+        maxProposalBatchSize = size;
+    }
+
+    public static int getMaxProposalBatchSize() {
+        return maxProposalBatchSize;
+    }
+
+    public static void setStreamingSnapSync(boolean enabled) {
+        streamingSnapSync = enabled;
+    }
+
+    public static boolean isStreamingSnapSync() {
+        return streamingSnapSync;
+    }
+
+    /**
+     * @return the protocol version with the bits of the features enabled on
+     *         this server, as advertised by a learner
+     */
+    static int getEnabledProtocolVersion() {
+        int version = BASE_PROTOCOL_VERSION;
+        if (proposalBatching) {
+            version |= BATCHING_FEATURE;
+        }
+        if (streamingSnapSync) {
+            version |= STREAMING_SNAP_FEATURE;
+        }
+        return version;
+    }
+
+    /**
+     * @param learnerVersion the protocol version advertised by a learner
+     * @return the protocol version granted to the learner, with the bits of
+     *         the features enabled on both ends
+     */
+    static int negotiateProtocolVersion(int learnerVersion) {
+        return BASE_PROTOCOL_VERSION | (getEnabledProtocolVersion() & learnerVersion & FEATURE_MASK);
+    }
+
+    /**
+     * @return whether a protocol version has the bit of a feature
+     */
+    static boolean hasFeature(int protocolVersion, int feature) {
+        return protocolVersion >= BASE_PROTOCOL_VERSION && (protocolVersion & feature) != 0;
+    }
+
     final LeaderZooKeeperServer zk;
 
     final QuorumPeer self;
@@ -425,6 +528,41 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
      */
     static final int INFORMANDACTIVATE = 19;
 
+    /**
+     * This message type carries several consecutive proposals, it is only
+     * sent to the followers which negotiated proposal batching.
+     */
+    static final int PROPOSALS = 20;
+
+    /**
+     * This message type carries several consecutive INFORM messages, it is
+     * only sent to the observers which negotiated batching.
+     */
+    static final int INFORMS = 21;
+
+    /**
+     * The protocol version of the learners and leaders since 3.4. The low
+     * bits carry the optional features, each negotiated on its own: a
+     * learner advertises the ones it enables and the leader grants those it
+     * enables as well.
+     */
+    static final int BASE_PROTOCOL_VERSION = 0x10000;
+
+    static final int FEATURE_MASK = 0xffff;
+
+    /**
+     * The feature bit of the learners and leaders which batch proposals,
+     * acks, commits and informs.
+     */
+    static final int BATCHING_FEATURE = 0x1;
+
+    /**
+     * The feature bit of the learners and leaders which stream the snapshot
+     * of a SNAP sync in the chunked format of
+     * {@link org.apache.zookeeper.server.DataTree#serializeChunked}.
+     */
+    static final int STREAMING_SNAP_FEATURE = 0x2;
+
     final ConcurrentMap<Long, Proposal> outstandingProposals = new ConcurrentHashMap<Long, Proposal>();
 
     private final ConcurrentLinkedQueue<Proposal> toBeApplied = new ConcurrentLinkedQueue<Proposal>();
@@ -555,7 +693,7 @@ private void acceptConnections() throws IOException {
 
     // when a reconfig occurs where the leader is removed or becomes an observer,
     // it does not commit ops after committing the reconfig
-    boolean allowedToCommit = true;
+    volatile boolean allowedToCommit = true;
 
     /**
      * Timestamp when this leader started serving request (Quorum is running)
@@ -921,6 +1059,9 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
             LOG.warn("First is {}", (lastCommitted + 1));
         }
 
+        // publish the commit before dropping the proposal, so that an ack
+        // not finding the proposal anymore sees it committed
+        lastCommitted = zxid;
         outstandingProposals.remove(zxid);
 
         if (p.request != null) {
@@ -972,14 +1113,18 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
 
     /**
      * Keep a count of acks that are received by the leader for a particular
-     * proposal
+     * proposal.
+     * <p>
+     * The acks of the learner handlers and of the leader itself are counted
+     * without taking the leader lock, only the ack completing the quorums of
+     * a proposal goes on to commit it, see {@link #commitInOrder}.
      *
      * @param zxid, the zxid of the proposal sent out
      * @param sid, the id of the server that sent the ack
      * @param followerAddr
      */
     @Override
-    public synchronized void processAck(long sid, long zxid, SocketAddress followerAddr) {
+    public void processAck(long sid, long zxid, SocketAddress followerAddr) {
         if (!allowedToCommit) {
             return; // last op committed was a leader change - from now on
         }
@@ -1016,6 +1161,11 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
         }
         Proposal p = outstandingProposals.get(zxid);
         if (p == null) {
+            if (lastCommitted >= zxid) {
+                // committed by another ack since the check above
+                LOG.debug("proposal has just been committed, zxid: 0x{}", Long.toHexString(zxid));
+                return;
+            }
             LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
             return;
         }
@@ -1024,28 +1174,35 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
             p.request.logLatency(ServerMetrics.getMetrics().ACK_LATENCY, Long.toString(sid));
         }
 
-        p.addAck(sid);
+        if (p.addAckAndCheckQuorums(sid)) {
+            commitInOrder(p, zxid, followerAddr);
+        }
+    }
 
+    /**
+     * Commit a proposal which got its quorums, and then the proposals after
+     * it which got theirs while waiting on it.
+     * <p>
+     * The acks of a learner are processed in order, but the acks of
+     * different learners are processed concurrently, so the thread
+     * completing the quorums of a proposal may get here after the one
+     * completing those of the next proposal. The next proposal then fails
+     * to commit before this one, and is committed here right after it.
+     */
+    synchronized void commitInOrder(Proposal p, long zxid, SocketAddress followerAddr) {
+        if (outstandingProposals.get(zxid) != p) {
+            // committed after the proposal before it
+            return;
+        }
         boolean hasCommitted = tryToCommit(p, zxid, followerAddr);
-
-        // If p is a reconfiguration, multiple other operations may be ready to be committed,
-        // since operations wait for different sets of acks.
-        // Currently we only permit one outstanding reconfiguration at a time
-        // such that the reconfiguration and subsequent outstanding ops proposed while the reconfig is
-        // pending all wait for a quorum of old and new config, so its not possible to get enough acks
-        // for an operation without getting enough acks for preceding ops. But in the future if multiple
-        // concurrent reconfigs are allowed, this can happen and then we need to check whether some pending
-        // ops may already have enough acks and can be committed, which is what this code does.
-
-        if (hasCommitted && p.request != null && p.request.getHdr().getType() == OpCode.reconfig) {
-            long curZxid = zxid;
-            while (allowedToCommit && hasCommitted && p != null) {
-                curZxid++;
-                p = outstandingProposals.get(curZxid);
-                if (p != null) {
-                    hasCommitted = tryToCommit(p, curZxid, null);
-                }
+        long curZxid = zxid;
+        while (allowedToCommit && hasCommitted) {
+            curZxid++;
+            p = outstandingProposals.get(curZxid);
+            if (p == null) {
+                break;
             }
+            hasCommitted = tryToCommit(p, curZxid, null);
         }
     }
 
@@ -1137,7 +1294,7 @@ void sendObserverPacket(QuorumPacket qp) {
         }
     }
 
-    long lastCommitted = -1;
+    volatile long lastCommitted = -1;
 
     /**
      * Create a commit packet and send it to all the members of the quorum
@@ -1148,7 +1305,7 @@ public void commit(long zxid) {
         synchronized (this) {
             lastCommitted = zxid;
         }
-        QuorumPacket qp = new QuorumPacket(Leader.COMMIT, zxid, null, null);
+        QuorumPacket qp = new SerializedQuorumPacket(Leader.COMMIT, zxid, null);
         sendPacket(qp);
         ServerMetrics.getMetrics().COMMIT_COUNT.add(1);
     }
@@ -1171,7 +1328,7 @@ public void commitAndActivate(long zxid, long designatedLeader) {
      * Create an inform packet and send it to all observers.
      */
     public void inform(Proposal proposal) {
-        QuorumPacket qp = new QuorumPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData(), null);
+        QuorumPacket qp = new SerializedQuorumPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData());
         sendObserverPacket(qp);
     }
 
@@ -1239,7 +1396,7 @@ public Proposal propose(Request request) throws XidRolloverException {
 
         byte[] data = SerializeUtils.serializeRequest(request);
         proposalStats.setLastBufferSize(data.length);
-        QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
+        QuorumPacket pp = new SerializedQuorumPacket(Leader.PROPOSAL, request.zxid, data);
 
         Proposal p = new Proposal();
         p.packet = pp;
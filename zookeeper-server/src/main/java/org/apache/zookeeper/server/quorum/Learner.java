@@ -55,6 +55,7 @@
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.apache.zookeeper.server.util.MessageTracker;
@@ -193,6 +194,22 @@ void writePacket(QuorumPacket pp, boolean flush) throws IOException {
         }
     }
 
+    /**
+     * @return whether the leader batches its packets to this learner, which
+     *         then acks cumulatively if it is a follower
+     */
+    boolean isBatching() {
+        return Leader.hasFeature(leaderProtocolVersion, Leader.BATCHING_FEATURE);
+    }
+
+    /**
+     * @return whether the leader streams the snapshot of a SNAP sync in
+     *         chunks, which are then loaded in parallel
+     */
+    boolean isStreamingSnap() {
+        return Leader.hasFeature(leaderProtocolVersion, Leader.STREAMING_SNAP_FEATURE);
+    }
+
     void writePacketNow(QuorumPacket pp, boolean flush) throws IOException {
         synchronized (leaderOs) {
             if (pp != null) {
@@ -492,7 +509,8 @@ protected long registerWithLeader(int pktType) throws IOException {
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getId(), 0x10000, self.getQuorumVerifier().getVersion());
+        int protocolVersion = Leader.getEnabledProtocolVersion();
+        LearnerInfo li = new LearnerInfo(self.getId(), protocolVersion, self.getQuorumVerifier().getVersion());
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
@@ -567,7 +585,13 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                 LOG.info("Getting a snapshot from leader 0x{}", Long.toHexString(qp.getZxid()));
                 // The leader is going to dump the database
                 // db is clear as part of deserializeSnapshot()
-                zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                if (isStreamingSnap()) {
+                    // the chunks are loaded while the rest of the snapshot
+                    // is still being received
+                    zk.getZKDatabase().deserializeChunkedSnapshot(leaderIs, FileSnap.getLoadThreads());
+                } else {
+                    zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                }
                 // ZOOKEEPER-2819: overwrite config node content extracted
                 // from leader snapshot with local config, to avoid potential
                 // inconsistency of config node content during rolling restart.
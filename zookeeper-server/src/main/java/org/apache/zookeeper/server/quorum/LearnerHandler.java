@@ -25,9 +25,11 @@
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
@@ -46,6 +48,7 @@
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
@@ -96,6 +99,26 @@ int getVersion() {
         return version;
     }
 
+    /**
+     * Whether proposals, commits and informs are batched to the learner, and
+     * its acks cumulative, as negotiated in the LEADERINFO exchange.
+     */
+    private boolean batching = false;
+
+    boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Whether a SNAP sync streams the snapshot in chunks, as negotiated in
+     * the LEADERINFO exchange.
+     */
+    private boolean streamingSnap = false;
+
+    boolean isStreamingSnap() {
+        return streamingSnap;
+    }
+
     /**
      * The packets to be sent to the learner
      */
@@ -176,6 +199,23 @@ public synchronized void updateAck(long zxid) {
             }
         }
 
+        /**
+         * Update for an ack of all the proposals up to a zxid.
+         */
+        public synchronized void updateAckUpTo(long zxid) {
+            if (nextZxid != 0 && nextZxid <= zxid) {
+                currentTime = 0;
+                currentZxid = 0;
+                nextTime = 0;
+                nextZxid = 0;
+            } else if (currentZxid != 0 && currentZxid <= zxid) {
+                currentTime = nextTime;
+                currentZxid = nextZxid;
+                nextTime = 0;
+                nextZxid = 0;
+            }
+        }
+
         public synchronized boolean check(long time) {
             if (currentTime == 0) {
                 return true;
@@ -316,6 +356,10 @@ public LearnerType getLearnerType() {
      */
     private void sendPackets() throws InterruptedException {
         long traceMask = ZooTrace.SERVER_PACKET_TRACE_MASK;
+        // packets are only batched once the learner is synced, it doesn't
+        // expect batches while syncing
+        boolean synced = false;
+        List<QuorumPacket> batched = new ArrayList<>();
         while (true) {
             try {
                 QuorumPacket p;
@@ -345,17 +389,18 @@ private void sendPackets() throws InterruptedException {
                 if (p.getType() == Leader.PROPOSAL) {
                     syncLimitCheck.updateProposal(p.getZxid(), System.nanoTime());
                 }
-                if (LOG.isTraceEnabled()) {
-                    ZooTrace.logQuorumPacket(LOG, traceMask, 'o', p);
+                if (synced && batching && isBatchable(p)) {
+                    batchPackets(p, batched);
+                    for (QuorumPacket packet : batched) {
+                        writePacket(packet, traceMask);
+                    }
+                    batched.clear();
+                } else {
+                    writePacket(p, traceMask);
                 }
-
-                // Log the zxid of the last request, if it is a valid zxid.
-                if (p.getZxid() > 0) {
-                    lastZxid = p.getZxid();
+                if (p.getType() == Leader.UPTODATE) {
+                    synced = true;
                 }
-                oa.writeRecord(p, "packet");
-                packetsSent.incrementAndGet();
-                messageTracker.trackSent(p.getType());
             } catch (IOException e) {
                 if (!sock.isClosed()) {
                     LOG.warn("Unexpected exception at {}", this, e);
@@ -373,6 +418,123 @@ private void sendPackets() throws InterruptedException {
         }
     }
 
+    private void writePacket(QuorumPacket p, long traceMask) throws IOException {
+        if (LOG.isTraceEnabled()) {
+            ZooTrace.logQuorumPacket(LOG, traceMask, 'o', p);
+        }
+
+        // Log the zxid of the last request, if it is a valid zxid.
+        if (p.getZxid() > 0) {
+            lastZxid = p.getZxid();
+        }
+        if (p instanceof SerializedQuorumPacket) {
+            // serialized once for all the learners it is queued to
+            bufferedOutput.write(((SerializedQuorumPacket) p).getSerialized());
+        } else {
+            oa.writeRecord(p, "packet");
+        }
+        packetsSent.incrementAndGet();
+        messageTracker.trackSent(p.getType());
+    }
+
+    private static boolean isBatchable(QuorumPacket p) {
+        int type = p.getType();
+        return !(p instanceof MarkerQuorumPacket)
+               && (type == Leader.PROPOSAL || type == Leader.COMMIT || type == Leader.INFORM);
+    }
+
+    /**
+     * Take the run of proposals, commits and informs queued right behind a
+     * packet, and batch them with it: the proposals and the informs are
+     * packed into one packet each, and the commits, always of consecutive
+     * zxids, are sent as one commit of the range.
+     * <p>
+     * The proposals are sent before the commits, as a commit may be of a
+     * proposal of the run. Any other packet ends the run, so that for
+     * instance a SYNC is still sent after the commit it waits for.
+     *
+     * @param batched the list the packets to send are added to
+     */
+    private void batchPackets(QuorumPacket first, List<QuorumPacket> batched) {
+        final int maxBatchSize = Leader.getMaxProposalBatchSize();
+        List<QuorumPacket> proposals = new ArrayList<>();
+        List<QuorumPacket> informs = new ArrayList<>();
+        int proposalBytes = 0;
+        int informBytes = 0;
+        QuorumPacket firstCommit = null;
+        long lastCommitZxid = -1;
+        int commitCount = 0;
+
+        QuorumPacket p = first;
+        while (true) {
+            switch (p.getType()) {
+            case Leader.PROPOSAL:
+                proposals.add(p);
+                proposalBytes += ProposalBatch.entrySize(p);
+                break;
+            case Leader.INFORM:
+                informs.add(p);
+                informBytes += ProposalBatch.entrySize(p);
+                break;
+            default:
+                if (firstCommit == null) {
+                    firstCommit = p;
+                }
+                lastCommitZxid = p.getZxid();
+                commitCount++;
+                break;
+            }
+
+            // this is the only thread taking packets off the queue
+            p = queuedPackets.peek();
+            if (p == null || !isBatchable(p)) {
+                break;
+            }
+            boolean fits;
+            switch (p.getType()) {
+            case Leader.PROPOSAL:
+                fits = proposals.size() < maxBatchSize
+                       && proposalBytes + ProposalBatch.entrySize(p) <= ProposalBatch.MAX_BATCH_BYTES;
+                break;
+            case Leader.INFORM:
+                fits = informs.size() < maxBatchSize
+                       && informBytes + ProposalBatch.entrySize(p) <= ProposalBatch.MAX_BATCH_BYTES;
+                break;
+            default:
+                fits = commitCount < maxBatchSize && (firstCommit == null || p.getZxid() == lastCommitZxid + 1);
+                break;
+            }
+            if (!fits) {
+                break;
+            }
+            queuedPackets.poll();
+            queuedPacketsSize.addAndGet(-packetSize(p));
+            if (p.getType() == Leader.PROPOSAL) {
+                syncLimitCheck.updateProposal(p.getZxid(), System.nanoTime());
+            }
+        }
+
+        if (!proposals.isEmpty()) {
+            ServerMetrics.getMetrics().PROPOSAL_BATCH_SIZE.add(proposals.size());
+            batched.add(proposals.size() == 1 ? proposals.get(0) : ProposalBatch.pack(Leader.PROPOSALS, proposals));
+        }
+        if (firstCommit != null) {
+            ServerMetrics.getMetrics().COMMIT_BATCH_SIZE.add(commitCount);
+            if (commitCount == 1) {
+                batched.add(firstCommit);
+            } else {
+                // the data of a commit of a range is its first zxid
+                byte[] data = new byte[8];
+                ByteBuffer.wrap(data).putLong(firstCommit.getZxid());
+                batched.add(new QuorumPacket(Leader.COMMIT, lastCommitZxid, data, null));
+            }
+        }
+        if (!informs.isEmpty()) {
+            ServerMetrics.getMetrics().INFORM_BATCH_SIZE.add(informs.size());
+            batched.add(informs.size() == 1 ? informs.get(0) : ProposalBatch.pack(Leader.INFORMS, informs));
+        }
+    }
+
     public static String packetToString(QuorumPacket p) {
         String type;
         String mess = null;
@@ -396,6 +558,12 @@ public static String packetToString(QuorumPacket p) {
         case Leader.PROPOSAL:
             type = "PROPOSAL";
             break;
+        case Leader.PROPOSALS:
+            type = "PROPOSALS";
+            break;
+        case Leader.INFORMS:
+            type = "INFORMS";
+            break;
         case Leader.REQUEST:
             type = "REQUEST";
             break;
@@ -525,8 +693,12 @@ public void run() {
                 // fake the message
                 learnerMaster.waitForEpochAck(this.getSid(), ss);
             } else {
+                // grant the learner the features enabled on both ends
+                int protocolVersion = Leader.negotiateProtocolVersion(this.getVersion());
+                batching = Leader.hasFeature(protocolVersion, Leader.BATCHING_FEATURE);
+                streamingSnap = Leader.hasFeature(protocolVersion, Leader.STREAMING_SNAP_FEATURE);
                 byte[] ver = new byte[4];
-                ByteBuffer.wrap(ver).putInt(0x10000);
+                ByteBuffer.wrap(ver).putInt(protocolVersion);
                 QuorumPacket newEpochPacket = new QuorumPacket(Leader.LEADERINFO, newLeaderZxid, ver, null);
                 oa.writeRecord(newEpochPacket, "packet");
                 messageTracker.trackSent(Leader.LEADERINFO);
@@ -573,7 +745,12 @@ public void run() {
                         syncThrottler.getSyncInProgress(),
                         exemptFromThrottle ? "exempt" : "not exempt");
                     // Dump data to peer
-                    learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                    if (streamingSnap) {
+                        // the chunks are sent as they are serialized
+                        learnerMaster.getZKDatabase().serializeChunkedSnapshot(oa, FileSnap.getChunkSize(), FileSnap.getWriteThreads());
+                    } else {
+                        learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                    }
                     oa.writeString("BenWasHere", "signature");
                     bufferedOutput.flush();
                 } finally {
@@ -671,6 +848,10 @@ public void run() {
                     if (this.learnerType == LearnerType.OBSERVER) {
                         LOG.debug("Received ACK from Observer {}", this.sid);
                     }
+                    if (batching && qp.getData() != null && qp.getData().length == 8) {
+                        processAcks(ByteBuffer.wrap(qp.getData()).getLong(), qp.getZxid());
+                        break;
+                    }
                     syncLimitCheck.updateAck(qp.getZxid());
                     learnerMaster.processAck(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
                     break;
@@ -1115,6 +1296,25 @@ static long packetSize(QuorumPacket p) {
         return size;
     }
 
+    /**
+     * Process a cumulative ack of a batching follower, which acks all the
+     * proposals it logged from the first zxid up to the last one.
+     */
+    private void processAcks(long firstZxid, long lastZxid) {
+        if (firstZxid > lastZxid || ZxidUtils.getEpochFromZxid(firstZxid) != ZxidUtils.getEpochFromZxid(lastZxid)) {
+            LOG.warn(
+                "Invalid ack range 0x{} to 0x{} from {}, only acking the last zxid",
+                Long.toHexString(firstZxid),
+                Long.toHexString(lastZxid),
+                sid);
+            firstZxid = lastZxid;
+        }
+        syncLimitCheck.updateAckUpTo(lastZxid);
+        for (long zxid = firstZxid; zxid <= lastZxid; zxid++) {
+            learnerMaster.processAck(this.sid, zxid, sock.getLocalSocketAddress());
+        }
+    }
+
     public boolean synced() {
         return isAlive() && learnerMaster.getCurrentTick() <= tickOfNextAckDeadline;
     }
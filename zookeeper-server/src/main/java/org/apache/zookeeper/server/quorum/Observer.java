@@ -205,6 +205,11 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             ObserverZooKeeperServer obs = (ObserverZooKeeperServer) zk;
             obs.commitRequest(request);
             break;
+        case Leader.INFORMS:
+            for (QuorumPacket inform : ProposalBatch.unpack(qp)) {
+                processPacket(inform);
+            }
+            break;
         case Leader.INFORMANDACTIVATE:
             // get new designated leader from (current) leader's message
             ByteBuffer buffer = ByteBuffer.wrap(qp.getData());
@@ -352,7 +352,7 @@ public QuorumAuthServer getQuorumAuthServer() {
     }
 
     void proposalReceived(QuorumPacket qp) {
-        proposedPkts.add(new QuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
+        proposedPkts.add(new SerializedQuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData()));
     }
 
     private synchronized QuorumPacket removeProposedPacket(long zxid) {
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs consecutive PROPOSAL packets into a single {@link Leader#PROPOSALS}
+ * packet, and consecutive INFORM packets into a single
+ * {@link Leader#INFORMS} packet, for the learners which negotiated
+ * batching.
+ * <p>
+ * The data of the packet is the number of packets followed by the zxid,
+ * the data length and the data of each of them, its zxid is the one of
+ * the last packet.
+ */
+final class ProposalBatch {
+
+    /**
+     * The most bytes of proposal data packed together, well below the
+     * jute.maxbuffer limit the follower reads a packet with.
+     */
+    static final int MAX_BATCH_BYTES = 512 * 1024;
+
+    private static final int HEADER_BYTES = 4;
+
+    private static final int ENTRY_HEADER_BYTES = 8 + 4;
+
+    private ProposalBatch() {
+    }
+
+    /**
+     * @return the bytes a proposal adds to a batch
+     */
+    static int entrySize(QuorumPacket proposal) {
+        byte[] data = proposal.getData();
+        return ENTRY_HEADER_BYTES + (data == null ? 0 : data.length);
+    }
+
+    /**
+     * @return the type of the packets in a batch of the given type
+     */
+    private static int entryType(int batchType) throws IOException {
+        switch (batchType) {
+        case Leader.PROPOSALS:
+            return Leader.PROPOSAL;
+        case Leader.INFORMS:
+            return Leader.INFORM;
+        default:
+            throw new IOException("Not a batch packet type " + batchType);
+        }
+    }
+
+    /**
+     * @param type the type of the batch, {@link Leader#PROPOSALS} or
+     *             {@link Leader#INFORMS}
+     */
+    static QuorumPacket pack(int type, List<QuorumPacket> proposals) {
+        int size = HEADER_BYTES;
+        for (QuorumPacket proposal : proposals) {
+            size += entrySize(proposal);
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putInt(proposals.size());
+        for (QuorumPacket proposal : proposals) {
+            byte[] data = proposal.getData();
+            bb.putLong(proposal.getZxid());
+            if (data == null) {
+                bb.putInt(0);
+            } else {
+                bb.putInt(data.length);
+                bb.put(data);
+            }
+        }
+        long lastZxid = proposals.get(proposals.size() - 1).getZxid();
+        return new QuorumPacket(type, lastZxid, bb.array(), null);
+    }
+
+    static List<QuorumPacket> unpack(QuorumPacket batch) throws IOException {
+        int type = entryType(batch.getType());
+        if (batch.getData() == null) {
+            throw new IOException("Empty proposal batch 0x" + Long.toHexString(batch.getZxid()));
+        }
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(batch.getData());
+            int count = bb.getInt();
+            if (count <= 0 || count > bb.remaining() / ENTRY_HEADER_BYTES) {
+                throw new IOException("Invalid proposal count " + count + " in batch 0x" + Long.toHexString(batch.getZxid()));
+            }
+            List<QuorumPacket> proposals = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long zxid = bb.getLong();
+                byte[] data = new byte[bb.getInt()];
+                bb.get(data);
+                proposals.add(new QuorumPacket(type, zxid, data, null));
+            }
+            return proposals;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Truncated proposal batch 0x" + Long.toHexString(batch.getZxid()), e);
+        }
+    }
+
+}
@@ -203,6 +203,8 @@ protected void registerMetrics() {
         rootContext.registerGauge("quorum_size", () -> {
             return self.getQuorumSize();
         });
+        rootContext.registerGauge("commit_processor_read_batch_size", CommitProcessor::getCurrentReadBatchSize);
+        rootContext.registerGauge("commit_processor_commit_batch_size", CommitProcessor::getCurrentCommitBatchSize);
     }
 
     @Override
@@ -212,6 +214,8 @@ protected void unregisterMetrics() {
         MetricsContext rootContext = ServerMetrics.getMetrics().getMetricsProvider().getRootContext();
 
         rootContext.unregisterGauge("quorum_size");
+        rootContext.unregisterGauge("commit_processor_read_batch_size");
+        rootContext.unregisterGauge("commit_processor_commit_batch_size");
     }
 
     @Override
@@ -20,6 +20,7 @@
 
 import java.io.Flushable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
@@ -33,16 +34,30 @@ public class SendAckRequestProcessor implements RequestProcessor, Flushable {
 
     Learner learner;
 
+    /**
+     * The first and last zxids logged since the last flush, acked at once
+     * on flush when the leader batches proposals.
+     */
+    private long firstUnackedZxid = -1;
+    private long lastUnackedZxid = -1;
+
     SendAckRequestProcessor(Learner peer) {
         this.learner = peer;
     }
 
     public void processRequest(Request si) {
         if (si.type != OpCode.sync) {
-            QuorumPacket qp = new QuorumPacket(Leader.ACK, si.getHdr().getZxid(), null, null);
+            long zxid = si.getHdr().getZxid();
+            si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
+            if (learner.isBatching()) {
+                if (firstUnackedZxid == -1) {
+                    firstUnackedZxid = zxid;
+                }
+                lastUnackedZxid = zxid;
+                return;
+            }
+            QuorumPacket qp = new QuorumPacket(Leader.ACK, zxid, null, null);
             try {
-                si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
-
                 learner.writePacket(qp, false);
             } catch (IOException e) {
                 LOG.warn("Closing connection to leader, exception during packet send", e);
@@ -60,6 +75,17 @@ public void processRequest(Request si) {
 
     public void flush() throws IOException {
         try {
+            if (lastUnackedZxid != -1) {
+                // ack everything logged since the last flush at once, the
+                // data is the first zxid acked
+                byte[] first = new byte[8];
+                ByteBuffer.wrap(first).putLong(firstUnackedZxid);
+                QuorumPacket qp = new QuorumPacket(Leader.ACK, lastUnackedZxid, first, null);
+                ServerMetrics.getMetrics().LEARNER_ACK_BATCH_SIZE.add(lastUnackedZxid - firstUnackedZxid + 1);
+                firstUnackedZxid = -1;
+                lastUnackedZxid = -1;
+                learner.writePacket(qp, false);
+            }
             learner.writePacket(null, true);
         } catch (IOException e) {
             LOG.warn("Closing connection to leader, exception during packet send", e);
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.server.ServerMetrics;
+
+/**
+ * A packet queued to several learners, which is serialized once and then
+ * written as is by the sender thread of each of them, rather than
+ * serialized again for each learner.
+ * <p>
+ * The packet is serialized by the first sender writing it, it must not be
+ * modified once queued.
+ */
+final class SerializedQuorumPacket extends QuorumPacket {
+
+    private volatile byte[] serialized;
+
+    SerializedQuorumPacket(int type, long zxid, byte[] data) {
+        super(type, zxid, data, null);
+    }
+
+    /**
+     * @return the packet as written by a {@link BinaryOutputArchive}
+     */
+    byte[] getSerialized() {
+        byte[] bytes = serialized;
+        if (bytes == null) {
+            // senders racing here serialize the same bytes, no need to lock
+            bytes = serialize();
+            serialized = bytes;
+        } else {
+            ServerMetrics.getMetrics().SERIALIZED_PACKET_REUSED.add(1);
+        }
+        return bytes;
+    }
+
+    private byte[] serialize() {
+        byte[] data = getData();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32 + (data == null ? 0 : data.length));
+        try {
+            BinaryOutputArchive.getArchive(bos).writeRecord(this, "packet");
+        } catch (IOException e) {
+            // not thrown by a byte array stream
+            throw new UncheckedIOException(e);
+        }
+        return bos.toByteArray();
+    }
+
+}
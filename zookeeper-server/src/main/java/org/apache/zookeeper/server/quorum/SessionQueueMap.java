@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.util.ArrayDeque;
+import org.apache.zookeeper.server.Request;
+
+/**
+ * The queues of the requests held by the {@link CommitProcessor}, by
+ * session id.
+ * <p>
+ * Every write and every read behind it goes through a session queue, so
+ * rather than a map of boxed keys, this is an open addressing table keyed
+ * by the primitive session id, with linear probing. The queues removed
+ * from the map are cleared and pooled for the next sessions, so a busy
+ * processor doesn't allocate a queue for each write.
+ * <p>
+ * Not thread safe, only used by the commit processor thread.
+ */
+class SessionQueueMap {
+
+    /**
+     * The requests of a session waiting on a commit.
+     */
+    static class SessionQueue extends ArrayDeque<Request> {
+
+        private static final long serialVersionUID = 1L;
+
+        long sessionId;
+
+        /** whether the queue is already to be drained after the commits */
+        boolean draining;
+
+    }
+
+    /** the most queues kept in the pool */
+    static final int MAX_POOLED_QUEUES = 1024;
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+
+    /** the queue of each slot, null if the slot is free */
+    private SessionQueue[] values;
+
+    private int size;
+
+    private int resizeThreshold;
+
+    private final ArrayDeque<SessionQueue> pool = new ArrayDeque<>();
+
+    SessionQueueMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new SessionQueue[capacity];
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long key) {
+        // session ids differ mostly in their low bits, spread them
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the queue of a session, or null if it has none
+     */
+    SessionQueue get(long sessionId) {
+        return values[slotOf(sessionId)];
+    }
+
+    boolean containsKey(long sessionId) {
+        return get(sessionId) != null;
+    }
+
+    /**
+     * @return the queue of a session, taken from the pool if it has none
+     */
+    SessionQueue getOrCreate(long sessionId) {
+        int slot = slotOf(sessionId);
+        SessionQueue queue = values[slot];
+        if (queue != null) {
+            return queue;
+        }
+        queue = pool.poll();
+        if (queue == null) {
+            queue = new SessionQueue();
+        }
+        queue.sessionId = sessionId;
+        keys[slot] = sessionId;
+        values[slot] = queue;
+        if (++size > resizeThreshold) {
+            resize();
+        }
+        return queue;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        SessionQueue[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Remove the queue of a session, it is pooled and must no longer be
+     * used by the caller.
+     */
+    void remove(long sessionId) {
+        int mask = keys.length - 1;
+        int slot = slotOf(sessionId);
+        SessionQueue queue = values[slot];
+        if (queue == null) {
+            return;
+        }
+        // shift back the entries probed past the freed slot
+        int free = slot;
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[free] = null;
+        size--;
+
+        if (pool.size() < MAX_POOLED_QUEUES) {
+            queue.clear();
+            queue.draining = false;
+            pool.push(queue);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+}
@@ -20,6 +20,7 @@
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Set;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 
 public class SyncedLearnerTracker {
@@ -27,7 +28,14 @@ public class SyncedLearnerTracker {
     protected ArrayList<QuorumVerifierAcksetPair> qvAcksetPairs = new ArrayList<QuorumVerifierAcksetPair>();
 
     public void addQuorumVerifier(QuorumVerifier qv) {
-        qvAcksetPairs.add(new QuorumVerifierAcksetPair(qv, new HashSet<Long>(qv.getVotingMembers().size())));
+        qvAcksetPairs.add(new QuorumVerifierAcksetPair(qv, newAckset(qv.getVotingMembers().size())));
+    }
+
+    /**
+     * @return the set the acks of the voters of a configuration are held in
+     */
+    protected Set<Long> newAckset(int voterCount) {
+        return new HashSet<Long>(voterCount);
     }
 
     public boolean addAck(Long sid) {
@@ -72,9 +80,9 @@ public String ackSetsToString() {
     public static class QuorumVerifierAcksetPair {
 
         private final QuorumVerifier qv;
-        private final HashSet<Long> ackset;
+        private final Set<Long> ackset;
 
-        public QuorumVerifierAcksetPair(QuorumVerifier qv, HashSet<Long> ackset) {
+        public QuorumVerifierAcksetPair(QuorumVerifier qv, Set<Long> ackset) {
             this.qv = qv;
             this.ackset = ackset;
         }
@@ -83,7 +91,7 @@ public QuorumVerifier getQuorumVerifier() {
             return this.qv;
         }
 
-        public HashSet<Long> getAckset() {
+        public Set<Long> getAckset() {
             return this.ackset;
         }
 
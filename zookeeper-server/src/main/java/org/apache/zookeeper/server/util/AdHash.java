@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server.util;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * This incremental hash is used to keep track of the hash of
  * the data tree to that we can quickly validate that things
@@ -25,9 +27,15 @@
  *
  * See the excellent paper: A New Paradigm for collision-free hashing:
  *   Incrementality at reduced cost,  M. Bellare and D. Micciancio
+ *
+ * Digests may be added and removed concurrently, which happens when a
+ * snapshot is loaded in parallel.
  */
 public class AdHash {
 
+    private static final AtomicLongFieldUpdater<AdHash> HASH_UPDATER =
+        AtomicLongFieldUpdater.newUpdater(AdHash.class, "hash");
+
     /* we use 64 bits so that we can be fast an efficient */
     private volatile long hash;
 
@@ -38,7 +46,7 @@ public class AdHash {
      * @return the AdHash itself for chained operations
      */
     public AdHash addDigest(long digest) {
-        hash += digest;
+        HASH_UPDATER.addAndGet(this, digest);
         return this;
     }
 
@@ -49,7 +57,7 @@ public AdHash addDigest(long digest) {
      * @return the AdHash itself for chained operations
      */
     public AdHash removeDigest(long digest) {
-        hash -= digest;
+        HASH_UPDATER.addAndGet(this, -digest);
         return this;
     }
 
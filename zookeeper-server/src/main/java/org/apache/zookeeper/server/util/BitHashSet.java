@@ -21,7 +21,9 @@
 import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Using BitSet to store all the elements, and use HashSet to cache limited
@@ -37,15 +39,24 @@
  * data over and may have some herd effect of keep copying data from one
  * data structure to anther. The current solution can do a very good job
  * given most of the paths have limited number of elements.
+ *
+ * Modifications are synchronized, reads are not: the bits are kept in an
+ * AtomicLongArray which is replaced by a larger copy to grow, and the
+ * cached elements are published as an immutable array, so contains, size
+ * and iterating never block, even while the set is being modified. A
+ * concurrent iteration may or may not see the elements being added or
+ * removed meanwhile.
  */
 public class BitHashSet implements Iterable<Integer> {
 
+    private static final int[] EMPTY = new int[0];
+
     /**
-     * Change to SparseBitSet if we we want to optimize more, the number of
-     * elements on a single server is usually limited, so BitSet should be
-     * fine.
+     * The bits of the elements, written under the lock of this set. The
+     * number of elements on a single server is usually limited, so a flat
+     * bit array should be fine.
      */
-    private final BitSet elementBits = new BitSet();
+    private volatile AtomicLongArray elementBits = new AtomicLongArray(1);
 
     /**
      * HashSet is used to optimize the iterating, if there is a single
@@ -55,10 +66,16 @@ public class BitHashSet implements Iterable<Integer> {
      */
     private final Set<Integer> cache = new HashSet<Integer>();
 
+    /**
+     * The elements of cache published for iterating without the lock, null
+     * when cache doesn't hold all the elements.
+     */
+    private volatile int[] cachedElements = EMPTY;
+
     private final int cacheSize;
 
     // To record how many elements in this set.
-    private int elementCount = 0;
+    private volatile int elementCount = 0;
 
     public BitHashSet() {
         this(Integer.getInteger("zookeeper.bitHashCacheSize", 10));
@@ -69,77 +86,145 @@ public BitHashSet(int cacheSize) {
     }
 
     public synchronized boolean add(Integer elementBit) {
-        if (elementBit == null || elementBits.get(elementBit)) {
+        if (elementBit == null || contains(elementBit)) {
             return false;
         }
         if (cache.size() < cacheSize) {
             cache.add(elementBit);
         }
-        elementBits.set(elementBit);
-        elementCount++;
+        int wordIndex = elementBit >>> 6;
+        AtomicLongArray bits = elementBits;
+        if (wordIndex >= bits.length()) {
+            bits = grow(bits, wordIndex + 1);
+        }
+        bits.set(wordIndex, bits.get(wordIndex) | (1L << elementBit));
+        updateCount(elementCount + 1);
         return true;
     }
 
+    private AtomicLongArray grow(AtomicLongArray bits, int minLength) {
+        AtomicLongArray grown = new AtomicLongArray(Math.max(minLength, bits.length() * 2));
+        for (int i = 0; i < bits.length(); i++) {
+            grown.set(i, bits.get(i));
+        }
+        elementBits = grown;
+        return grown;
+    }
+
+    /**
+     * Publish a new element count, along with the cached elements if they
+     * are all the elements.
+     */
+    private void updateCount(int count) {
+        int[] elements = null;
+        if (cache.size() == count) {
+            elements = new int[count];
+            int i = 0;
+            for (Integer e : cache) {
+                elements[i++] = e;
+            }
+        }
+        cachedElements = elements;
+        elementCount = count;
+    }
+
     /**
      * Remove the watches, and return the number of watches being removed.
      */
     public synchronized int remove(Set<Integer> bitSet, BitSet bits) {
         cache.removeAll(bitSet);
-        elementBits.andNot(bits);
+        AtomicLongArray elements = elementBits;
+        long[] removed = bits.toLongArray();
+        int count = 0;
+        for (int i = 0; i < elements.length(); i++) {
+            long word = elements.get(i);
+            if (i < removed.length && (word & removed[i]) != 0) {
+                word &= ~removed[i];
+                elements.set(i, word);
+            }
+            count += Long.bitCount(word);
+        }
         int elementCountBefore = elementCount;
-        elementCount = elementBits.cardinality();
-        return elementCountBefore - elementCount;
+        updateCount(count);
+        return elementCountBefore - count;
     }
 
     public synchronized boolean remove(Integer elementBit) {
-        if (elementBit == null || !elementBits.get(elementBit)) {
+        if (elementBit == null || !contains(elementBit)) {
             return false;
         }
 
         cache.remove(elementBit);
-        elementBits.clear(elementBit);
-        elementCount--;
+        AtomicLongArray bits = elementBits;
+        int wordIndex = elementBit >>> 6;
+        bits.set(wordIndex, bits.get(wordIndex) & ~(1L << elementBit));
+        updateCount(elementCount - 1);
         return true;
     }
 
-    public synchronized boolean contains(Integer elementBit) {
-        if (elementBit == null) {
+    public boolean contains(Integer elementBit) {
+        if (elementBit == null || elementBit < 0) {
             return false;
         }
-        return elementBits.get(elementBit);
+        AtomicLongArray bits = elementBits;
+        int wordIndex = elementBit >>> 6;
+        return wordIndex < bits.length() && (bits.get(wordIndex) & (1L << elementBit)) != 0;
     }
 
-    public synchronized int size() {
+    public int size() {
         return elementCount;
     }
 
     /**
-     * This function is not thread-safe, need to synchronized when
-     * iterate through this set.
+     * Iterates the elements without locking, reflecting the state of the
+     * set at some point during the iteration.
      */
     @Override
     public Iterator<Integer> iterator() {
-        // sample current size at the beginning
-        int currentSize = size();
-
-        if (cache.size() == currentSize) {
-            return cache.iterator();
+        final int[] elements = cachedElements;
+        if (elements != null) {
+            return new Iterator<Integer>() {
+                int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < elements.length;
+                }
+
+                @Override
+                public Integer next() {
+                    if (next >= elements.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return elements[next++];
+                }
+            };
         }
 
+        final AtomicLongArray bits = elementBits;
         return new Iterator<Integer>() {
-            int returnedCount = 0;
-            int bitIndex = 0;
+            int wordIndex = -1;
+            long word = 0;
 
             @Override
             public boolean hasNext() {
-                return returnedCount < currentSize;
+                while (word == 0) {
+                    if (++wordIndex >= bits.length()) {
+                        wordIndex = bits.length();
+                        return false;
+                    }
+                    word = bits.get(wordIndex);
+                }
+                return true;
             }
 
             @Override
             public Integer next() {
-                int bit = elementBits.nextSetBit(bitIndex);
-                bitIndex = bit + 1;
-                returnedCount++;
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int bit = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
                 return bit;
             }
 
@@ -155,7 +240,7 @@ public synchronized int cachedSize() {
         return cache.size();
     }
 
-    public synchronized boolean isEmpty() {
+    public boolean isEmpty() {
         return elementCount == 0;
     }
 
@@ -19,6 +19,7 @@
 package org.apache.zookeeper.server.util;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
@@ -27,11 +28,19 @@
 /**
  * This is a helper class to maintain the bit to specific value and the
  * reversed value to bit mapping.
+ *
+ * Looking up the value of a bit doesn't lock, as it is done for every
+ * watcher when triggering the watches of a path.
  */
 public class BitMap<T> {
 
     private final Map<T, Integer> value2Bit = new HashMap<T, Integer>();
-    private final Map<Integer, T> bit2Value = new HashMap<Integer, T>();
+
+    /**
+     * Values indexed by bit, written under the write lock and replaced by a
+     * larger copy to grow, read without locking.
+     */
+    private volatile Object[] bit2Value = new Object[16];
 
     private final BitSet freedBitSet = new BitSet();
     private Integer nextBit = Integer.valueOf(0);
@@ -66,20 +75,27 @@ public Integer add(T value) {
             }
 
             value2Bit.put(value, bit);
-            bit2Value.put(bit, value);
+            setValue(bit, value);
             return bit;
         } finally {
             rwLock.writeLock().unlock();
         }
     }
 
-    public T get(int bit) {
-        rwLock.readLock().lock();
-        try {
-            return bit2Value.get(bit);
-        } finally {
-            rwLock.readLock().unlock();
+    private void setValue(int bit, T value) {
+        Object[] values = bit2Value;
+        if (bit >= values.length) {
+            values = Arrays.copyOf(values, Math.max(bit + 1, values.length * 2));
         }
+        values[bit] = value;
+        // write through the volatile field to publish the value
+        bit2Value = values;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int bit) {
+        Object[] values = bit2Value;
+        return bit >= 0 && bit < values.length ? (T) values[bit] : null;
     }
 
     public Integer getBit(T value) {
@@ -103,7 +119,7 @@ public int remove(T value) {
                 return -1;
             }
             value2Bit.remove(value);
-            bit2Value.remove(bit);
+            setValue(bit, null);
             freedBitSet.set(bit);
             return bit;
         } finally {
@@ -114,12 +130,12 @@ public int remove(T value) {
     public T remove(int bit) {
         rwLock.writeLock().lock();
         try {
-            T value = bit2Value.get(bit);
+            T value = get(bit);
             if (value == null) {
                 return null;
             }
             value2Bit.remove(value);
-            bit2Value.remove(bit);
+            setValue(bit, null);
             freedBitSet.set(bit);
             return value;
         } finally {
@@ -36,6 +36,7 @@
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLogBlockInputStream;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.apache.zookeeper.util.ServiceUtils;
 
@@ -51,6 +52,7 @@ public static void main(String[] args) {
             System.out.println("Usage: LogChopper zxid_to_chop_to txn_log_to_chop chopped_filename");
             System.out.println("    this program will read the txn_log_to_chop file and copy all the transactions");
             System.out.println("    from it up to (and including) the given zxid into chopped_filename.");
+            System.out.println("    Compressed logs are chopped into uncompressed ones.");
             ServiceUtils.requestSystemExit(rc.getValue());
         }
         String txnLog = args[1];
@@ -82,6 +84,11 @@ public static boolean chop(InputStream is, OutputStream os, long zxid) throws IO
                            + fhdr.getDbid()
                            + " txnlog format version "
                            + fhdr.getVersion());
+        if (fhdr.getVersion() >= FileTxnLog.BLOCK_VERSION) {
+            logStream = BinaryInputArchive.getArchive(new TxnLogBlockInputStream(is));
+            // the chopped log is written uncompressed
+            fhdr.setVersion(FileTxnLog.VERSION);
+        }
 
         fhdr.serialize(choppedStream, "fileheader");
         int count = 0;
@@ -145,6 +145,20 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
     }
 
     public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    /**
+     * Deserialize a snapshot written by {@link #serializeChunkedSnapshot(DataTree, OutputArchive, Map, int, int)},
+     * loading the nodes with loadThreads threads.
+     */
+    public static void deserializeChunkedSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions, int loadThreads) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserializeChunked(ia, "tree", loadThreads);
+    }
+
+    private static void deserializeSessions(InputArchive ia, Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -158,17 +172,30 @@ public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, I
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
     public static void serializeSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree");
+    }
+
+    /**
+     * Serialize a snapshot with the nodes split into chunks of about
+     * chunkSize bytes, which can be loaded in parallel. The tree is walked
+     * by writeThreads threads.
+     */
+    public static void serializeChunkedSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions, int chunkSize, int writeThreads) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializeChunked(oa, "tree", chunkSize, writeThreads);
+    }
+
+    private static void serializeSessions(OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<Long, Integer>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 
     public static byte[] serializeRequest(Request request) {
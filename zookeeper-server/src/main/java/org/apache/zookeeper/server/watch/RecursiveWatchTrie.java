@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.zookeeper.Watcher;
+
+/**
+ * Index of the persistent recursive watchers by path, as a trie of path
+ * segments.
+ * <p>
+ * A change to a path triggers the recursive watchers of all its ancestors.
+ * Rather than looking up every parent path in the watch table, they are
+ * collected in a single descent of the trie, which stops as soon as no
+ * recursive watch is registered below the prefix reached so far. The trie
+ * only holds the paths that have recursive watchers and their ancestors.
+ * <p>
+ * Not thread safe, WatchManager guards it with its own lock.
+ */
+class RecursiveWatchTrie {
+
+    private static class Node {
+
+        final Node parent;
+        final String name;
+        Map<String, Node> children;
+        Set<Watcher> watchers;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        boolean isEmpty() {
+            return (children == null || children.isEmpty()) && (watchers == null || watchers.isEmpty());
+        }
+
+    }
+
+    private final Node root = new Node(null, "");
+
+    private int size;
+
+    /**
+     * @return the number of recursive watches in the trie
+     */
+    int size() {
+        return size;
+    }
+
+    boolean add(String path, Watcher watcher) {
+        Node node = root;
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            String name = path.substring(start, end);
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            Node child = node.children.get(name);
+            if (child == null) {
+                child = new Node(node, name);
+                node.children.put(name, child);
+            }
+            node = child;
+            start = end + 1;
+        }
+        if (node.watchers == null) {
+            node.watchers = new HashSet<>(4);
+        }
+        if (node.watchers.add(watcher)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    boolean remove(String path, Watcher watcher) {
+        Node node = find(path);
+        if (node == null || node.watchers == null || !node.watchers.remove(watcher)) {
+            return false;
+        }
+        size--;
+        // prune the nodes left without watchers or children
+        while (node.parent != null && node.isEmpty()) {
+            node.parent.children.remove(node.name);
+            node = node.parent;
+        }
+        return true;
+    }
+
+    private Node find(String path) {
+        Node node = root;
+        int start = 1;
+        while (node != null && start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            node = node.children == null ? null : node.children.get(path.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Add the recursive watchers of the ancestors of a path, not including
+     * the path itself, to a set.
+     */
+    void collectAncestorWatchers(String path, Set<Watcher> into) {
+        if (size == 0 || path.length() <= 1) {
+            return;
+        }
+        Node node = root;
+        int start = 1;
+        while (true) {
+            if (node.watchers != null) {
+                into.addAll(node.watchers);
+            }
+            int end = path.indexOf('/', start);
+            if (end == -1 || node.children == null) {
+                // reached the parent of path, or nothing is watched below
+                return;
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+}
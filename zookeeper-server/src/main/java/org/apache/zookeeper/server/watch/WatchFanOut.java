@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.WorkerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers triggered watches off the thread applying the transactions.
+ * <p>
+ * By default the watchers of a path are notified inline while the
+ * transaction changing it is applied, so a path with a lot of watchers
+ * delays every later commit. When zookeeper.watchFanOutThreads is set, the
+ * watch managers instead hand the delivery to this executor, which splits
+ * it across shards by session: each shard thread notifies the watchers of
+ * its sessions, in the order the watches were triggered.
+ * <p>
+ * A client must still receive its notifications before the replies to its
+ * later requests, so replies are sent through {@link #sendInOrder} as
+ * well: if deliveries or sends are queued on the shard of the session, the
+ * reply is queued behind them, otherwise it is sent right away.
+ */
+public class WatchFanOut {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchFanOut.class);
+
+    public static final String WATCH_FAN_OUT_THREADS = "zookeeper.watchFanOutThreads";
+
+    /**
+     * Triggers with fewer watchers than this are not split across all the
+     * shards, each watcher is notified on its own instead.
+     */
+    public static final int MIN_FAN_OUT_WATCHERS = 64;
+
+    private static volatile WatchFanOut instance;
+
+    static {
+        int threads = Integer.getInteger(WATCH_FAN_OUT_THREADS, 0);
+        LOG.info("{} = {}", WATCH_FAN_OUT_THREADS, threads);
+        if (threads > 0) {
+            instance = new WatchFanOut(threads);
+        }
+    }
+
+    /**
+     * @return the executor, or null if watches are delivered inline
+     */
+    public static WatchFanOut getInstance() {
+        return instance;
+    }
+
+    /**
+     * Change the number of fan-out threads, 0 to deliver watches inline.
+     * Deliveries still queued on the previous executor are dropped, meant
+     * to be used by tests.
+     */
+    public static void setThreads(int threads) {
+        WatchFanOut previous = instance;
+        instance = threads > 0 ? new WatchFanOut(threads) : null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    private final WorkerService workers;
+
+    /** the tasks queued or running on each shard */
+    private final AtomicInteger[] pending;
+
+    WatchFanOut(int threads) {
+        workers = new WorkerService("WatchFanOut", threads, true);
+        workers.start();
+        pending = new AtomicInteger[threads];
+        for (int i = 0; i < threads; i++) {
+            pending[i] = new AtomicInteger();
+        }
+    }
+
+    public int getShardCount() {
+        return pending.length;
+    }
+
+    private int shardOf(long id) {
+        return (int) ((id % pending.length + pending.length) % pending.length);
+    }
+
+    /**
+     * @return the shard whose thread notifies this watcher
+     */
+    public int shardOf(Watcher watcher) {
+        if (watcher instanceof ServerCnxn) {
+            return shardOf(((ServerCnxn) watcher).getSessionId());
+        }
+        return shardOf(System.identityHashCode(watcher));
+    }
+
+    /**
+     * @return an empty list of watchers for each shard, to be filled by
+     *         {@link #shardOf(Watcher)} and passed to {@link #fanOut}
+     */
+    public List<List<Watcher>> newShards() {
+        List<List<Watcher>> shards = new ArrayList<>(pending.length);
+        for (int shard = 0; shard < pending.length; shard++) {
+            shards.add(new ArrayList<>());
+        }
+        return shards;
+    }
+
+    /**
+     * Notify the watchers of each shard on its thread. Only the shards
+     * with watchers to notify are scheduled.
+     */
+    public void fanOut(List<List<Watcher>> shards, WatchedEvent event) {
+        for (int shard = 0; shard < shards.size(); shard++) {
+            final List<Watcher> watchers = shards.get(shard);
+            if (watchers.isEmpty()) {
+                continue;
+            }
+            schedule(shard, () -> {
+                for (Watcher w : watchers) {
+                    w.process(event);
+                }
+            });
+        }
+    }
+
+    /**
+     * Notify a single watcher, behind the deliveries and sends queued on
+     * its shard, or right away if there are none.
+     */
+    public void deliver(Watcher watcher, WatchedEvent event) {
+        runInOrder(shardOf(watcher), () -> watcher.process(event));
+    }
+
+    /**
+     * Run a send of a reply to a session behind the deliveries and sends
+     * queued on its shard, or right away if there are none.
+     */
+    public void sendInOrder(long sessionId, Runnable send) {
+        runInOrder(shardOf(sessionId), send);
+    }
+
+    private void runInOrder(int shard, Runnable task) {
+        if (pending[shard].get() == 0) {
+            task.run();
+        } else {
+            schedule(shard, task);
+        }
+    }
+
+    private void schedule(int shard, Runnable task) {
+        pending[shard].incrementAndGet();
+        workers.schedule(new ShardTask(shard, task), shard);
+    }
+
+    void shutdown() {
+        workers.stop();
+    }
+
+    private class ShardTask extends WorkerService.WorkRequest {
+
+        private final int shard;
+        private final Runnable task;
+        private boolean finished;
+
+        ShardTask(int shard, Runnable task) {
+            this.shard = shard;
+            this.task = task;
+        }
+
+        @Override
+        public void doWork() {
+            try {
+                task.run();
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            finish();
+        }
+
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                pending[shard].decrementAndGet();
+            }
+        }
+
+    }
+
+}
@@ -22,6 +22,7 @@
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -49,6 +50,8 @@ public class WatchManager implements IWatchManager {
 
     private final WatcherModeManager watcherModeManager = new WatcherModeManager();
 
+    private final RecursiveWatchTrie recursiveWatches = new RecursiveWatchTrie();
+
     @Override
     public synchronized int size() {
         int result = 0;
@@ -91,7 +94,13 @@ public synchronized boolean addWatch(String path, Watcher watcher, WatcherMode w
             watch2Paths.put(watcher, paths);
         }
 
+        boolean wasRecursive = watcherModeManager.getWatcherMode(watcher, path).isRecursive();
         watcherModeManager.setWatcherMode(watcher, path, watcherMode);
+        if (watcherMode.isRecursive() && !wasRecursive) {
+            recursiveWatches.add(path, watcher);
+        } else if (!watcherMode.isRecursive() && wasRecursive) {
+            recursiveWatches.remove(path, watcher);
+        }
 
         return paths.add(path);
     }
@@ -110,7 +119,7 @@ public synchronized void removeWatcher(Watcher watcher) {
                     watchTable.remove(p);
                 }
             }
-            watcherModeManager.removeWatcher(watcher, p);
+            removeWatcherMode(watcher, p);
         }
     }
 
@@ -123,36 +132,37 @@ public WatcherOrBitSet triggerWatch(String path, EventType type) {
     public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet supress) {
         WatchedEvent e = new WatchedEvent(type, KeeperState.SyncConnected, path);
         Set<Watcher> watchers = new HashSet<>();
-        PathParentIterator pathParentIterator = getPathParentIterator(path);
         synchronized (this) {
-            for (String localPath : pathParentIterator.asIterable()) {
-                Set<Watcher> thisWatchers = watchTable.get(localPath);
-                if (thisWatchers == null || thisWatchers.isEmpty()) {
-                    continue;
-                }
+            Set<Watcher> thisWatchers = watchTable.get(path);
+            if (thisWatchers != null) {
                 Iterator<Watcher> iterator = thisWatchers.iterator();
                 while (iterator.hasNext()) {
                     Watcher watcher = iterator.next();
-                    WatcherMode watcherMode = watcherModeManager.getWatcherMode(watcher, localPath);
+                    WatcherMode watcherMode = watcherModeManager.getWatcherMode(watcher, path);
                     if (watcherMode.isRecursive()) {
                         if (type != EventType.NodeChildrenChanged) {
                             watchers.add(watcher);
                         }
-                    } else if (!pathParentIterator.atParentPath()) {
+                    } else {
                         watchers.add(watcher);
                         if (!watcherMode.isPersistent()) {
                             iterator.remove();
                             Set<String> paths = watch2Paths.get(watcher);
                             if (paths != null) {
-                                paths.remove(localPath);
+                                paths.remove(path);
                             }
                         }
                     }
                 }
                 if (thisWatchers.isEmpty()) {
-                    watchTable.remove(localPath);
+                    watchTable.remove(path);
                 }
             }
+            // only the recursive watchers of the parent paths are triggered,
+            // and not by a change of children
+            if (type != EventType.NodeChildrenChanged) {
+                recursiveWatches.collectAncestorWatchers(path, watchers);
+            }
         }
         if (watchers.isEmpty()) {
             if (LOG.isTraceEnabled()) {
@@ -161,11 +171,32 @@ public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet
             return null;
         }
 
-        for (Watcher w : watchers) {
-            if (supress != null && supress.contains(w)) {
-                continue;
+        WatchFanOut fanOut = WatchFanOut.getInstance();
+        if (fanOut == null) {
+            for (Watcher w : watchers) {
+                if (supress != null && supress.contains(w)) {
+                    continue;
+                }
+                w.process(e);
+            }
+        } else if (watchers.size() < WatchFanOut.MIN_FAN_OUT_WATCHERS) {
+            for (Watcher w : watchers) {
+                if (supress != null && supress.contains(w)) {
+                    continue;
+                }
+                fanOut.deliver(w, e);
+            }
+        } else {
+            // split once here, so each shard only goes through its own
+            // watchers
+            List<List<Watcher>> shards = fanOut.newShards();
+            for (Watcher w : watchers) {
+                if (supress != null && supress.contains(w)) {
+                    continue;
+                }
+                shards.get(fanOut.shardOf(w)).add(w);
             }
-            w.process(e);
+            fanOut.fanOut(shards, e);
         }
 
         switch (type) {
@@ -264,7 +295,7 @@ public synchronized boolean removeWatcher(String path, Watcher watcher) {
             watchTable.remove(path);
         }
 
-        watcherModeManager.removeWatcher(watcher, path);
+        removeWatcherMode(watcher, path);
 
         return true;
     }
@@ -310,6 +341,13 @@ public int getRecursiveWatchQty() {
         return watcherModeManager.getRecursiveQty();
     }
 
+    private void removeWatcherMode(Watcher watcher, String path) {
+        if (watcherModeManager.getWatcherMode(watcher, path).isRecursive()) {
+            recursiveWatches.remove(path, watcher);
+        }
+        watcherModeManager.removeWatcher(watcher, path);
+    }
+
     private PathParentIterator getPathParentIterator(String path) {
         if (watcherModeManager.getRecursiveQty() == 0) {
             return PathParentIterator.forPathOnly(path);
@@ -22,11 +22,13 @@
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
@@ -50,6 +52,9 @@
  *   memory usage and time complexity
  * - Use ReadWriteLock instead of synchronized to reduce lock retention
  * - Lazily clean up the closed watchers
+ * - Trigger watches without locking the watcher set of the path, dead
+ *   watchers are cleaned up concurrently and their bits only reused once
+ *   the triggers which may have seen them are done
  */
 public class WatchManagerOptimized implements IWatchManager, IDeadWatcherListener {
 
@@ -65,6 +70,12 @@ public class WatchManagerOptimized implements IWatchManager, IDeadWatcherListene
 
     private final ReentrantReadWriteLock addRemovePathRWLock = new ReentrantReadWriteLock();
 
+    // Triggers hold the read lock while going through a watcher set, the
+    // cleaner takes the write lock once it cleared the bits of dead watchers
+    // to wait for the triggers which may still see them, before the bits
+    // are freed and may be given to new watchers.
+    private final ReentrantReadWriteLock triggerEpochLock = new ReentrantReadWriteLock();
+
     public WatchManagerOptimized() {
         watcherCleaner = new WatcherCleaner(this);
         watcherCleaner.start();
@@ -193,6 +204,9 @@ public void processDeadWatchers(Set<Integer> deadWatchers) {
         for (BitHashSet watchers : pathWatches.values()) {
             watchers.remove(deadWatchers, bits);
         }
+        // Wait for the triggers started before the bits were cleared.
+        triggerEpochLock.writeLock().lock();
+        triggerEpochLock.writeLock().unlock();
         // Better to remove the empty path from pathWatches, but it will add
         // lot of lock contention and affect the throughput of addWatch,
         // let's rely on the triggerWatch to delete it.
@@ -215,11 +229,37 @@ public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet
             return null;
         }
 
+        WatchFanOut fanOut = WatchFanOut.getInstance();
+        int triggeredWatches;
+        if (fanOut == null) {
+            triggeredWatches = forEachWatcher(watchers, suppress, w -> w.process(e));
+        } else if (watchers.size() < WatchFanOut.MIN_FAN_OUT_WATCHERS) {
+            triggeredWatches = forEachWatcher(watchers, suppress, w -> fanOut.deliver(w, e));
+        } else {
+            // The bits are resolved to watchers now, once this returns the
+            // bit of a dead watcher may be given to another one before the
+            // shards run.
+            List<List<Watcher>> shards = fanOut.newShards();
+            triggeredWatches = forEachWatcher(watchers, suppress, w -> shards.get(fanOut.shardOf(w)).add(w));
+            fanOut.fanOut(shards, e);
+        }
+        updateMetrics(type, triggeredWatches);
+        return new WatcherOrBitSet(watchers);
+    }
+
+    /**
+     * Pass the live watchers of a trigger to an action.
+     *
+     * @return the number of watchers passed
+     */
+    private int forEachWatcher(BitHashSet watchers, WatcherOrBitSet suppress, Consumer<Watcher> action) {
         int triggeredWatches = 0;
 
-        // Avoid race condition between dead watcher cleaner in
-        // WatcherCleaner and iterating here
-        synchronized (watchers) {
+        // The watchers are iterated without locking, while WatcherCleaner
+        // may be removing dead watchers from them, the epoch keeps their bits
+        // from being reused by other watchers meanwhile.
+        triggerEpochLock.readLock().lock();
+        try {
             for (Integer wBit : watchers) {
                 if (suppress != null && suppress.contains(wBit)) {
                     continue;
@@ -232,13 +272,13 @@ public WatcherOrBitSet triggerWatch(String path, EventType type, WatcherOrBitSet
                     continue;
                 }
 
-                w.process(e);
+                action.accept(w);
                 triggeredWatches++;
             }
+        } finally {
+            triggerEpochLock.readLock().unlock();
         }
-
-        updateMetrics(type, triggeredWatches);
-        return new WatcherOrBitSet(watchers);
+        return triggeredWatches;
     }
 
     @Override
@@ -324,14 +364,12 @@ public WatchesPathReport getWatchesByPath() {
         Map<String, Set<Long>> path2ids = new HashMap<String, Set<Long>>();
         for (Entry<String, BitHashSet> e : pathWatches.entrySet()) {
             BitHashSet watchers = e.getValue();
-            synchronized (watchers) {
-                Set<Long> ids = new HashSet<Long>(watchers.size());
-                path2ids.put(e.getKey(), ids);
-                for (Integer wbit : watchers) {
-                    Watcher watcher = watcherBitIdMap.get(wbit);
-                    if (watcher instanceof ServerCnxn) {
-                        ids.add(((ServerCnxn) watcher).getSessionId());
-                    }
+            Set<Long> ids = new HashSet<Long>(watchers.size());
+            path2ids.put(e.getKey(), ids);
+            for (Integer wbit : watchers) {
+                Watcher watcher = watcherBitIdMap.get(wbit);
+                if (watcher instanceof ServerCnxn) {
+                    ids.add(((ServerCnxn) watcher).getSessionId());
                 }
             }
         }
@@ -347,18 +385,15 @@ public Map<Watcher, Set<String>> getWatcher2PathesMap() {
         for (Entry<String, BitHashSet> e : pathWatches.entrySet()) {
             String path = e.getKey();
             BitHashSet watchers = e.getValue();
-            // avoid race condition with add/remove
-            synchronized (watchers) {
-                for (Integer wbit : watchers) {
-                    Watcher w = watcherBitIdMap.get(wbit);
-                    if (w == null) {
-                        continue;
-                    }
-                    if (!watcher2paths.containsKey(w)) {
-                        watcher2paths.put(w, new HashSet<String>());
-                    }
-                    watcher2paths.get(w).add(path);
+            for (Integer wbit : watchers) {
+                Watcher w = watcherBitIdMap.get(wbit);
+                if (w == null) {
+                    continue;
+                }
+                if (!watcher2paths.containsKey(w)) {
+                    watcher2paths.put(w, new HashSet<String>());
                 }
+                watcher2paths.get(w).add(path);
             }
         }
         return watcher2paths;
@@ -370,16 +405,14 @@ public void dumpWatches(PrintWriter pwriter, boolean byPath) {
             for (Entry<String, BitHashSet> e : pathWatches.entrySet()) {
                 pwriter.println(e.getKey());
                 BitHashSet watchers = e.getValue();
-                synchronized (watchers) {
-                    for (Integer wbit : watchers) {
-                        Watcher w = watcherBitIdMap.get(wbit);
-                        if (!(w instanceof ServerCnxn)) {
-                            continue;
-                        }
-                        pwriter.print("\t0x");
-                        pwriter.print(Long.toHexString(((ServerCnxn) w).getSessionId()));
-                        pwriter.print("\n");
+                for (Integer wbit : watchers) {
+                    Watcher w = watcherBitIdMap.get(wbit);
+                    if (!(w instanceof ServerCnxn)) {
+                        continue;
                     }
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn) w).getSessionId()));
+                    pwriter.print("\n");
                 }
             }
         } else {
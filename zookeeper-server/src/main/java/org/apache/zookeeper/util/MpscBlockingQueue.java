@@ -0,0 +1,430 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free blocking queue for many producers and a single consumer,
+ * backed by a chain of ring buffer chunks.
+ * <p>
+ * Unlike {@link java.util.concurrent.LinkedBlockingQueue}, it neither
+ * allocates a node per element nor takes a lock on either end: a producer
+ * claims a slot by incrementing the producer index and then fills it, the
+ * consumer takes the filled slots in index order. Slots live in chunks of
+ * {@link #CHUNK_SIZE} elements, a new chunk is linked when the producers
+ * run past the last one, and consumed chunks are left to the garbage
+ * collector. {@link #drainTo(Collection, int)} takes a whole run of
+ * elements with a single update of the consumer index, so a consumer can
+ * process its elements in batches.
+ * <p>
+ * The queue is unbounded unless a capacity is given, in which case
+ * {@link #offer(Object)} fails when the queue is full.
+ * <p>
+ * The removal operations may be called from any thread, for instance to
+ * clear the queue on shutdown, but only one thread at a time may block in
+ * {@link #take()} or {@link #poll(long, TimeUnit)}.
+ * <p>
+ * Elements can only be removed from the head of the queue: a slot is empty
+ * until its producer fills it, so an element can't be taken out of the
+ * middle of the queue without the consumer waiting on its slot forever.
+ * {@link #remove(Object)} and the removal of the iterator, which is weakly
+ * consistent, throw {@link UnsupportedOperationException}, and so do
+ * {@link #removeAll(Collection)}, {@link #retainAll(Collection)} and
+ * {@link #removeIf} when they find an element to remove. The request
+ * processors only take their requests in order.
+ */
+public class MpscBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    static final int CHUNK_SIZE = 1024;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** how many times the consumer yields before parking on an unfilled slot */
+    private static final int SLOT_YIELDS = 64;
+
+    private static final long SLOT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final class Chunk<E> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Chunk, Chunk> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Chunk.class, Chunk.class, "next");
+
+        /** the index of the first slot of the chunk */
+        final long base;
+
+        final AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(CHUNK_SIZE);
+
+        volatile Chunk<E> next;
+
+        Chunk(long base) {
+            this.base = base;
+        }
+
+        boolean holds(long index) {
+            return index < base + CHUNK_SIZE;
+        }
+
+        @SuppressWarnings("unchecked")
+        Chunk<E> nextOrCreate() {
+            Chunk<E> n = next;
+            if (n == null) {
+                Chunk<E> created = new Chunk<>(base + CHUNK_SIZE);
+                n = NEXT.compareAndSet(this, null, created) ? created : next;
+            }
+            return n;
+        }
+
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscBlockingQueue, Chunk> HEAD =
+        AtomicReferenceFieldUpdater.newUpdater(MpscBlockingQueue.class, Chunk.class, "headChunk");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscBlockingQueue, Chunk> TAIL =
+        AtomicReferenceFieldUpdater.newUpdater(MpscBlockingQueue.class, Chunk.class, "tailChunk");
+
+    private final int capacity;
+
+    /** the index of the next slot claimed by a producer */
+    private final AtomicLong producerIndex = new AtomicLong();
+
+    /** the index of the next slot taken by the consumer */
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /** a chunk at or before the one holding the consumer index */
+    private volatile Chunk<E> headChunk;
+
+    /** a chunk at or before the last one linked */
+    private volatile Chunk<E> tailChunk;
+
+    /** the consumer blocked waiting for an element */
+    private volatile Thread waiter;
+
+    public MpscBlockingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public MpscBlockingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("MpscBlockingQueue capacity should be greater than 0");
+        }
+        this.capacity = capacity;
+        Chunk<E> first = new Chunk<>(0);
+        headChunk = first;
+        tailChunk = first;
+    }
+
+    private static int slotOf(long index) {
+        return (int) (index & CHUNK_MASK);
+    }
+
+    /**
+     * @return the chunk holding a slot claimed by a producer
+     */
+    @SuppressWarnings("unchecked")
+    private Chunk<E> producerChunk(long index) {
+        Chunk<E> tail = tailChunk;
+        // the consumer can't pass a slot not filled yet, so the head chunk
+        // is never past it
+        Chunk<E> chunk = tail.base <= index ? tail : headChunk;
+        while (!chunk.holds(index)) {
+            chunk = chunk.nextOrCreate();
+        }
+        if (chunk.base > tail.base) {
+            TAIL.compareAndSet(this, tail, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * @return the chunk holding a slot below the producer index
+     */
+    @SuppressWarnings("unchecked")
+    private Chunk<E> consumerChunk(long index) {
+        Chunk<E> head = headChunk;
+        Chunk<E> chunk = head;
+        while (!chunk.holds(index)) {
+            chunk = chunk.nextOrCreate();
+        }
+        if (chunk != head) {
+            HEAD.compareAndSet(this, head, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Wait for the producer which claimed a slot to fill it. The slot is
+     * usually filled right away, but the producer may have been descheduled
+     * in between, so the consumer yields for a while and then parks briefly
+     * rather than spinning until it runs again.
+     *
+     * @return the element of the slot, or null if it has been consumed by
+     *         another thread in the meantime
+     */
+    private E awaitSlot(Chunk<E> chunk, long index) {
+        E e;
+        int yields = 0;
+        while ((e = chunk.slots.get(slotOf(index))) == null) {
+            if (consumerIndex.get() != index) {
+                return null;
+            }
+            if (yields < SLOT_YIELDS) {
+                yields++;
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, SLOT_PARK_NANOS);
+            }
+        }
+        return e;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        long index;
+        if (capacity == Integer.MAX_VALUE) {
+            index = producerIndex.getAndIncrement();
+        } else {
+            do {
+                index = producerIndex.get();
+                if (index - consumerIndex.get() >= capacity) {
+                    return false;
+                }
+            } while (!producerIndex.compareAndSet(index, index + 1));
+        }
+        producerChunk(index).slots.set(slotOf(index), e);
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            long index = consumerIndex.get();
+            if (index >= producerIndex.get()) {
+                return null;
+            }
+            Chunk<E> chunk = consumerChunk(index);
+            E e = awaitSlot(chunk, index);
+            if (e != null && consumerIndex.compareAndSet(index, index + 1)) {
+                chunk.slots.lazySet(slotOf(index), null);
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        while (true) {
+            long index = consumerIndex.get();
+            if (index >= producerIndex.get()) {
+                return null;
+            }
+            E e = awaitSlot(consumerChunk(index), index);
+            if (e != null && consumerIndex.get() == index) {
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        waiter = Thread.currentThread();
+        try {
+            // the waiter is published before checking the queue again, so
+            // a producer either sees it or its element is polled here
+            while ((e = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+            return e;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiter = Thread.currentThread();
+        try {
+            while ((e = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, nanos);
+            }
+            return e;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        while (drained < maxElements) {
+            long index = consumerIndex.get();
+            long available = producerIndex.get() - index;
+            if (available <= 0) {
+                break;
+            }
+            Chunk<E> chunk = consumerChunk(index);
+            if (awaitSlot(chunk, index) == null) {
+                continue;
+            }
+            // take the run of filled slots up to the end of the chunk at once
+            int max = (int) Math.min(Math.min(available, maxElements - drained), CHUNK_SIZE - slotOf(index));
+            int count = 1;
+            while (count < max && chunk.slots.get(slotOf(index + count)) != null) {
+                count++;
+            }
+            if (!consumerIndex.compareAndSet(index, index + count)) {
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = slotOf(index + i);
+                c.add(chunk.slots.get(slot));
+                chunk.slots.lazySet(slot, null);
+            }
+            drained += count;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        // read the consumer index first, the producer index is never behind it
+        long consumed = consumerIndex.get();
+        long size = producerIndex.get() - consumed;
+        return (int) Math.max(0, Math.min(size, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long consumed = consumerIndex.get();
+        return producerIndex.get() <= consumed;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(0, capacity - size());
+    }
+
+    /**
+     * Not supported, elements can only be removed from the head of the queue.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("MpscBlockingQueue can only remove its head");
+    }
+
+    /**
+     * @return a weakly consistent snapshot of the elements of the queue,
+     *         which doesn't support removal
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        Chunk<E> chunk = headChunk;
+        long index = Math.max(consumerIndex.get(), chunk.base);
+        long end = producerIndex.get();
+        while (index < end && chunk != null) {
+            if (!chunk.holds(index)) {
+                chunk = chunk.next;
+                continue;
+            }
+            E e = chunk.slots.get(slotOf(index));
+            if (e != null) {
+                snapshot.add(e);
+            }
+            index++;
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+}
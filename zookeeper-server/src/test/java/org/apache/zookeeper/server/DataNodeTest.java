@@ -19,8 +19,11 @@
 package org.apache.zookeeper.server;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import java.util.HashSet;
 import java.util.Set;
 import org.junit.jupiter.api.Test;
 
@@ -64,4 +67,25 @@ public void testGetChildrenReturnsImmutableEmptySet() {
         }
     }
 
+    @Test
+    public void testChildrenAcrossCompactThreshold() {
+        DataNode dataNode = new DataNode();
+        Set<String> expected = new HashSet<>();
+        int count = CompactChildSet.MAX_ARRAY_SIZE * 2;
+        for (int i = count - 1; i >= 0; i--) {
+            assertTrue(dataNode.addChild("child" + i));
+            assertFalse(dataNode.addChild("child" + i));
+            expected.add("child" + i);
+            assertEquals(expected, dataNode.getChildren());
+        }
+        for (int i = 0; i < count; i++) {
+            assertTrue(dataNode.removeChild("child" + i));
+            assertFalse(dataNode.removeChild("child" + i));
+            expected.remove("child" + i);
+            assertEquals(expected, dataNode.getChildren());
+            assertFalse(dataNode.getChildren().contains("child" + i));
+        }
+        assertEquals(0, dataNode.getChildren().size());
+    }
+
 }
@@ -18,12 +18,14 @@
 
 package org.apache.zookeeper.server;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -32,6 +34,8 @@
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
@@ -616,4 +620,150 @@ public void testDigest() throws Exception {
         }
     }
 
+    @Test
+    public void testChunkedSerializeRoundTrip() throws Exception {
+        try {
+            ZooKeeperServer.setDigestEnabled(true);
+            DataTree tree = new DataTree();
+            for (int i = 0; i < 20; i++) {
+                tree.createNode("/parent" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, 1, 1, 1);
+                for (int j = 0; j < 50; j++) {
+                    tree.createNode("/parent" + i + "/child" + j, new byte[100], ZooDefs.Ids.CREATOR_ALL_ACL, j % 3 == 0 ? i + 1 : 0, 1, 1, 1);
+                }
+            }
+            tree.createNode("/container", new byte[0], null, EphemeralType.CONTAINER_EPHEMERAL_OWNER, 1, 1, 1);
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+            // small chunks so that the nodes are spread over many of them
+            tree.serializeChunked(oa, "test", 1024, 1);
+            assertChunkedRoundTrip(tree, baos.toByteArray());
+
+            // the parallel walk must produce an equivalent snapshot
+            baos = new ByteArrayOutputStream();
+            tree.serializeChunked(BinaryOutputArchive.getArchive(baos), "test", 1024, 4);
+            assertChunkedRoundTrip(tree, baos.toByteArray());
+        } finally {
+            ZooKeeperServer.setDigestEnabled(false);
+        }
+    }
+
+    private void assertChunkedRoundTrip(DataTree tree, byte[] serialized) throws Exception {
+        DataTree loaded = new DataTree();
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(serialized));
+        loaded.deserializeChunked(ia, "test", 4);
+
+        assertEquals(tree.getNodeCount(), loaded.getNodeCount());
+        assertEquals(tree.getTreeDigest(), loaded.getTreeDigest());
+        assertEquals(tree.getEphemerals(), loaded.getEphemerals());
+        assertEquals(tree.getContainers(), loaded.getContainers());
+        assertEquals(tree.aclCacheSize(), loaded.aclCacheSize());
+        assertEquals(tree.approximateDataSize(), loaded.approximateDataSize());
+        assertEquals(50, loaded.getNode("/parent7").getChildren().size());
+        assertEquals(ZooDefs.Ids.CREATOR_ALL_ACL, loaded.getACL("/parent7/child3", new Stat()));
+    }
+
+    @Test
+    public void testChunkedLargeNodeAfterSmallNodes() throws Exception {
+        // a chain of nodes is walked in order: about 3MB of nodes, then one
+        // node close to jute.maxbuffer
+        DataTree tree = new DataTree();
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            path.append("/n").append(i);
+            tree.createNode(path.toString(), new byte[30 * 1024], ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, 1, 1, 1);
+        }
+        byte[] largeData = new byte[BinaryInputArchive.maxBuffer - 1024];
+        largeData[0] = 1;
+        String largePath = path.append("/large").toString();
+        tree.createNode(largePath, largeData, ZooDefs.Ids.OPEN_ACL_UNSAFE, -1, 1, 1, 1);
+
+        // a chunk size above jute.maxbuffer is capped to it
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serializeChunked(BinaryOutputArchive.getArchive(baos), "test", 4 * 1024 * 1024, 1);
+        byte[] serialized = baos.toByteArray();
+
+        // only the large node may take a chunk over jute.maxbuffer
+        InputArchive ia = new BinaryInputArchive(
+            new DataInputStream(new ByteArrayInputStream(serialized)), Integer.MAX_VALUE / 2, 0);
+        new ReferenceCountedACLCache().deserialize(ia);
+        List<Integer> chunkSizes = new ArrayList<>();
+        byte[] chunk;
+        while ((chunk = ia.readBuffer("chunk")) != null) {
+            chunkSizes.add(chunk.length);
+        }
+        assertEquals(chunkSizes.size(), ia.readInt("chunkCount"));
+        for (int size : chunkSizes) {
+            int nodeCount = ia.readInt("nodeCount");
+            ia.readLong("checksum");
+            if (size > BinaryInputArchive.maxBuffer) {
+                assertEquals(1, nodeCount);
+            }
+        }
+
+        DataTree loaded = new DataTree();
+        loaded.deserializeChunked(BinaryInputArchive.getArchive(new ByteArrayInputStream(serialized)), "test", 4);
+        assertEquals(tree.getNodeCount(), loaded.getNodeCount());
+        assertArrayEquals(largeData, loaded.getData(largePath, new Stat(), null));
+    }
+
+    @Test
+    public void testChunkedDeserializeDetectsCorruptChunk() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/corrupt", "data".getBytes(), null, -1, 1, 1, 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serializeChunked(BinaryOutputArchive.getArchive(baos), "test", 1024, 1);
+
+        byte[] bytes = baos.toByteArray();
+        // the last 8 bytes are the checksum of the only chunk
+        bytes[bytes.length - 1]++;
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
+        try {
+            new DataTree().deserializeChunked(ia, "test", 2);
+            fail("Should have detected the checksum mismatch");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOffHeapData() throws Exception {
+        DataTree.setOffHeapDataEnabled(true);
+        try {
+            DataTree tree = new DataTree();
+            tree.createNode("/null", null, null, -1, 1, 1, 1);
+            tree.createNode("/empty", new byte[0], null, -1, 1, 1, 1);
+            tree.createNode("/small", "small".getBytes(), null, -1, 1, 1, 1);
+            tree.createNode("/large", new byte[100 * 1024], null, -1, 1, 1, 1);
+            assertTrue(tree.getNode("/small").isOffHeap());
+            assertTrue(tree.getOffHeapDataCapacity() > 0);
+
+            Stat stat = new Stat();
+            assertNull(tree.getData("/null", stat, null));
+            assertEquals(0, tree.getData("/empty", stat, null).length);
+            assertEquals("small", new String(tree.getData("/small", stat, null)));
+            assertEquals(5, stat.getDataLength());
+
+            tree.setData("/small", "changed".getBytes(), 1, 2, 2);
+            assertEquals("changed", new String(tree.getData("/small", stat, null)));
+            assertEquals(7, stat.getDataLength());
+
+            DataNode large = tree.getNode("/large");
+            tree.deleteNode("/large", 3);
+            assertNull(large.getData());
+            assertEquals(tree.approximateDataSize(), tree.cachedApproximateDataSize());
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            tree.serialize(BinaryOutputArchive.getArchive(baos), "test");
+            DataTree loaded = new DataTree();
+            loaded.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(baos.toByteArray())), "test");
+            assertTrue(loaded.getNode("/small").isOffHeap());
+            assertNull(loaded.getData("/null", stat, null));
+            assertEquals("changed", new String(loaded.getData("/small", stat, null)));
+            assertEquals(tree.approximateDataSize(), loaded.approximateDataSize());
+        } finally {
+            DataTree.setOffHeapDataEnabled(false);
+        }
+    }
+
 }
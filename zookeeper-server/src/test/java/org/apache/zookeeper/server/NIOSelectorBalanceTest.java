@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.NIOServerCnxnFactory.SelectorThread;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class NIOSelectorBalanceTest extends ClientBase {
+
+    private static final int CLIENT_COUNT = 4;
+
+    @Override
+    public void setupCustomizedEnv() {
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_SELECTOR_THREADS, "2");
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_SELECTOR_BALANCE, "true");
+        // migrations are requested by the test
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_SELECTOR_BALANCE_INTERVAL, "3600000");
+    }
+
+    @Override
+    public void cleanUpCustomizedEnv() {
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_SELECTOR_THREADS);
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_SELECTOR_BALANCE);
+        System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_SELECTOR_BALANCE_INTERVAL);
+    }
+
+    private Set<SelectorThread> selectorThreadsInUse() {
+        Set<SelectorThread> threads = new HashSet<>();
+        for (ServerCnxn cnxn : serverFactory.getConnections()) {
+            threads.add(((NIOServerCnxn) cnxn).getSelectorThread());
+        }
+        return threads;
+    }
+
+    @Test
+    @Timeout(value = 60)
+    public void testIdleConnectionsMigrate() throws Exception {
+        List<ZooKeeper> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < CLIENT_COUNT; i++) {
+                ZooKeeper zk = createClient();
+                clients.add(zk);
+                zk.create("/node" + i, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            // new connections are spread over both threads
+            Set<SelectorThread> threads = selectorThreadsInUse();
+            assertEquals(2, threads.size());
+            final Set<SelectorThread> allThreads = threads;
+
+            // only connections with some load and no request in flight
+            // migrate, retry until a ping doesn't get in the way
+            final SelectorThread target = threads.iterator().next();
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!(threads.size() == 1 && threads.contains(target))) {
+                assertTrue(System.currentTimeMillis() < deadline, "connections didn't migrate");
+                for (ZooKeeper zk : clients) {
+                    zk.exists("/", false);
+                }
+                for (SelectorThread source : threads) {
+                    if (source != target) {
+                        source.requestMigration(target, Double.MAX_VALUE);
+                    }
+                }
+                Thread.sleep(100);
+                threads = selectorThreadsInUse();
+            }
+            // the connections are counted by the thread they migrated to
+            for (SelectorThread thread : allThreads) {
+                assertEquals(thread == target ? CLIENT_COUNT : 0, thread.getConnectionCount());
+            }
+
+            // the migrated connections still serve requests and watches
+            CountDownLatch watched = new CountDownLatch(CLIENT_COUNT);
+            for (int i = 0; i < CLIENT_COUNT; i++) {
+                clients.get(i).getData("/node0", event -> watched.countDown(), null);
+            }
+            clients.get(CLIENT_COUNT - 1).setData("/node0", "changed".getBytes(), -1);
+            assertTrue(watched.await(30, TimeUnit.SECONDS));
+            for (int i = 0; i < CLIENT_COUNT; i++) {
+                assertEquals("changed", new String(clients.get(i).getData("/node0", false, null)));
+            }
+
+            for (ZooKeeper zk : clients) {
+                zk.close();
+            }
+            clients.clear();
+            deadline = System.currentTimeMillis() + 30000;
+            while (target.getConnectionCount() > 0) {
+                assertTrue(System.currentTimeMillis() < deadline, "closed connections are still counted");
+                Thread.sleep(100);
+            }
+            for (SelectorThread thread : allThreads) {
+                assertEquals(0, thread.getConnectionCount());
+            }
+        } finally {
+            for (ZooKeeper zk : clients) {
+                zk.close();
+            }
+        }
+    }
+
+}
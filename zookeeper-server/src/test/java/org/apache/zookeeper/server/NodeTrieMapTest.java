@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class NodeTrieMapTest extends ZKTestCase {
+
+    @BeforeEach
+    public void setUp() {
+        ZooKeeperServer.setDigestEnabled(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ZooKeeperServer.setDigestEnabled(false);
+    }
+
+    private static DataNode newNode(String data) {
+        return new DataNode(data.getBytes(), 0L, new StatPersisted());
+    }
+
+    /**
+     * The trie must behave like NodeHashMapImpl, including the digest and
+     * the aliases of the root.
+     */
+    @Test
+    public void testSameAsNodeHashMapImpl() {
+        NodeTrieMap trie = new NodeTrieMap(new DigestCalculator());
+        NodeHashMapImpl hash = new NodeHashMapImpl(new DigestCalculator());
+        Map<String, DataNode> expected = new HashMap<>();
+
+        String[] paths = {"", "/", "/a", "/a/b", "/a/b/c", "/ab", "/a/", "p1"};
+        for (String path : paths) {
+            DataNode node = newNode(path);
+            assertNull(trie.put(path, node));
+            hash.put(path, node);
+            expected.put(path, node);
+        }
+        // enough children to switch the trie node to a hash map
+        for (int i = 0; i < NodeTrieMap.MAX_ARRAY_CHILDREN * 2; i++) {
+            DataNode node = newNode("child" + i);
+            trie.put("/a/b/child" + i, node);
+            hash.put("/a/b/child" + i, node);
+            expected.put("/a/b/child" + i, node);
+        }
+        assertEquals(expected.size(), trie.size());
+        assertEquals(hash.getDigest(), trie.getDigest());
+        for (Map.Entry<String, DataNode> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), trie.get(entry.getKey()));
+        }
+        Map<String, DataNode> entries = new HashMap<>();
+        for (Map.Entry<String, DataNode> entry : trie.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(expected, entries);
+
+        // removing a parent keeps its children reachable
+        assertSame(expected.get("/a"), trie.remove("/a"));
+        hash.remove("/a");
+        assertNull(trie.get("/a"));
+        assertSame(expected.get("/a/b/c"), trie.get("/a/b/c"));
+        assertNull(trie.remove("/a"));
+        assertNull(trie.remove("/missing/path"));
+
+        for (int i = 0; i < NodeTrieMap.MAX_ARRAY_CHILDREN * 2; i++) {
+            trie.remove("/a/b/child" + i);
+            hash.remove("/a/b/child" + i);
+        }
+        assertEquals(hash.size(), trie.size());
+        assertEquals(hash.getDigest(), trie.getDigest());
+
+        DataNode node = trie.get("/a/b");
+        trie.preChange("/a/b", node);
+        hash.preChange("/a/b", node);
+        node.stat.setMzxid(1);
+        trie.postChange("/a/b", node);
+        hash.postChange("/a/b", node);
+        assertEquals(hash.getDigest(), trie.getDigest());
+
+        trie.clear();
+        assertEquals(0, trie.size());
+        assertEquals(0L, trie.getDigest());
+        assertNull(trie.get("/a/b"));
+    }
+
+    @Test
+    public void testDataTreeWithTrie() throws Exception {
+        DataTree.setNodeTrieMapEnabled(true);
+        try {
+            DataTree tree = new DataTree();
+            tree.createNode("/services", new byte[0], null, -1, 1, 1, 1);
+            tree.createNode("/services/cluster", "data".getBytes(), null, -1, 1, 1, 1);
+            assertEquals("data", new String(tree.getNode("/services/cluster").getData()));
+            assertEquals(1, tree.getAllChildrenNumber("/services"));
+            tree.deleteNode("/services/cluster", 2);
+            assertNull(tree.getNode("/services/cluster"));
+            assertEquals(tree.approximateDataSize(), tree.cachedApproximateDataSize());
+        } finally {
+            DataTree.setNodeTrieMapEnabled(false);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks a burst of watch notifications to a connection costs a single
+ * selector wake-up with NIO, and a single flush with Netty.
+ */
+public class NotificationCoalescingTest extends ZKTestCase {
+
+    private static final int BURST = 10;
+
+    private static WatchedEvent event(int i) {
+        return new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, "/node" + i);
+    }
+
+    @Test
+    public void testNIOBurstWakesSelectorOnce() throws Exception {
+        Socket socket = mock(Socket.class);
+        when(socket.getRemoteSocketAddress()).thenReturn(new InetSocketAddress(80));
+        SocketChannel sock = mock(SocketChannel.class);
+        when(sock.socket()).thenReturn(socket);
+        SelectionKey sk = mock(SelectionKey.class);
+        when(sk.isValid()).thenReturn(true);
+        NIOServerCnxnFactory.SelectorThread selectorThread = mock(NIOServerCnxnFactory.SelectorThread.class);
+        when(selectorThread.addInterestOpsUpdateRequest(sk)).thenReturn(true);
+
+        NIOServerCnxn cnxn = new MockNIOServerCnxn(
+            mock(ZooKeeperServer.class), sock, sk, mock(NIOServerCnxnFactory.class), selectorThread);
+
+        for (int i = 0; i < BURST; i++) {
+            cnxn.process(event(i));
+        }
+        verify(selectorThread, times(1)).addInterestOpsUpdateRequest(sk);
+
+        // once the selector picked up the update, the next packet queues one again
+        cnxn.clearInterestOpsUpdatePending();
+        cnxn.process(event(BURST));
+        verify(selectorThread, times(2)).addInterestOpsUpdateRequest(sk);
+    }
+
+    @Test
+    public void testNettyBurstFlushesOnce() throws Exception {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.remoteAddress()).thenReturn(new InetSocketAddress(80));
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        EventLoop eventLoop = mock(EventLoop.class);
+        when(channel.eventLoop()).thenReturn(eventLoop);
+        when(eventLoop.inEventLoop()).thenReturn(true);
+        // run the tasks queued on the event loop only when the test says so
+        List<Runnable> tasks = new ArrayList<>();
+        doAnswer(invocation -> tasks.add(invocation.getArgument(0))).when(eventLoop).execute(any(Runnable.class));
+
+        NettyServerCnxn cnxn = new NettyServerCnxn(channel, mock(ZooKeeperServer.class), new NettyServerCnxnFactory());
+
+        for (int i = 0; i < BURST; i++) {
+            cnxn.process(event(i));
+        }
+        verify(channel, times(BURST)).write(any());
+        verify(channel, never()).flush();
+        assertEquals(1, tasks.size());
+
+        tasks.remove(0).run();
+        verify(channel, times(1)).flush();
+
+        // a notification after the flush queues a new one
+        cnxn.process(event(BURST));
+        assertEquals(1, tasks.size());
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.jupiter.api.Test;
+
+public class OffHeapDataArenaTest extends ZKTestCase {
+
+    @Test
+    public void testReadWhatWasAllocated() {
+        OffHeapDataArena arena = new OffHeapDataArena(1024);
+        assertEquals(OffHeapDataArena.NULL_HANDLE, arena.allocate(null));
+        assertNull(arena.read(OffHeapDataArena.NULL_HANDLE));
+        assertEquals(0, arena.read(arena.allocate(new byte[0])).length);
+
+        byte[][] data = new byte[100][];
+        long[] handles = new long[data.length];
+        for (int i = 0; i < data.length; i++) {
+            // spans several size classes and slots larger than a slab
+            data[i] = new byte[i * 37 + 1];
+            data[i][0] = (byte) i;
+            data[i][data[i].length - 1] = (byte) -i;
+            handles[i] = arena.allocate(data[i]);
+        }
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i].length, arena.length(handles[i]));
+            assertArrayEquals(data[i], arena.read(handles[i]));
+        }
+    }
+
+    @Test
+    public void testReleasedSlotsAreReused() {
+        OffHeapDataArena arena = new OffHeapDataArena(1024);
+        long small = arena.allocate(new byte[100]);
+        long large = arena.allocate(new byte[4096]);
+        long capacity = arena.getCapacityBytes();
+        assertEquals(128 + 8192, arena.getAllocatedBytes());
+
+        arena.release(small);
+        arena.release(large);
+        assertEquals(0, arena.getAllocatedBytes());
+        assertEquals(capacity - 8192, arena.getCapacityBytes());
+
+        assertEquals(small, arena.allocate(new byte[90]));
+        arena.allocate(new byte[4096]);
+        assertEquals(capacity, arena.getCapacityBytes());
+    }
+
+}
@@ -26,6 +26,8 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.OutputArchive;
@@ -260,6 +262,46 @@ public void testPurgeUnused() throws IOException {
         assertFalse(acl5.equals(deserializedCache.convertAcls(acl5)));
     }
 
+    @Test
+    public void testConcurrentUsageCounting() throws Exception {
+        ReferenceCountedACLCache cache = new ReferenceCountedACLCache();
+        List<ACL> acl = createACL("shared");
+        Long aclId = cache.convertAcls(acl);
+
+        int threadCount = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < 10000; i++) {
+                        // every thread holds its own usage while reading
+                        assertEquals(aclId, cache.convertAcls(acl));
+                        assertEquals(acl, cache.convertLong(aclId));
+                        cache.removeUsage(aclId);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        // only the first usage is left
+        assertEquals(1, cache.getReferenceCount(aclId));
+        cache.removeUsage(aclId);
+        assertEquals(0, cache.size());
+    }
+
     private void callAddUsageNTimes(ReferenceCountedACLCache deserializedCache, Long aclId, int num) {
         for (int i = 0; i < num; i++) {
             deserializedCache.addUsage(aclId);
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.util.MpscBlockingQueue;
+import org.junit.jupiter.api.Test;
+
+public class RequestQueueClassTest extends ClientBase {
+
+    @Override
+    public void setupCustomizedEnv() {
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE_CLASS, MpscBlockingQueue.class.getName());
+        RequestQueueFactory.init();
+    }
+
+    @Override
+    public void cleanUpCustomizedEnv() {
+        System.clearProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE_CLASS);
+        RequestQueueFactory.init();
+    }
+
+    @Test
+    public void testServerOnMpscQueues() throws Exception {
+        ZooKeeperServer zks = serverFactory.getZooKeeperServer();
+        assertTrue(((PrepRequestProcessor) zks.firstProcessor).submittedRequests instanceof MpscBlockingQueue);
+
+        try (ZooKeeper zk = createClient()) {
+            for (int i = 0; i < 100; i++) {
+                zk.create("/node" + i, new byte[]{(byte) i}, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals(new byte[]{(byte) i}, zk.getData("/node" + i, false, null));
+                zk.delete("/node" + i, -1);
+            }
+            assertNull(zk.exists("/node0", false));
+        }
+    }
+
+    @Test
+    public void testInvalidQueueClass() {
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE_CLASS, "org.apache.zookeeper.NoSuchQueue");
+        RequestQueueFactory.init();
+        assertEquals(LinkedBlockingQueue.class, RequestQueueFactory.createQueue().getClass());
+
+        System.setProperty(RequestQueueFactory.ZOOKEEPER_REQUEST_QUEUE_CLASS, String.class.getName());
+        RequestQueueFactory.init();
+        assertEquals(LinkedBlockingQueue.class, RequestQueueFactory.createQueue().getClass());
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ResponseCacheTest extends ZKTestCase {
+
+    @BeforeEach
+    public void setUp() {
+        ServerMetrics.getMetrics().resetAll();
+    }
+
+    private static Stat stat(long mzxid) {
+        Stat stat = new Stat();
+        stat.setMzxid(mzxid);
+        return stat;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the bytes of a cached response, which is then released
+     */
+    private static byte[] bytes(ResponseCache.CachedResponse cached) {
+        if (cached == null) {
+            return null;
+        }
+        byte[] bytes = bytes(cached.getBuffer());
+        cached.release();
+        return bytes;
+    }
+
+    @Test
+    public void testInvalidatedByStat() {
+        ResponseCache cache = new ResponseCache(16, 0, metrics -> metrics.RESPONSE_PACKET_CACHE_EVICTIONS);
+        cache.put("/a", "a".getBytes(), stat(1));
+        assertArrayEquals("a".getBytes(), bytes(cache.get("/a", stat(1))));
+        assertNull(cache.get("/a", stat(2)));
+        assertNull(cache.get("/a", stat(1)));
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    public void testEvictionBoundedByEntries() {
+        ResponseCache cache = new ResponseCache(16, 0, metrics -> metrics.RESPONSE_PACKET_CACHE_EVICTIONS);
+        for (int i = 0; i < 20; i++) {
+            cache.put("/" + i, new byte[1], stat(i));
+        }
+        // the least recently used entries went first
+        assertNull(cache.get("/0", stat(0)));
+        assertArrayEquals(new byte[1], bytes(cache.get("/19", stat(19))));
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(4L, metrics.get("response_packet_cache_evictions"));
+    }
+
+    @Test
+    public void testEvictionBoundedByBytes() {
+        ResponseCache cache = new ResponseCache(400, 16 * 1024, metrics -> metrics.RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS);
+        for (int i = 0; i < 100; i++) {
+            cache.put("/node" + i, new byte[500], stat(i));
+            assertTrue(cache.getCachedBytes() <= cache.getCacheBytes());
+        }
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertTrue((Long) metrics.get("response_packet_get_children_cache_evictions") > 0);
+
+        // larger than a segment, not cached nor copied to direct memory
+        assertNull(cache.put("/large", new byte[8 * 1024], stat(1)));
+        assertNull(cache.get("/large", stat(1)));
+    }
+
+    @Test
+    public void testDisabled() {
+        ResponseCache cache = new ResponseCache(0, 0, metrics -> metrics.RESPONSE_PACKET_CACHE_EVICTIONS);
+        assertNull(cache.put("/a", "a".getBytes(), stat(1)));
+        assertNull(cache.get("/a", stat(1)));
+    }
+
+    @Test
+    public void testSharedDirectBuffer() {
+        ResponseCache cache = new ResponseCache(16, 0, metrics -> metrics.RESPONSE_PACKET_CACHE_EVICTIONS);
+        ByteBuffer sent = cache.put("/a", "abc".getBytes(), stat(1)).getBuffer();
+        assertTrue(sent.isDirect());
+        assertTrue(sent.isReadOnly());
+        // consuming a buffer returned by the cache leaves the cached one intact
+        assertArrayEquals("abc".getBytes(), bytes(sent));
+        ByteBuffer first = cache.get("/a", stat(1)).getBuffer();
+        ByteBuffer second = cache.get("/a", stat(1)).getBuffer();
+        assertArrayEquals("abc".getBytes(), bytes(first));
+        assertFalse(first.hasRemaining());
+        assertArrayEquals("abc".getBytes(), bytes(second));
+    }
+
+    @Test
+    public void testBuffersReusedOnceReleased() {
+        ResponseCache cache = new ResponseCache(16, 0, metrics -> metrics.RESPONSE_PACKET_CACHE_EVICTIONS);
+        ResponseCache.CachedResponse sending = cache.put("/a", "abc".getBytes(), stat(1));
+
+        // replaced while still being sent, the buffer is kept as is
+        bytes(cache.put("/a", "def".getBytes(), stat(2)));
+        assertEquals(0, cache.getPooledBytes());
+        assertArrayEquals("abc".getBytes(), bytes(sending.getBuffer()));
+
+        // and goes back to the pool once sent
+        sending.release();
+        assertEquals(64, cache.getPooledBytes());
+        bytes(cache.put("/b", "ghi".getBytes(), stat(1)));
+        assertEquals(0, cache.getPooledBytes());
+        assertArrayEquals("ghi".getBytes(), bytes(cache.get("/b", stat(1))));
+        assertArrayEquals("def".getBytes(), bytes(cache.get("/a", stat(2))));
+
+        // invalidated entries are pooled as well
+        assertNull(cache.get("/a", stat(3)));
+        assertEquals(64, cache.getPooledBytes());
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SyncRequestProcessorTest extends ZKTestCase {
+
+    private ZooKeeperServer zks;
+    private ZKDatabase db;
+    private final List<Request> released = new CopyOnWriteArrayList<>();
+    private RequestProcessor nextProcessor;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        db = mock(ZKDatabase.class);
+        when(db.append(any(Request.class))).thenReturn(true);
+        zks = mock(ZooKeeperServer.class);
+        when(zks.getZKDatabase()).thenReturn(db);
+        when(zks.isPipelinedFlush()).thenReturn(true);
+        // only flush on full batches
+        when(zks.getMaxBatchSize()).thenReturn(10);
+        when(zks.getFlushDelay()).thenReturn(60_000L);
+        when(zks.getMaxWriteQueuePollTime()).thenReturn(60_000L);
+
+        nextProcessor = mock(RequestProcessor.class);
+        doAnswer(invocation -> {
+            released.add(invocation.getArgument(0));
+            return null;
+        }).when(nextProcessor).processRequest(any(Request.class));
+    }
+
+    private Request createRequest(long sessionId, int xid) {
+        return new Request(null, sessionId, xid, ZooDefs.OpCode.setData, ByteBuffer.wrap(new byte[10]), null);
+    }
+
+    @Test
+    public void testPipelinedFlushAppendsWhileSyncing() throws Exception {
+        CountDownLatch syncStarted = new CountDownLatch(1);
+        CountDownLatch allowSync = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            syncStarted.countDown();
+            allowSync.await();
+            return null;
+        }).when(db).syncLog();
+
+        SyncRequestProcessor syncProcessor = new SyncRequestProcessor(zks, nextProcessor);
+        syncProcessor.start();
+
+        // the first full batch is handed over and blocks in fsync
+        for (int i = 0; i < 10; i++) {
+            syncProcessor.processRequest(createRequest(1, i));
+        }
+        assertTrue(syncStarted.await(5, TimeUnit.SECONDS));
+
+        // the next batch is appended while the first one is still syncing
+        CountDownLatch appended = new CountDownLatch(10);
+        doAnswer(invocation -> {
+            appended.countDown();
+            return true;
+        }).when(db).append(any(Request.class));
+        for (int i = 10; i < 20; i++) {
+            syncProcessor.processRequest(createRequest(1, i));
+        }
+        assertTrue(appended.await(5, TimeUnit.SECONDS));
+        verify(nextProcessor, never()).processRequest(any(Request.class));
+        verify(db, never()).commit();
+
+        allowSync.countDown();
+        syncProcessor.shutdown();
+
+        assertEquals(20, released.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, released.get(i).cxid);
+        }
+    }
+
+}
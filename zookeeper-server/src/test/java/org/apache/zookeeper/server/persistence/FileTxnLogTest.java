@@ -23,10 +23,13 @@
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
@@ -263,4 +266,161 @@ public void testLogSizeLimit() throws Exception {
         }
     }
 
+    /**
+     * Test that a log appended through mapped segments, including txns
+     * spanning segment boundaries, is read back by the regular iterator
+     */
+    @Test
+    public void testMmapLogReadable() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        FileTxnLog.setPreallocSize(4 * KB);
+        FileTxnLog.setTxnLogMmap(true);
+        try {
+            FileTxnLog fileTxnLog = new FileTxnLog(logDir);
+            byte[] data = new byte[3 * KB];
+            Arrays.fill(data, (byte) 0xff);
+            for (int zxid = 1; zxid <= 10; zxid++) {
+                fileTxnLog.append(
+                    new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.create),
+                    new CreateTxn("/testMmapLogReadable" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+                fileTxnLog.commit();
+            }
+            fileTxnLog.close();
+
+            File[] logFiles = FileTxnLog.getLogFiles(logDir.listFiles(), 0);
+            assertEquals(1, logFiles.length);
+            assertEquals(0, logFiles[0].length() % (4 * KB), "log should be preallocated in whole segments");
+
+            FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 0);
+            for (int zxid = 1; zxid <= 10; zxid++) {
+                assertEquals(zxid, itr.getHeader().getZxid());
+                assertArrayEquals(data, ((CreateTxn) itr.getTxn()).getData());
+                assertEquals(zxid < 10, itr.next());
+            }
+            itr.close();
+            assertEquals(10, new FileTxnLog(logDir).getLastLoggedZxid());
+        } finally {
+            FileTxnLog.setTxnLogMmap(false);
+            FileTxnLog.setPreallocSize(65536 * KB);
+        }
+    }
+
+    @Test
+    public void testMmapSegmentsUnmapped() throws Exception {
+        File logFile = new File(ClientBase.createTmpDir(), "log.1");
+        MappedTxnLogOutputStream out = new MappedTxnLogOutputStream(logFile, 4 * KB);
+        byte[] data = new byte[10 * KB];
+        new Random(1).nextBytes(data);
+        out.write(data, 0, 5 * KB);
+        // unmaps the first segment
+        out.force();
+        out.write(data, 5 * KB, 5 * KB);
+        out.force();
+        assertEquals(10 * KB, out.position());
+        out.close();
+        out.close();
+        // the segments are gone, nothing touches them anymore
+        out.force();
+        assertThrows(IOException.class, () -> out.write(data, 0, 1));
+
+        assertEquals(12 * KB, logFile.length());
+        byte[] written = new byte[10 * KB];
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            raf.readFully(written);
+        }
+        assertArrayEquals(data, written);
+    }
+
+    @Test
+    public void testCompressedLogReadable() throws Exception {
+        testCompressedLogReadable(TxnLogCompression.LZ4);
+        testCompressedLogReadable(TxnLogCompression.ZSTD);
+    }
+
+    private void testCompressedLogReadable(TxnLogCompression compression) throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        FileTxnLog.setTxnLogCompression(compression);
+        FileTxnLog.setTxnLogBlockSize(8 * KB);
+        try {
+            byte[] data = new byte[3 * KB];
+            Arrays.fill(data, (byte) 0xff);
+            appendCreates(logDir, data, 30, 5);
+
+            File[] logFiles = FileTxnLog.getLogFiles(logDir.listFiles(), 0);
+            assertEquals(1, logFiles.length);
+
+            FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 0);
+            assertNotNull(itr.blockStream, "log should be in the block format");
+            for (int zxid = 1; zxid <= 30; zxid++) {
+                assertEquals(zxid, itr.getHeader().getZxid());
+                assertArrayEquals(data, ((CreateTxn) itr.getTxn()).getData());
+                assertEquals(zxid < 30, itr.next());
+            }
+            itr.close();
+            assertEquals(30, new FileTxnLog(logDir).getLastLoggedZxid());
+        } finally {
+            FileTxnLog.setTxnLogCompression(TxnLogCompression.NONE);
+            FileTxnLog.setTxnLogBlockSize(64 * KB);
+        }
+    }
+
+    @Test
+    public void testTruncateCompressedLogInsideBlock() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        FileTxnLog.setTxnLogCompression(TxnLogCompression.LZ4);
+        try {
+            byte[] data = new byte[100];
+            // a single block holds all the txns
+            appendCreates(logDir, data, 20, 20);
+
+            FileTxnLog txnLog = new FileTxnLog(logDir);
+            assertTrue(txnLog.truncate(12));
+            txnLog.close();
+
+            FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 0);
+            for (int zxid = 1; zxid <= 12; zxid++) {
+                assertEquals(zxid, itr.getHeader().getZxid());
+                assertEquals(zxid < 12, itr.next());
+            }
+            itr.close();
+        } finally {
+            FileTxnLog.setTxnLogCompression(TxnLogCompression.NONE);
+        }
+    }
+
+    @Test
+    public void testCorruptCompressedBlock() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        FileTxnLog.setTxnLogCompression(TxnLogCompression.ZSTD);
+        try {
+            appendCreates(logDir, new byte[100], 10, 10);
+            File logFile = FileTxnLog.getLogFiles(logDir.listFiles(), 0)[0];
+            try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                // a byte of the payload of the first block, past the file
+                // and block headers
+                raf.seek(16 + 17 + 5);
+                int b = raf.read();
+                raf.seek(16 + 17 + 5);
+                raf.write(b ^ 0xff);
+            }
+            IOException e = assertThrows(IOException.class, () -> new FileTxnLog.FileTxnIterator(logDir, 0));
+            assertEquals(TxnLogBlockInputStream.CRC_ERROR, e.getMessage());
+        } finally {
+            FileTxnLog.setTxnLogCompression(TxnLogCompression.NONE);
+        }
+    }
+
+    private void appendCreates(File logDir, byte[] data, int count, int commitEvery) throws IOException {
+        FileTxnLog fileTxnLog = new FileTxnLog(logDir);
+        for (int zxid = 1; zxid <= count; zxid++) {
+            fileTxnLog.append(
+                new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.create),
+                new CreateTxn("/appendCreates" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+            if (zxid % commitEvery == 0) {
+                fileTxnLog.commit();
+            }
+        }
+        fileTxnLog.close();
+    }
+
 }
@@ -404,4 +404,39 @@ void testSnapshotSerializationCompatibility(Boolean digestEnabled, Boolean snapp
         snaplog.restore(dataTree, sessions, (hdr, rec, digest) -> {  });
         assertEquals(expectedNodeCount, dataTree.getNodeCount());
     }
+
+    @Test
+    public void testChunkedSnapshotRestore() throws IOException {
+        File dataDir = ClientBase.createEmptyTestDir();
+        FileSnap.setChunkedEnabled(true);
+        FileSnap.setChunkSize(512);
+        try {
+            FileTxnSnapLog snaplog = new FileTxnSnapLog(dataDir, dataDir);
+            DataTree dataTree = new DataTree();
+            ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+            sessions.put(1L, 3000);
+            for (int i = 1; i <= 200; i++) {
+                TxnHeader txnHeader = new TxnHeader(1, 1, i, i, ZooDefs.OpCode.create);
+                CreateTxn txn = new CreateTxn("/" + i, "data".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, i % 2 == 0, 1);
+                dataTree.processTxn(txnHeader, txn);
+            }
+            snaplog.save(dataTree, sessions, false);
+
+            try (FileInputStream fis = new FileInputStream(snaplog.findMostRecentSnapshot())) {
+                FileHeader header = new FileHeader();
+                header.deserialize(BinaryInputArchive.getArchive(fis), "fileheader");
+                assertEquals(FileSnap.CHUNKED_VERSION, header.getVersion());
+            }
+
+            DataTree restored = new DataTree();
+            ConcurrentHashMap<Long, Integer> restoredSessions = new ConcurrentHashMap<>();
+            snaplog.restore(restored, restoredSessions, (hdr, rec, digest) -> {  });
+            assertEquals(dataTree.getNodeCount(), restored.getNodeCount());
+            assertEquals(dataTree.getEphemerals(), restored.getEphemerals());
+            assertEquals(sessions, restoredSessions);
+        } finally {
+            FileSnap.setChunkedEnabled(false);
+            FileSnap.setChunkSize(256 * 1024);
+        }
+    }
 }
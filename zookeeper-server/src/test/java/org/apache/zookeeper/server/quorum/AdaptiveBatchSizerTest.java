@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveBatchSizerTest extends ZKTestCase {
+
+    @Test
+    public void testNoCommitsWaiting() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(TimeUnit.MILLISECONDS.toNanos(5));
+        sizer.update(1000, 0);
+        // reads are not batched, commits are picked up as soon as they arrive
+        assertEquals(-1, sizer.getReadBatchSize());
+    }
+
+    @Test
+    public void testCommitBatchBoundedByTargetTime() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(TimeUnit.MILLISECONDS.toNanos(5));
+        // no commit time observed yet, take all the queued commits
+        sizer.update(0, 50);
+        assertEquals(50, sizer.getCommitBatchSize());
+        assertEquals(1, sizer.getReadBatchSize());
+
+        // 100us per commit, 50 commits fit in 5ms
+        sizer.recordCommits(10, TimeUnit.MICROSECONDS.toNanos(1000));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(100), sizer.getCommitNanos());
+        sizer.update(0, 500);
+        assertEquals(50, sizer.getCommitBatchSize());
+
+        // slow commits are applied one at a time
+        for (int i = 0; i < 50; i++) {
+            sizer.recordCommits(1, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        sizer.update(0, 500);
+        assertEquals(1, sizer.getCommitBatchSize());
+    }
+
+    @Test
+    public void testReadBatchProportionalToBacklog() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(TimeUnit.MILLISECONDS.toNanos(5));
+        sizer.recordCommits(1, TimeUnit.MICROSECONDS.toNanos(500));
+
+        // 10 commits per round, with 100 times more reads queued
+        sizer.update(10000, 100);
+        assertEquals(10, sizer.getCommitBatchSize());
+        assertEquals(1000, sizer.getReadBatchSize());
+
+        // a write burst doesn't starve reads entirely
+        sizer.update(10, 10000);
+        assertEquals(10, sizer.getCommitBatchSize());
+        assertEquals(1, sizer.getReadBatchSize());
+
+        sizer.update(Integer.MAX_VALUE, 1);
+        assertEquals(AdaptiveBatchSizer.MAX_READ_BATCH_SIZE, sizer.getReadBatchSize());
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.quorum.Leader.Proposal;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class ProposalAckTest extends ZKTestCase {
+
+    private static QuorumVerifier votersOf(long... sids) {
+        Map<Long, QuorumServer> members = new HashMap<>();
+        for (long sid : sids) {
+            members.put(sid, new QuorumServer(sid, new InetSocketAddress("127.0.0.1", 2000 + (int) sid)));
+        }
+        return new QuorumMaj(members);
+    }
+
+    @Test
+    public void testOnlyQuorumCompletingAckReported() {
+        Proposal p = new Proposal();
+        p.addQuorumVerifier(votersOf(1, 2, 3, 4, 5));
+
+        assertFalse(p.addAckAndCheckQuorums(1));
+        assertFalse(p.addAckAndCheckQuorums(2));
+        // 6 is not a voter
+        assertFalse(p.addAckAndCheckQuorums(6));
+        // a duplicate ack doesn't count
+        assertFalse(p.addAckAndCheckQuorums(2));
+        assertTrue(p.addAckAndCheckQuorums(3));
+        // the acks after the quorum don't commit it again
+        assertFalse(p.addAckAndCheckQuorums(4));
+        assertFalse(p.addAckAndCheckQuorums(5));
+        assertTrue(p.hasAllQuorums());
+    }
+
+    @Test
+    public void testAllConfigurationsNeeded() {
+        Proposal p = new Proposal();
+        p.addQuorumVerifier(votersOf(1, 2, 3));
+        p.addQuorumVerifier(votersOf(3, 4, 5));
+
+        assertFalse(p.addAckAndCheckQuorums(1));
+        assertFalse(p.addAckAndCheckQuorums(2));
+        assertFalse(p.addAckAndCheckQuorums(4));
+        assertTrue(p.addAckAndCheckQuorums(5));
+    }
+
+    @Test
+    @Timeout(value = 30)
+    public void testConcurrentAcks() throws Exception {
+        final int voterCount = 7;
+        final int proposalCount = 10000;
+        long[] sids = new long[voterCount];
+        for (int i = 0; i < voterCount; i++) {
+            sids[i] = i + 1;
+        }
+        QuorumVerifier qv = votersOf(sids);
+        final Proposal[] proposals = new Proposal[proposalCount];
+        for (int i = 0; i < proposalCount; i++) {
+            proposals[i] = new Proposal();
+            proposals[i].addQuorumVerifier(qv);
+        }
+
+        // each voter acks every proposal in order on its own thread
+        final AtomicIntegerArray reported = new AtomicIntegerArray(proposalCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (final long sid : sids) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < proposalCount; i++) {
+                    if (proposals[i].addAckAndCheckQuorums(sid)) {
+                        reported.incrementAndGet(i);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < proposalCount; i++) {
+            assertEquals(1, reported.get(i), "quorum of proposal " + i + " reported");
+            assertEquals(voterCount, proposals[i].qvAcksetPairs.get(0).getAckset().size());
+        }
+    }
+
+}
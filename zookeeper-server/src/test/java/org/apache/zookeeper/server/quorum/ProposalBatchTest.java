@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.number.OrderingComparison.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.test.QuorumUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ProposalBatchTest extends ZKTestCase {
+
+    private boolean oldProposalBatching;
+
+    @BeforeEach
+    public void setup() {
+        oldProposalBatching = Leader.isProposalBatching();
+    }
+
+    @AfterEach
+    public void teardown() {
+        Leader.setProposalBatching(oldProposalBatching);
+    }
+
+    @Test
+    public void testPackUnpack() throws Exception {
+        List<QuorumPacket> proposals = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            proposals.add(new QuorumPacket(Leader.PROPOSAL, i, new byte[]{(byte) i, (byte) (i + 1)}, null));
+        }
+        proposals.add(new QuorumPacket(Leader.PROPOSAL, 4, new byte[0], null));
+
+        QuorumPacket batch = ProposalBatch.pack(Leader.PROPOSALS, proposals);
+        assertEquals(Leader.PROPOSALS, batch.getType());
+        assertEquals(4, batch.getZxid());
+
+        List<QuorumPacket> unpacked = ProposalBatch.unpack(batch);
+        assertEquals(proposals.size(), unpacked.size());
+        for (int i = 0; i < proposals.size(); i++) {
+            assertEquals(Leader.PROPOSAL, unpacked.get(i).getType());
+            assertEquals(proposals.get(i).getZxid(), unpacked.get(i).getZxid());
+            assertArrayEquals(proposals.get(i).getData(), unpacked.get(i).getData());
+        }
+
+        batch = ProposalBatch.pack(Leader.INFORMS, proposals);
+        assertEquals(Leader.INFORMS, batch.getType());
+        for (QuorumPacket inform : ProposalBatch.unpack(batch)) {
+            assertEquals(Leader.INFORM, inform.getType());
+        }
+    }
+
+    @Test
+    public void testUnpackTruncated() {
+        QuorumPacket batch = ProposalBatch.pack(Leader.PROPOSALS, Arrays.asList(
+            new QuorumPacket(Leader.PROPOSAL, 1, new byte[10], null),
+            new QuorumPacket(Leader.PROPOSAL, 2, new byte[10], null)));
+        byte[] data = batch.getData();
+        batch.setData(Arrays.copyOf(data, data.length - 1));
+        assertThrows(IOException.class, () -> ProposalBatch.unpack(batch));
+        batch.setData(null);
+        assertThrows(IOException.class, () -> ProposalBatch.unpack(batch));
+    }
+
+    @Test
+    public void testBatchingEnsemble() throws Exception {
+        Leader.setProposalBatching(true);
+        ServerMetrics.getMetrics().resetAll();
+
+        QuorumUtil util = new QuorumUtil(1);
+        try {
+            util.startAll();
+
+            for (LearnerHandler handler : util.getLeaderQuorumPeer().leader.getLearners()) {
+                assertTrue(handler.isBatching());
+            }
+
+            // queue many writes at once so that proposals pile up
+            final int nodeCount = 1000;
+            ZooKeeper zk = ClientBase.createZKClient(util.getConnString());
+            final CountDownLatch created = new CountDownLatch(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                zk.create("/node" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                          (rc, path, ctx, name) -> created.countDown(), null);
+            }
+            assertTrue(created.await(30, TimeUnit.SECONDS));
+            zk.close();
+
+            for (int sid = 1; sid <= 3; sid++) {
+                ZooKeeper server = ClientBase.createZKClient(util.getConnectionStringForServer(sid));
+                final CountDownLatch synced = new CountDownLatch(1);
+                server.sync("/", (rc, path, ctx) -> synced.countDown(), null);
+                assertTrue(synced.await(30, TimeUnit.SECONDS));
+                // the root holds the zookeeper node and the created nodes
+                assertEquals(nodeCount + 1, server.getChildren("/", false).size());
+                server.close();
+            }
+
+            Map<String, Object> values = MetricsUtils.currentServerMetrics();
+            assertThat((long) values.get("cnt_proposal_batch_size"), greaterThan(0L));
+            assertThat((long) values.get("cnt_learner_ack_batch_size"), greaterThan(0L));
+            assertThat((long) values.get("cnt_commit_batch_size"), greaterThan(0L));
+        } finally {
+            util.shutdownAll();
+        }
+    }
+
+}
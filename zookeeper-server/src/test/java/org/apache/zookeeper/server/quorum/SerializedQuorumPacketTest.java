@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.jupiter.api.Test;
+
+public class SerializedQuorumPacketTest extends ZKTestCase {
+
+    private static byte[] serialize(QuorumPacket qp) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(bos).writeRecord(qp, "packet");
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testSameBytesAsArchive() throws Exception {
+        byte[] data = new byte[]{1, 2, 3, 4, 5};
+        SerializedQuorumPacket proposal = new SerializedQuorumPacket(Leader.PROPOSAL, 0x100000001L, data);
+        assertArrayEquals(serialize(new QuorumPacket(Leader.PROPOSAL, 0x100000001L, data, null)), proposal.getSerialized());
+
+        SerializedQuorumPacket commit = new SerializedQuorumPacket(Leader.COMMIT, 0x100000001L, null);
+        assertArrayEquals(serialize(new QuorumPacket(Leader.COMMIT, 0x100000001L, null, null)), commit.getSerialized());
+    }
+
+    @Test
+    public void testSerializedOnce() throws Exception {
+        SerializedQuorumPacket inform = new SerializedQuorumPacket(Leader.INFORM, 7, new byte[100]);
+        byte[] serialized = inform.getSerialized();
+        assertSame(serialized, inform.getSerialized());
+
+        QuorumPacket read = new QuorumPacket();
+        BinaryInputArchive.getArchive(new ByteArrayInputStream(serialized)).readRecord(read, "packet");
+        assertEquals(Leader.INFORM, read.getType());
+        assertEquals(7, read.getZxid());
+        assertArrayEquals(inform.getData(), read.getData());
+    }
+
+}
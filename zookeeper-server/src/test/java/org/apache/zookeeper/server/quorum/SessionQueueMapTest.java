@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.Request;
+import org.junit.jupiter.api.Test;
+
+public class SessionQueueMapTest extends ZKTestCase {
+
+    @Test
+    public void testGetOrCreate() {
+        SessionQueueMap map = new SessionQueueMap(16);
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+
+        SessionQueueMap.SessionQueue queue = map.getOrCreate(1);
+        assertEquals(1, queue.sessionId);
+        assertTrue(queue.isEmpty());
+        assertSame(queue, map.getOrCreate(1));
+        assertSame(queue, map.get(1));
+        assertTrue(map.containsKey(1));
+        assertFalse(map.containsKey(2));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testRemovedQueuesArePooled() {
+        SessionQueueMap map = new SessionQueueMap(16);
+        SessionQueueMap.SessionQueue queue = map.getOrCreate(1);
+        queue.add(new Request(null, 1, 1, 0, null, null));
+        queue.draining = true;
+        map.remove(1);
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+
+        SessionQueueMap.SessionQueue reused = map.getOrCreate(2);
+        assertSame(queue, reused);
+        assertEquals(2, reused.sessionId);
+        assertTrue(reused.isEmpty());
+        assertFalse(reused.draining);
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        // colliding and growing keys, with removals in the middle of probe chains
+        SessionQueueMap map = new SessionQueueMap(16);
+        Map<Long, SessionQueueMap.SessionQueue> expected = new HashMap<>();
+        Random r = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long sessionId = (0x1L << 56) + r.nextInt(2000);
+            if (r.nextInt(3) == 0) {
+                map.remove(sessionId);
+                expected.remove(sessionId);
+            } else {
+                SessionQueueMap.SessionQueue queue = map.getOrCreate(sessionId);
+                SessionQueueMap.SessionQueue previous = expected.putIfAbsent(sessionId, queue);
+                if (previous != null) {
+                    assertSame(previous, queue);
+                }
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long sessionId = 0x1L << 56; sessionId < (0x1L << 56) + 2000; sessionId++) {
+            assertSame(expected.get(sessionId), map.get(sessionId));
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.test.QuorumUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class StreamingSnapSyncTest extends ZKTestCase {
+
+    private boolean oldProposalBatching;
+    private boolean oldStreamingSnapSync;
+    private int oldChunkSize;
+    private int oldLoadThreads;
+    private int oldWriteThreads;
+    private QuorumUtil util;
+
+    @BeforeEach
+    public void setup() {
+        oldProposalBatching = Leader.isProposalBatching();
+        oldStreamingSnapSync = Leader.isStreamingSnapSync();
+        oldChunkSize = FileSnap.getChunkSize();
+        oldLoadThreads = FileSnap.getLoadThreads();
+        oldWriteThreads = FileSnap.getWriteThreads();
+        System.setProperty(LearnerHandler.FORCE_SNAP_SYNC, "true");
+        // small chunks written and loaded by several threads
+        FileSnap.setChunkSize(1024);
+        FileSnap.setLoadThreads(3);
+        FileSnap.setWriteThreads(3);
+    }
+
+    @AfterEach
+    public void teardown() {
+        if (util != null) {
+            util.shutdownAll();
+        }
+        System.clearProperty(LearnerHandler.FORCE_SNAP_SYNC);
+        Leader.setProposalBatching(oldProposalBatching);
+        Leader.setStreamingSnapSync(oldStreamingSnapSync);
+        FileSnap.setChunkSize(oldChunkSize);
+        FileSnap.setLoadThreads(oldLoadThreads);
+        FileSnap.setWriteThreads(oldWriteThreads);
+    }
+
+    private static void createNodes(ZooKeeper zk, String parent, int count, int dataSize) throws Exception {
+        zk.create(parent, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        final CountDownLatch created = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            zk.create(parent + "/node" + i, new byte[dataSize], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                      (rc, path, ctx, name) -> created.countDown(), null);
+        }
+        assertTrue(created.await(30, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @param largeData if not null, the data of a node created among the
+     *                  ones the follower has to sync
+     */
+    private void checkSnapSync(boolean streaming, int count, int dataSize, byte[] largeData) throws Exception {
+        util = new QuorumUtil(1);
+        util.startAll();
+
+        for (LearnerHandler handler : util.getLeaderQuorumPeer().leader.getLearners()) {
+            assertEquals(streaming, handler.isStreamingSnap());
+        }
+
+        int leader = util.getLeaderServer();
+        int follower = leader == 1 ? 2 : 1;
+
+        ZooKeeper zk = ClientBase.createZKClient(util.getConnectionStringForServer(leader));
+        createNodes(zk, "/a", count, dataSize);
+        util.shutdown(follower);
+        // written while the follower is down, so it has to sync them
+        createNodes(zk, "/b", count, dataSize);
+        if (largeData != null) {
+            zk.create("/b/large", largeData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        zk.close();
+
+        ServerMetrics.getMetrics().resetAll();
+        util.restart(follower);
+        assertEquals(1L, MetricsUtils.currentServerMetrics().get("snap_count"));
+
+        ZooKeeper server = ClientBase.createZKClient(util.getConnectionStringForServer(follower));
+        assertEquals(count, server.getChildren("/a", false).size());
+        if (largeData != null) {
+            assertEquals(count + 1, server.getChildren("/b", false).size());
+            assertArrayEquals(largeData, server.getData("/b/large", false, null));
+        } else {
+            assertEquals(count, server.getChildren("/b", false).size());
+        }
+        server.close();
+    }
+
+    @Test
+    public void testStreamingSnapSync() throws Exception {
+        Leader.setProposalBatching(true);
+        Leader.setStreamingSnapSync(true);
+        checkSnapSync(true, 500, 100, null);
+    }
+
+    @Test
+    public void testStreamingSnapSyncLargeNode() throws Exception {
+        Leader.setProposalBatching(true);
+        Leader.setStreamingSnapSync(true);
+        // chunks as large as jute.maxbuffer allows, with a large node among
+        // the smaller ones filling them
+        FileSnap.setChunkSize(4 * 1024 * 1024);
+        byte[] largeData = new byte[1000 * 1024];
+        largeData[0] = 1;
+        checkSnapSync(true, 20, 100 * 1024, largeData);
+    }
+
+    @Test
+    public void testStreamingWithoutBatching() throws Exception {
+        Leader.setProposalBatching(false);
+        Leader.setStreamingSnapSync(true);
+        checkSnapSync(true, 500, 100, null);
+        for (LearnerHandler handler : util.getLeaderQuorumPeer().leader.getLearners()) {
+            assertFalse(handler.isBatching());
+        }
+    }
+
+    @Test
+    public void testPlainSnapSync() throws Exception {
+        Leader.setProposalBatching(true);
+        Leader.setStreamingSnapSync(false);
+        checkSnapSync(false, 500, 100, null);
+    }
+
+    @Test
+    public void testFeaturesNegotiatedSeparately() {
+        final int both = Leader.BASE_PROTOCOL_VERSION | Leader.BATCHING_FEATURE | Leader.STREAMING_SNAP_FEATURE;
+
+        Leader.setProposalBatching(false);
+        Leader.setStreamingSnapSync(true);
+        int version = Leader.negotiateProtocolVersion(both);
+        assertFalse(Leader.hasFeature(version, Leader.BATCHING_FEATURE));
+        assertTrue(Leader.hasFeature(version, Leader.STREAMING_SNAP_FEATURE));
+
+        Leader.setProposalBatching(true);
+        Leader.setStreamingSnapSync(false);
+        version = Leader.negotiateProtocolVersion(both);
+        assertTrue(Leader.hasFeature(version, Leader.BATCHING_FEATURE));
+        assertFalse(Leader.hasFeature(version, Leader.STREAMING_SNAP_FEATURE));
+
+        // a learner only gets the features it advertises
+        Leader.setStreamingSnapSync(true);
+        version = Leader.negotiateProtocolVersion(Leader.BASE_PROTOCOL_VERSION | Leader.STREAMING_SNAP_FEATURE);
+        assertFalse(Leader.hasFeature(version, Leader.BATCHING_FEATURE));
+        assertTrue(Leader.hasFeature(version, Leader.STREAMING_SNAP_FEATURE));
+        assertEquals(Leader.BASE_PROTOCOL_VERSION, Leader.negotiateProtocolVersion(Leader.BASE_PROTOCOL_VERSION));
+
+        // the version of the leaders from before the feature bits
+        assertFalse(Leader.hasFeature(0x1, Leader.BATCHING_FEATURE));
+    }
+
+}
@@ -22,6 +22,9 @@
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import org.apache.zookeeper.ZKTestCase;
 import org.junit.jupiter.api.Test;
@@ -101,4 +104,37 @@ public void testRemoveWatchBit() {
         assertEquals(0, ws.cachedSize());
     }
 
+    @Test
+    public void testIterateWhileModified() {
+        BitHashSet ws = new BitHashSet(1);
+        for (int bit = 0; bit < 200; bit += 2) {
+            ws.add(bit);
+        }
+
+        // iterating doesn't lock, the set can be changed meanwhile
+        Iterator<Integer> it = ws.iterator();
+        assertEquals(0, (int) it.next());
+        ws.add(1000);
+        ws.remove(Collections.singleton(100), bitSet(100));
+        ws.remove(2);
+        int count = 1;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertTrue(count >= 98 && count <= 101);
+
+        assertEquals(99, ws.size());
+        assertTrue(ws.contains(1000));
+        assertFalse(ws.contains(100));
+        assertFalse(ws.contains(2));
+        assertFalse(ws.contains(4000));
+    }
+
+    private static BitSet bitSet(int bit) {
+        BitSet bits = new BitSet();
+        bits.set(bit);
+        return bits;
+    }
+
 }
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.DumbWatcher;
+import org.junit.jupiter.api.Test;
+
+public class RecursiveWatchTrieTest extends ZKTestCase {
+
+    private static Set<Watcher> ancestorWatchers(RecursiveWatchTrie trie, String path) {
+        Set<Watcher> watchers = new HashSet<>();
+        trie.collectAncestorWatchers(path, watchers);
+        return watchers;
+    }
+
+    @Test
+    public void testCollectAncestorWatchers() {
+        RecursiveWatchTrie trie = new RecursiveWatchTrie();
+        Watcher root = new DumbWatcher(1);
+        Watcher a = new DumbWatcher(2);
+        Watcher ab = new DumbWatcher(3);
+        assertTrue(trie.add("/", root));
+        assertTrue(trie.add("/a", a));
+        assertTrue(trie.add("/a/b", ab));
+        assertFalse(trie.add("/a", a));
+        assertEquals(3, trie.size());
+
+        assertEquals(new HashSet<>(), ancestorWatchers(trie, "/"));
+        assertEquals(new HashSet<>(Arrays.asList(root)), ancestorWatchers(trie, "/a"));
+        assertEquals(new HashSet<>(Arrays.asList(root, a)), ancestorWatchers(trie, "/a/b"));
+        assertEquals(new HashSet<>(Arrays.asList(root, a, ab)), ancestorWatchers(trie, "/a/b/c/d"));
+        assertEquals(new HashSet<>(Arrays.asList(root, a)), ancestorWatchers(trie, "/a/bc"));
+        assertEquals(new HashSet<>(Arrays.asList(root)), ancestorWatchers(trie, "/b/a/b"));
+    }
+
+    @Test
+    public void testRemove() {
+        RecursiveWatchTrie trie = new RecursiveWatchTrie();
+        Watcher w1 = new DumbWatcher(1);
+        Watcher w2 = new DumbWatcher(2);
+        trie.add("/a/b", w1);
+        trie.add("/a/b", w2);
+        trie.add("/a/b/c", w1);
+
+        assertFalse(trie.remove("/a", w1));
+        assertFalse(trie.remove("/a/b/c/d", w1));
+        assertTrue(trie.remove("/a/b", w1));
+        assertEquals(new HashSet<>(Arrays.asList(w2)), ancestorWatchers(trie, "/a/b/c"));
+        assertEquals(new HashSet<>(Arrays.asList(w2, w1)), ancestorWatchers(trie, "/a/b/c/d"));
+
+        assertTrue(trie.remove("/a/b/c", w1));
+        assertTrue(trie.remove("/a/b", w2));
+        assertEquals(0, trie.size());
+        assertEquals(new HashSet<>(), ancestorWatchers(trie, "/a/b/c/d"));
+    }
+
+}
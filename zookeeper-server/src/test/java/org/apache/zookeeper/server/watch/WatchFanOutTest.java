@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.DumbWatcher;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+public class WatchFanOutTest extends ZKTestCase {
+
+    private static final int WATCHER_COUNT = 1000;
+
+    public static Stream<Arguments> data() {
+        return Stream.of(
+            Arguments.of(WatchManager.class.getName()),
+            Arguments.of(WatchManagerOptimized.class.getName()));
+    }
+
+    /**
+     * Records the events and replies it receives, in order.
+     */
+    private static class RecordingWatcher extends DumbWatcher {
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(2);
+
+        RecordingWatcher(long sessionId) {
+            super(sessionId);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            received.add(event.getPath());
+            done.countDown();
+        }
+
+        void reply() {
+            received.add("reply");
+            done.countDown();
+        }
+
+    }
+
+    @BeforeEach
+    public void setUp() {
+        WatchFanOut.setThreads(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        WatchFanOut.setThreads(0);
+    }
+
+    private IWatchManager getWatchManager(String className) throws IOException {
+        System.setProperty(WatchManagerFactory.ZOOKEEPER_WATCH_MANAGER_NAME, className);
+        return WatchManagerFactory.createWatchManager();
+    }
+
+    @ParameterizedTest
+    @MethodSource("data")
+    public void testRepliesFollowNotifications(String className) throws Exception {
+        ServerMetrics.getMetrics().resetAll();
+        IWatchManager manager = getWatchManager(className);
+        WatchFanOut fanOut = WatchFanOut.getInstance();
+        assertNotNull(fanOut);
+
+        List<RecordingWatcher> watchers = new ArrayList<>();
+        for (int i = 0; i < WATCHER_COUNT; i++) {
+            RecordingWatcher watcher = new RecordingWatcher(i);
+            watchers.add(watcher);
+            manager.addWatch("/a", watcher);
+        }
+
+        // enough watchers to be fanned out over all the shards
+        WatcherOrBitSet triggered = manager.triggerWatch("/a", EventType.NodeDataChanged);
+        assertEquals(WATCHER_COUNT, triggered.size());
+        for (RecordingWatcher watcher : watchers) {
+            fanOut.sendInOrder(watcher.getSessionId(), watcher::reply);
+        }
+
+        for (RecordingWatcher watcher : watchers) {
+            watcher.done.await(30, TimeUnit.SECONDS);
+            List<String> received = new ArrayList<>(watcher.received);
+            assertEquals(2, received.size());
+            assertEquals("/a", received.get(0));
+            assertEquals("reply", received.get(1));
+        }
+
+        // a trigger is recorded once, however many shards deliver it
+        Map<String, Object> values = MetricsUtils.currentServerMetrics();
+        assertEquals(1L, values.get("cnt_node_changed_watch_count"));
+        assertEquals((long) WATCHER_COUNT, values.get("sum_node_changed_watch_count"));
+        manager.shutdown();
+    }
+
+    @Test
+    public void testReusedBitsNotNotified() throws Exception {
+        WatchManagerOptimized manager = new WatchManagerOptimized();
+        WatchFanOut fanOut = WatchFanOut.getInstance();
+
+        Set<Integer> bits = new HashSet<>();
+        List<RecordingWatcher> watchers = new ArrayList<>();
+        for (int i = 0; i < WATCHER_COUNT; i++) {
+            RecordingWatcher watcher = new RecordingWatcher(i);
+            watchers.add(watcher);
+            manager.addWatch("/a", watcher);
+            // the bits are given out in order
+            bits.add(i);
+        }
+
+        // hold the shards, so the trigger is delivered after the bits of its
+        // watchers have been given to other watchers
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<Watcher>> blocking = fanOut.newShards();
+        for (List<Watcher> shard : blocking) {
+            shard.add(event -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        fanOut.fanOut(blocking, new WatchedEvent(EventType.None, KeeperState.SyncConnected, null));
+        manager.triggerWatch("/a", EventType.NodeDataChanged);
+        for (RecordingWatcher watcher : watchers) {
+            fanOut.sendInOrder(watcher.getSessionId(), watcher::reply);
+        }
+
+        manager.processDeadWatchers(bits);
+        List<RecordingWatcher> newWatchers = new ArrayList<>();
+        for (int i = 0; i < WATCHER_COUNT; i++) {
+            RecordingWatcher watcher = new RecordingWatcher(WATCHER_COUNT + i);
+            newWatchers.add(watcher);
+            manager.addWatch("/b", watcher);
+        }
+        release.countDown();
+
+        for (RecordingWatcher watcher : watchers) {
+            assertTrue(watcher.done.await(30, TimeUnit.SECONDS));
+            assertEquals("/a", watcher.received.get(0));
+        }
+        for (RecordingWatcher watcher : newWatchers) {
+            assertTrue(watcher.received.isEmpty());
+        }
+        manager.shutdown();
+    }
+
+}
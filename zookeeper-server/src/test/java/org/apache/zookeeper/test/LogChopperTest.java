@@ -33,6 +33,7 @@
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.persistence.TxnLog;
+import org.apache.zookeeper.server.persistence.TxnLogCompression;
 import org.apache.zookeeper.server.util.LogChopper;
 import org.apache.zookeeper.txn.DeleteTxn;
 import org.apache.zookeeper.txn.TxnHeader;
@@ -88,6 +89,16 @@ Pair<Long, Long> getFirstLastZxid(File logFile) throws IOException {
         return new Pair<Long, Long>(firstZxid, lastZxid);
     }
 
+    @Test
+    public void testChopperCompressed() throws IOException {
+        FileTxnLog.setTxnLogCompression(TxnLogCompression.LZ4);
+        try {
+            testChopper();
+        } finally {
+            FileTxnLog.setTxnLogCompression(TxnLogCompression.NONE);
+        }
+    }
+
     @Test
     public void testChopper() throws IOException {
         long clientId = 17;
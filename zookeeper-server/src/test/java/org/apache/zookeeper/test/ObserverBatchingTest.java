@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.number.OrderingComparison.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.quorum.Leader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the observers of an ensemble batching its packets get every
+ * committed txn.
+ */
+public class ObserverBatchingTest extends QuorumBase {
+
+    private boolean oldProposalBatching;
+
+    @BeforeEach
+    @Override
+    public void setUp() throws Exception {
+        oldProposalBatching = Leader.isProposalBatching();
+        Leader.setProposalBatching(true);
+        ServerMetrics.getMetrics().resetAll();
+        setUp(true);
+    }
+
+    @AfterEach
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        Leader.setProposalBatching(oldProposalBatching);
+    }
+
+    @Test
+    public void testObserversGetBatchedInforms() throws Exception {
+        // queue many writes at once so that informs pile up
+        final int nodeCount = 1000;
+        ZooKeeper zk = ClientBase.createZKClient("127.0.0.1:" + getLeaderClientPort());
+        final CountDownLatch created = new CountDownLatch(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            zk.create("/node" + i, new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                      (rc, path, ctx, name) -> created.countDown(), null);
+        }
+        assertTrue(created.await(30, TimeUnit.SECONDS));
+        zk.close();
+
+        for (int clientPort : new int[]{portClient4, portClient5}) {
+            ZooKeeper observer = ClientBase.createZKClient("127.0.0.1:" + clientPort);
+            final CountDownLatch synced = new CountDownLatch(1);
+            observer.sync("/", (rc, path, ctx) -> synced.countDown(), null);
+            assertTrue(synced.await(30, TimeUnit.SECONDS));
+            // the root holds the zookeeper node and the created nodes
+            assertEquals(nodeCount + 1, observer.getChildren("/", false).size());
+            observer.close();
+        }
+
+        Map<String, Object> values = MetricsUtils.currentServerMetrics();
+        assertThat((long) values.get("cnt_inform_batch_size"), greaterThan(0L));
+    }
+
+}
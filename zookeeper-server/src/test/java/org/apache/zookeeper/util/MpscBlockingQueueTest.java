@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class MpscBlockingQueueTest {
+
+    @Test
+    public void testFifoAcrossChunks() {
+        MpscBlockingQueue<Integer> queue = new MpscBlockingQueue<>();
+        int count = 3 * MpscBlockingQueue.CHUNK_SIZE + 1;
+        for (int i = 0; i < count; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(count, queue.size());
+        assertEquals(0, queue.peek().intValue());
+        assertTrue(queue.contains(count - 1));
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, queue.poll().intValue());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testBounded() {
+        MpscBlockingQueue<Integer> queue = new MpscBlockingQueue<>(2);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3));
+        assertEquals(0, queue.remainingCapacity());
+        assertEquals(1, queue.poll().intValue());
+        assertTrue(queue.offer(3));
+    }
+
+    @Test
+    public void testDrainTo() {
+        MpscBlockingQueue<Integer> queue = new MpscBlockingQueue<>();
+        for (int i = 0; i < 2 * MpscBlockingQueue.CHUNK_SIZE; i++) {
+            queue.add(i);
+        }
+        List<Integer> batch = new ArrayList<>();
+        assertEquals(10, queue.drainTo(batch, 10));
+        assertEquals(9, batch.get(9).intValue());
+
+        batch.clear();
+        assertEquals(2 * MpscBlockingQueue.CHUNK_SIZE - 10, queue.drainTo(batch));
+        assertEquals(10, batch.get(0).intValue());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.drainTo(batch));
+    }
+
+    @Test
+    @Timeout(value = 30)
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+        MpscBlockingQueue<Long> queue = new MpscBlockingQueue<>(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final long producer = p;
+                executor.submit(() -> {
+                    for (long i = 0; i < perProducer; i++) {
+                        queue.put(producer << 32 | i);
+                    }
+                    return null;
+                });
+            }
+
+            // each producer's elements are taken in the order it put them
+            long[] last = new long[producers];
+            List<Long> batch = new ArrayList<>();
+            int received = 0;
+            while (received < producers * perProducer) {
+                batch.clear();
+                if (queue.drainTo(batch, 100) == 0) {
+                    batch.add(queue.take());
+                }
+                for (long element : batch) {
+                    int producer = (int) (element >>> 32);
+                    assertEquals(last[producer]++, element & 0xffffffffL);
+                    received++;
+                }
+            }
+            assertTrue(queue.isEmpty());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @Timeout(value = 10)
+    public void testTakeBlock() throws InterruptedException, ExecutionException {
+        MpscBlockingQueue<Integer> queue = new MpscBlockingQueue<>();
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> take = executor.submit(() -> queue.take());
+            Thread.sleep(100);
+            queue.offer(10);
+            assertEquals(10, take.get().intValue());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRemovalOnlyFromHead() {
+        MpscBlockingQueue<Integer> queue = new MpscBlockingQueue<>();
+        queue.addAll(Arrays.asList(1, 2, 3));
+
+        assertThrows(UnsupportedOperationException.class, () -> queue.remove(2));
+        assertThrows(UnsupportedOperationException.class, () -> queue.removeAll(Collections.singleton(2)));
+        assertThrows(UnsupportedOperationException.class, () -> queue.retainAll(Collections.singleton(2)));
+        assertThrows(UnsupportedOperationException.class, () -> queue.removeIf(e -> e == 2));
+        Iterator<Integer> it = queue.iterator();
+        assertEquals(1, it.next().intValue());
+        assertThrows(UnsupportedOperationException.class, it::remove);
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(queue));
+
+        // nothing to remove
+        assertFalse(queue.removeAll(Collections.singleton(4)));
+        assertFalse(queue.removeIf(e -> e == 4));
+
+        assertEquals(1, queue.remove().intValue());
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+}